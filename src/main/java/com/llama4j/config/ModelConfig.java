@@ -1,6 +1,8 @@
 package com.llama4j.config;
 
+import com.llama4j.core.BatchScheduler;
 import com.llama4j.core.Llama;
+import com.llama4j.core.SessionManager;
 import com.llama4j.core.ModelLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,6 +12,7 @@ import org.springframework.context.annotation.Configuration;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.time.Duration;
 
 @Configuration
 public class ModelConfig {
@@ -38,4 +41,36 @@ public class ModelConfig {
         }
         return model;
     }
+
+    /**
+     * Runs the generation of all the chat requests, decoded together in batches. A request decoded alone is decoded
+     * speculatively when a draft model or prompt lookup is configured, so is an interactive generation, with a decoder of
+     * {@link BatchScheduler#newSpeculativeDecoder()}.
+     */
+    @Bean(destroyMethod = "close")
+    public BatchScheduler batchScheduler(Llama model, @Value("${llama.draft.model.name:}") String draftModelName,
+                                         @Value("${llama.speculative.prompt-lookup:false}") boolean promptLookup) {
+        if (draftModelName.isBlank()) {
+            return new BatchScheduler(model, null, promptLookup);
+        }
+        Llama draft;
+        try {
+            LOG.debug("Using draft model filename: {}", draftModelName);
+            draft = ModelLoader.loadModel(Path.of(modelPath + File.separatorChar + draftModelName), 4000, true);
+            LOG.info("Draft model loaded successfully");
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load draft Llama model", e);
+        }
+        return new BatchScheduler(model, draft, promptLookup);
+    }
+
+    /**
+     * Conversations kept between requests, see {@code session_id}.
+     */
+    @Bean(destroyMethod = "close")
+    public SessionManager sessionManager(Llama model,
+                                         @Value("${llama.session.max-sessions:32}") int maxSessions,
+                                         @Value("${llama.session.idle-timeout:PT10M}") Duration idleTimeout) {
+        return new SessionManager(model, maxSessions, idleTimeout);
+    }
 }
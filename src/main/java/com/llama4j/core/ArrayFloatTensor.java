@@ -5,12 +5,22 @@ import java.util.Arrays;
 import org.jetbrains.annotations.NotNull;
 
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
+/**
+ * {@link FloatTensor} backed by a {@code float[]}, used for activations, caches and small weights e.g. rmsnorm.
+ * <p>
+ * The element-wise operations used on every layer are overridden with vectorized implementations, the generic
+ * {@link FloatTensor} versions go through lambdas and virtual {@link #getFloat(int)}/{@link #setFloat(int, float)} calls.
+ */
 final class ArrayFloatTensor extends FloatTensor {
 
     final float[] values;
 
+    // Q8_0 copy of the values reused by the matmuls with quantized activations, see Q8_0ArrayFloatTensor#quantize.
+    Q8_0ArrayFloatTensor quantized;
+
     ArrayFloatTensor(float[] values) {
         this.values = values;
     }
@@ -54,8 +64,328 @@ final class ArrayFloatTensor extends FloatTensor {
         return FloatVector.fromArray(species, values, index);
     }
 
+    @Override
+    float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray) {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        }
+        return super.dot(thisOffset, that, thatOffset, size);
+    }
+
+    private static float vectorDot(ArrayFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for (; j < upperBound; j += F_SPECIES.length()) {
+            var a = FloatVector.fromArray(F_SPECIES, thiz.values, thisOffset + j);
+            var b = FloatVector.fromArray(F_SPECIES, that.values, thatOffset + j);
+            val = a.fma(b, val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        for (; j < size; ++j) {
+            result += thiz.values[thisOffset + j] * that.values[thatOffset + j];
+        }
+        return result;
+    }
+
+    @Override
+    float reduce(int thisOffset, int size, float seed, AggregateFunction reduce) {
+        float result = seed;
+        for (int i = thisOffset; i < thisOffset + size; ++i) {
+            result = reduce.apply(result, values[i]);
+        }
+        return result;
+    }
+
+    @Override
+    float sum(int thisOffset, int size) {
+        if (!USE_VECTOR_API) {
+            return super.sum(thisOffset, size);
+        }
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            val = val.add(FloatVector.fromArray(F_SPECIES, values, thisOffset + i));
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        for (; i < size; ++i) {
+            result += values[thisOffset + i];
+        }
+        return result;
+    }
+
+    @Override
+    float max(int thisOffset, int size) {
+        if (!USE_VECTOR_API) {
+            return super.max(thisOffset, size);
+        }
+        FloatVector val = FloatVector.broadcast(F_SPECIES, Float.NEGATIVE_INFINITY);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            val = val.max(FloatVector.fromArray(F_SPECIES, values, thisOffset + i));
+        }
+        float result = val.reduceLanes(VectorOperators.MAX);
+        for (; i < size; ++i) {
+            result = Math.max(result, values[thisOffset + i]);
+        }
+        return result;
+    }
+
+    @Override
+    int argmax(int size) {
+        if (!USE_VECTOR_API) {
+            return super.argmax(size);
+        }
+        assert size > 0;
+        // vectorized max, then the first index holding it
+        float maxValue = max(0, size);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            var mask = FloatVector.fromArray(F_SPECIES, values, i).compare(VectorOperators.EQ, maxValue);
+            if (mask.anyTrue()) {
+                return i + mask.firstTrue();
+            }
+        }
+        for (; i < size; ++i) {
+            if (values[i] == maxValue) {
+                return i;
+            }
+        }
+        return 0; // NaNs only
+    }
+
+    /**
+     * Index of the first of the {@code size} values whose prefix sum exceeds {@code target}, {@code size - 1} if none
+     * (rounding errors): picks a token from probabilities with a uniform {@code target} in {@code [0, 1)}.
+     * Whole vectors are summed until the one holding the index.
+     */
+    int prefixSumSearch(int size, float target) {
+        float cdf = 0f;
+        int i = 0;
+        if (USE_VECTOR_API) {
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; i < upperBound; i += F_SPECIES.length()) {
+                float sum = FloatVector.fromArray(F_SPECIES, values, i).reduceLanes(VectorOperators.ADD);
+                if (target < cdf + sum) {
+                    break;
+                }
+                cdf += sum;
+            }
+        }
+        for (; i < size; ++i) {
+            cdf += values[i];
+            if (target < cdf) {
+                return i;
+            }
+        }
+        return size - 1;
+    }
+
+    @Override
+    void copyTo(int thisOffset, @NotNull FloatTensor that, int thatOffset, int size) {
+        switch (that) {
+            case ArrayFloatTensor thatArray -> System.arraycopy(values, thisOffset, thatArray.values, thatOffset, size);
+            // Compressed KV caches, quantized as they are stored.
+            case F16ArrayFloatTensor thatHalfs -> thatHalfs.store(thatOffset, this, thisOffset, size);
+            case Q8_0ArrayFloatTensor thatQuants -> thatQuants.store(thatOffset, this, thisOffset, size);
+            default -> super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+
+    @Override
+    FloatTensor mapInPlace(int thisOffset, int size, MapFunction mapFunction) {
+        for (int i = thisOffset; i < thisOffset + size; ++i) {
+            values[i] = mapFunction.apply(values[i]);
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor mapWithIndexInPlace(int thisOffset, int size, MapWithIndexFunction mapWithIndexFunction) {
+        for (int i = thisOffset; i < thisOffset + size; ++i) {
+            values[i] = mapWithIndexFunction.apply(values[i], i);
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor addInPlace(FloatTensor that, int size) {
+        if (!USE_VECTOR_API || !(that instanceof ArrayFloatTensor thatArray)) {
+            return super.addInPlace(that, size);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            FloatVector.fromArray(F_SPECIES, values, i)
+                .add(FloatVector.fromArray(F_SPECIES, thatArray.values, i))
+                .intoArray(values, i);
+        }
+        for (; i < size; ++i) {
+            values[i] += thatArray.values[i];
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor multiplyInPlace(FloatTensor that, int size) {
+        if (!USE_VECTOR_API || !(that instanceof ArrayFloatTensor thatArray)) {
+            return super.multiplyInPlace(that, size);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            FloatVector.fromArray(F_SPECIES, values, i)
+                .mul(FloatVector.fromArray(F_SPECIES, thatArray.values, i))
+                .intoArray(values, i);
+        }
+        for (; i < size; ++i) {
+            values[i] *= thatArray.values[i];
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor divideInPlace(int thisOffset, int size, float value) {
+        if (!USE_VECTOR_API) {
+            return super.divideInPlace(thisOffset, size, value);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            FloatVector.fromArray(F_SPECIES, values, thisOffset + i)
+                .div(value)
+                .intoArray(values, thisOffset + i);
+        }
+        for (; i < size; ++i) {
+            values[thisOffset + i] /= value;
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor multiplyInPlace(int thisOffset, int size, float value) {
+        if (!USE_VECTOR_API) {
+            return super.multiplyInPlace(thisOffset, size, value);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            FloatVector.fromArray(F_SPECIES, values, thisOffset + i)
+                .mul(value)
+                .intoArray(values, thisOffset + i);
+        }
+        for (; i < size; ++i) {
+            values[thisOffset + i] *= value;
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor siluInPlace(int thisOffset, int size) {
+        if (!USE_VECTOR_API) {
+            return super.siluInPlace(thisOffset, size);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            var x = FloatVector.fromArray(F_SPECIES, values, thisOffset + i);
+            x.div(x.neg().lanewise(VectorOperators.EXP).add(1f))
+                .intoArray(values, thisOffset + i);
+        }
+        for (; i < size; ++i) {
+            float value = values[thisOffset + i];
+            values[thisOffset + i] = value / (float) (1.0 + Math.exp(-value));
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor scaledProductInPlace(int thisOffset, FloatTensor that, FloatTensor weight, int size, float scale) {
+        if (!USE_VECTOR_API || !(that instanceof ArrayFloatTensor thatArray) || !(weight instanceof ArrayFloatTensor weightArray)) {
+            return super.scaledProductInPlace(thisOffset, that, weight, size, scale);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            FloatVector.fromArray(F_SPECIES, thatArray.values, thisOffset + i)
+                .mul(scale)
+                .mul(FloatVector.fromArray(F_SPECIES, weightArray.values, i))
+                .intoArray(values, thisOffset + i);
+        }
+        for (; i < size; ++i) {
+            values[thisOffset + i] = weightArray.values[i] * (scale * thatArray.values[thisOffset + i]);
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor softmaxInPlace(int thisOffset, int size) {
+        if (!USE_VECTOR_API) {
+            return super.softmaxInPlace(thisOffset, size);
+        }
+        float sum = expInPlace(thisOffset, size, max(thisOffset, size));
+        // a single division, the values are normalized by a multiply
+        return multiplyInPlace(thisOffset, size, 1f / sum);
+    }
+
+    @Override
+    float expInPlace(int thisOffset, int size, float maxValue) {
+        if (!USE_VECTOR_API) {
+            return super.expInPlace(thisOffset, size, maxValue);
+        }
+        FloatVector sum = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            var exp = FloatVector.fromArray(F_SPECIES, values, thisOffset + i)
+                .sub(maxValue)
+                .lanewise(VectorOperators.EXP);
+            exp.intoArray(values, thisOffset + i);
+            sum = sum.add(exp);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < size; ++i) {
+            float exp = (float) Math.exp(values[thisOffset + i] - maxValue);
+            values[thisOffset + i] = exp;
+            result += exp;
+        }
+        return result;
+    }
+
+    @Override
+    void saxpyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size, float a) {
+        if (USE_VECTOR_API && that instanceof F16ArrayFloatTensor thatHalfs) {
+            thatHalfs.saxpyInto(this, thisOffset, thatOffset, size, a);
+            return;
+        }
+        if (that instanceof Q8_0ArrayFloatTensor thatQuants) {
+            thatQuants.saxpyInto(this, thisOffset, thatOffset, size, a);
+            return;
+        }
+        if (!USE_VECTOR_API || !(that instanceof ArrayFloatTensor thatArray)) {
+            super.saxpyInPlace(thisOffset, that, thatOffset, size, a);
+            return;
+        }
+        // this[thisOffset ... thisOffset + size) = a * that[thatOffset ... thatOffset + size) + this[thisOffset ... thisOffset + size)
+        var va = FloatVector.broadcast(F_SPECIES, a);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            FloatVector.fromArray(F_SPECIES, thatArray.values, thatOffset + i)
+                .fma(va, FloatVector.fromArray(F_SPECIES, values, thisOffset + i))
+                .intoArray(values, thisOffset + i);
+        }
+        for (; i < size; ++i) {
+            values[thisOffset + i] += a * thatArray.values[thatOffset + i];
+        }
+    }
+
     @Override
     public String toString() {
         return super.toString();
     }
-}
\ No newline at end of file
+}
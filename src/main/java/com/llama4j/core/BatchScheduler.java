@@ -0,0 +1,327 @@
+package com.llama4j.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * Continuous batching: a single scheduler thread owns the model and, at every decode step, forwards the next token of all
+ * the active sequences together with {@link Llama#forwardDecode}, so the weights are read once per step for the whole batch.
+ * <p>
+ * Sequences join and leave at token boundaries, at most {@link Llama#BATCH_SIZE} are decoded together, the others wait.
+ * The prompt of a joining sequence is ingested, after restoring the longest cached prefix, one chunk of at most
+ * {@link Llama#BATCH_SIZE} tokens per step along with the decode batch, so that the others do not stall for a whole prompt.
+ * A sequence can also continue a caller-owned state, e.g. a conversation, then only the tokens past its KV cache are ingested.
+ * <p>
+ * With a draft model or prompt lookup, a sequence decoded alone is decoded speculatively, several tokens per step, and
+ * one token per step in the batch while other sequences are active. Outside of the scheduler,
+ * {@link Llama#generateTokens} speculates with a decoder of {@link #newSpeculativeDecoder()}.
+ */
+public final class BatchScheduler implements AutoCloseable {
+
+    /**
+     * Generated tokens, including the stop token if any, and the number of prompt tokens that were not ingested: restored
+     * from the {@link PrefixCache} or already in the KV cache of the state.
+     */
+    public record Result(List<Integer> tokens, int cachedTokens) {
+    }
+
+    private final class Sequence {
+        final List<Integer> tokens; // all the tokens in position order, prompt then generated
+        final Set<Integer> stopTokens;
+        final int maxTokens;
+        final Sampler sampler;
+        final IntConsumer onTokenGenerated;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+        final List<Integer> generated = new ArrayList<>();
+        final boolean ownsState;
+        Llama.State state;
+        int position; // of the next token to forward, the prompt is being ingested while the KV cache does not reach it
+        int cachedTokens;
+
+        Sequence(Llama.State state, List<Integer> tokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, IntConsumer onTokenGenerated) {
+            this.state = state;
+            this.ownsState = state == null;
+            this.tokens = tokens;
+            this.stopTokens = stopTokens;
+            this.maxTokens = maxTokens < 0 || model.configuration().contextLength < maxTokens ? model.configuration().contextLength : maxTokens;
+            this.sampler = sampler;
+            this.onTokenGenerated = onTokenGenerated;
+        }
+    }
+
+    private final Llama model;
+    private final Llama draft;
+    private final boolean promptLookup;
+    private final SpeculativeDecoder speculative; // null without a draft model nor prompt lookup
+    private Sequence speculated; // the sequence whose draft KV cache the decoder holds
+    private final Llama.State workspace;
+    private final FloatTensor logits;
+    private final LinkedBlockingQueue<Sequence> pending = new LinkedBlockingQueue<>();
+    private final List<Sequence> active = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public BatchScheduler(@NotNull Llama model) {
+        this(model, null, false);
+    }
+
+    /**
+     * @param draft        small model with the same vocabulary, drafting the tokens of a sequence decoded alone, see
+     *                     {@link SpeculativeDecoder}; null for none. It is closed with the scheduler.
+     * @param promptLookup whether tokens are drafted by prompt lookup when there is no draft model
+     */
+    public BatchScheduler(@NotNull Llama model, Llama draft, boolean promptLookup) {
+        this.model = model;
+        this.draft = draft;
+        this.promptLookup = promptLookup;
+        this.speculative = newSpeculativeDecoder();
+        this.workspace = model.createNewState();
+        this.logits = ArrayFloatTensor.allocate(workspace.batchSize, model.configuration().vocabularySize);
+        this.thread = Thread.ofPlatform().name("llama-scheduler").daemon().start(this::run);
+    }
+
+    /**
+     * A speculative decoder drafting like the one of this scheduler, for a generation outside of it, e.g.
+     * {@link Llama3#runInteractive}; null without a draft model nor prompt lookup. The caller closes it.
+     */
+    public SpeculativeDecoder newSpeculativeDecoder() {
+        return draft != null ? new SpeculativeDecoder(model, draft) : promptLookup ? new SpeculativeDecoder(model) : null;
+    }
+
+    /**
+     * Queues the generation of a sequence, see {@link Llama#generateTokens} for the meaning of the arguments.
+     * The prompt is ingested from position 0, after the begin of text token of a new state.
+     *
+     * @param onTokenGenerated called on the scheduler thread every time a token is generated, may be null
+     */
+    public CompletableFuture<Result> submit(List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler,
+                                            IntConsumer onTokenGenerated) {
+        List<Integer> tokens = new ArrayList<>();
+        tokens.add(workspace.latestToken);
+        tokens.addAll(promptTokens);
+        return submit(new Sequence(null, tokens, stopTokens, maxTokens, sampler, onTokenGenerated));
+    }
+
+    /**
+     * Queues the generation of a sequence continuing {@code state}, which must not be used until the generation completes.
+     * The KV cache of the state holds the first {@code state.length} of {@code tokens} (token {@code i} at position {@code i}),
+     * the following ones are ingested. The state is not closed.
+     */
+    public CompletableFuture<Result> submit(Llama.State state, List<Integer> tokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler,
+                                            IntConsumer onTokenGenerated) {
+        assert state.length < tokens.size();
+        return submit(new Sequence(state, new ArrayList<>(tokens), stopTokens, maxTokens, sampler, onTokenGenerated));
+    }
+
+    // Synchronized with the closing of the scheduler, a sequence is either rejected or failed by the scheduler thread.
+    private synchronized CompletableFuture<Result> submit(Sequence sequence) {
+        if (closed) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        pending.add(sequence);
+        return sequence.result;
+    }
+
+    private void run() {
+        Throwable error = null;
+        try {
+            while (!closed) {
+                if (active.isEmpty()) {
+                    join(pending.take());
+                }
+                while (active.size() < workspace.batchSize && !pending.isEmpty()) {
+                    join(pending.poll());
+                }
+                if (!active.isEmpty()) {
+                    step();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable e) {
+            // e.g. an OutOfMemoryError, the scheduler cannot go on: nothing must be left waiting for it
+            error = e;
+        }
+        synchronized (this) {
+            closed = true; // nothing is queued from now on
+        }
+        Throwable cause = error != null ? error : new IllegalStateException("Scheduler is closed");
+        active.forEach(sequence -> fail(sequence, cause));
+        active.clear();
+        pending.forEach(sequence -> fail(sequence, cause));
+        pending.clear();
+        if (speculative != null) {
+            speculative.close();
+        }
+    }
+
+    // Restores the longest cached prefix, the rest of the prompt but its last token is ingested by the next steps.
+    private void join(Sequence sequence) {
+        try {
+            if (sequence.ownsState) {
+                sequence.state = model.createNewState();
+            }
+            int promptEnd = sequence.tokens.size() - 1;
+            if (sequence.tokens.size() > sequence.maxTokens) {
+                // no room left to generate
+                finish(sequence);
+                return;
+            }
+            sequence.cachedTokens = sequence.ownsState
+                ? model.prefixCache().restore(sequence.state, sequence.tokens, promptEnd)
+                : sequence.state.length;
+            sequence.position = promptEnd;
+            active.add(sequence);
+        } catch (RuntimeException e) {
+            fail(sequence, e);
+        } catch (Error e) {
+            fail(sequence, e); // neither active nor pending, the other sequences are failed by run()
+            throw e;
+        }
+    }
+
+    private static boolean isIngesting(Sequence sequence) {
+        return sequence.state.length < sequence.position;
+    }
+
+    private void step() {
+        active.stream().filter(BatchScheduler::isIngesting).findFirst().ifPresent(this::ingest);
+        List<Sequence> decoding = active.stream().filter(sequence -> !isIngesting(sequence)).toList();
+        if (decoding.isEmpty()) {
+            return;
+        }
+        if (speculative != null && active.size() == 1 && speculate(active.getFirst())) {
+            return;
+        }
+        int batchSize = decoding.size();
+        Llama.State[] states = new Llama.State[batchSize];
+        int[] tokens = new int[batchSize];
+        int[] positions = new int[batchSize];
+        for (int b = 0; b < batchSize; b++) {
+            Sequence sequence = decoding.get(b);
+            states[b] = sequence.state;
+            tokens[b] = sequence.tokens.get(sequence.position);
+            positions[b] = sequence.position;
+        }
+        try {
+            Llama.forwardDecode(model, workspace, states, tokens, positions, logits);
+        } catch (RuntimeException e) {
+            decoding.forEach(sequence -> fail(sequence, e));
+            active.removeAll(decoding);
+            return;
+        }
+        for (Sequence sequence : decoding) {
+            try {
+                int nextToken = sequence.sampler.sampleToken(sequence.state.logits);
+                sequence.sampler.accept(nextToken);
+                if (accept(sequence, List.of(nextToken))) {
+                    active.remove(sequence);
+                    finish(sequence);
+                }
+            } catch (RuntimeException e) {
+                active.remove(sequence);
+                fail(sequence, e);
+            }
+        }
+    }
+
+    // Ingests the next chunk of the prompt of the sequence, at most a batch.
+    private void ingest(Sequence sequence) {
+        int start = sequence.state.length;
+        int end = Math.min(sequence.position, start + sequence.state.batchSize);
+        try {
+            int[] chunk = sequence.tokens.subList(start, end).stream().mapToInt(Integer::intValue).toArray();
+            Llama.forwardBatch(model, sequence.state, chunk, start);
+        } catch (RuntimeException e) {
+            active.remove(sequence);
+            fail(sequence, e);
+        }
+    }
+
+    // Speculative decoding of a sequence decoded alone, returns false if the step cannot be speculated.
+    private boolean speculate(Sequence sequence) {
+        try {
+            if (speculated != sequence) {
+                if (speculated != null) {
+                    speculative.reset(speculated.tokens); // its draft KV cache is restored if it is speculated again
+                }
+                speculated = sequence;
+            }
+            List<Integer> nextTokens = speculative.step(sequence.state, sequence.tokens, 0, sequence.position,
+                sequence.sampler, sequence.stopTokens, sequence.maxTokens - sequence.position);
+            if (nextTokens == null) {
+                return false;
+            }
+            if (accept(sequence, nextTokens)) {
+                active.remove(sequence);
+                finish(sequence);
+            }
+        } catch (RuntimeException e) {
+            active.remove(sequence);
+            fail(sequence, e);
+        }
+        return true;
+    }
+
+    // Appends generated tokens to the sequence, returns true if it is complete.
+    private boolean accept(Sequence sequence, List<Integer> nextTokens) {
+        for (int nextToken : nextTokens) {
+            sequence.position++;
+            sequence.tokens.add(nextToken);
+            sequence.generated.add(nextToken);
+            if (sequence.onTokenGenerated != null) {
+                sequence.onTokenGenerated.accept(nextToken);
+            }
+        }
+        return sequence.stopTokens.contains(nextTokens.getLast()) || sequence.position >= sequence.maxTokens;
+    }
+
+    private void finish(Sequence sequence) {
+        model.prefixCache().insert(sequence.state, sequence.tokens);
+        if (speculated == sequence) {
+            speculative.reset(sequence.tokens);
+            speculated = null;
+        }
+        if (sequence.ownsState) {
+            sequence.state.close();
+        }
+        sequence.result.complete(new Result(sequence.generated, sequence.cachedTokens));
+    }
+
+    private void fail(Sequence sequence, Throwable e) {
+        if (speculated == sequence) {
+            speculative.reset();
+            speculated = null;
+        }
+        if (sequence.ownsState && sequence.state != null) {
+            sequence.state.close();
+        }
+        sequence.result.completeExceptionally(e);
+    }
+
+    /**
+     * Stops the scheduler thread, sequences still queued or being generated fail. Waits for the step in progress, then
+     * closes the draft model.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (draft != null) {
+            draft.close();
+        }
+    }
+}
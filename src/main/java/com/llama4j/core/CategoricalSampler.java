@@ -10,6 +10,9 @@ record CategoricalSampler(RandomGenerator rng) implements Sampler {
     public int sampleToken(@NotNull FloatTensor logits) {
         // sample index from probabilities (they must sum to 1!)
         float random0to1 = rng.nextFloat(1f);
+        if (logits instanceof ArrayFloatTensor probabilities) {
+            return probabilities.prefixSumSearch(probabilities.size(), random0to1);
+        }
         float cdf = 0.0f;
         for (int i = 0; i < logits.size(); i++) {
             cdf += logits.getFloat(i);
@@ -0,0 +1,163 @@
+package com.llama4j.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token ids of recently encoded pre-tokenized chunks, so that recurring words, whitespace runs and identifiers skip BPE.
+ * <p>
+ * The cache is split into independently locked segments, each a least recently used map bounded to its share of the
+ * {@code llama.TokenizerCacheChunks} entries. Lookups are by a range of characters and do not allocate, only new entries
+ * copy their chunk. Chunks longer than {@link #MAX_CHUNK_LENGTH} are not cached, they seldom recur.
+ * The hit and miss counters are public, see {@link Llama#tokenizerCache()}.
+ */
+public final class ChunkCache {
+
+    static final int CAPACITY = Integer.getInteger("llama.TokenizerCacheChunks", 32768);
+    static final int MAX_CHUNK_LENGTH = 128;
+
+    private static final int SEGMENTS = 16;
+
+    // A chunk of characters; stored keys own a copy of their chunk, probes point into the text being encoded.
+    private static final class Key {
+        CharSequence text;
+        int start;
+        int end;
+        int hash;
+
+        Key set(CharSequence text, int start, int end, int hash) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.hash = hash;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key other) || other.hash != hash || other.end - other.start != end - start) {
+                return false;
+            }
+            for (int i = 0; i < end - start; i++) {
+                if (text.charAt(start + i) != other.text.charAt(other.start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, int[]> {
+        final int capacity;
+        final Key probe = new Key();
+
+        Segment(int capacity) {
+            super(16, 0.75f, true); // access order
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ChunkCache(int capacity) {
+        this.segments = new Segment[capacity > 0 ? SEGMENTS : 0];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+        }
+    }
+
+    private static boolean isCacheable(int start, int end) {
+        return end - start <= MAX_CHUNK_LENGTH;
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        hash *= 0x9E3779B9;
+        return hash ^ hash >>> 16;
+    }
+
+    private Segment segment(int hash) {
+        return segments[(hash >>> 24) & (SEGMENTS - 1)]; // the low bits pick the bucket within the segment
+    }
+
+    /**
+     * Token ids of {@code text[start, end)}, not to be modified, or null if they are not cached.
+     */
+    int[] get(CharSequence text, int start, int end) {
+        if (segments.length == 0 || !isCacheable(start, end)) {
+            return null;
+        }
+        int hash = hash(text, start, end);
+        Segment segment = segment(hash);
+        int[] ids;
+        synchronized (segment) {
+            ids = segment.get(segment.probe.set(text, start, end, hash));
+            segment.probe.text = null; // do not retain the text
+        }
+        (ids != null ? hits : misses).increment();
+        return ids;
+    }
+
+    /**
+     * Caches the token ids of {@code text[start, end)}, they must not be modified afterwards.
+     */
+    void put(CharSequence text, int start, int end, int[] ids) {
+        if (segments.length == 0 || !isCacheable(start, end)) {
+            return;
+        }
+        int hash = hash(text, start, end);
+        Key key = new Key().set(text.subSequence(start, end).toString(), 0, end - start, hash);
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            segment.put(key, ids);
+        }
+    }
+
+    /**
+     * Number of lookups of cacheable chunks that found their ids.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of lookups of cacheable chunks that did not find their ids, and encoded them.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of chunks cached.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkCache[hits=" + hits() + ", misses=" + misses() + ", size=" + size() + "]";
+    }
+}
@@ -0,0 +1,24 @@
+package com.llama4j.core;
+
+/**
+ * A {@link Sampler} drawing tokens from an explicit probability distribution over the vocabulary.
+ * <p>
+ * Speculative decoding needs the distribution itself, not only a token, to accept or reject draft tokens.
+ */
+interface DistributionSampler extends Sampler {
+
+    /**
+     * Replaces the logits, in place, with the probabilities {@link #sampleToken} draws from.
+     */
+    void probabilitiesInPlace(FloatTensor logits);
+
+    /**
+     * Draws a token from probabilities summing to 1.
+     */
+    int sampleFromProbabilities(FloatTensor probabilities);
+
+    /**
+     * Uniform random number in {@code [0, 1)}, from the same generator as the sampled tokens.
+     */
+    float nextFloat();
+}
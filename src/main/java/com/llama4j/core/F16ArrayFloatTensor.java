@@ -0,0 +1,96 @@
+package com.llama4j.core;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} of half-precision floats backed by a {@code short[]}, used for the KV cache
+ * ({@code llama.KVCacheType=F16}). Attention reads it directly, see {@link #dot} and {@link #saxpyInto}.
+ */
+final class F16ArrayFloatTensor extends FloatTensor {
+
+    final short[] values;
+
+    F16ArrayFloatTensor(int size) {
+        this.values = new short[size];
+    }
+
+    @Override
+    int size() {
+        return values.length;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        return Float.float16ToFloat(values[index]);
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        values[index] = Float.floatToFloat16(value);
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        if (!USE_VECTOR_API || species != F_SPECIES) {
+            throw new UnsupportedOperationException();
+        }
+        return F16FloatTensor.toFloatVector(ShortVector.fromArray(S_HALF_SPECIES, values, index));
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.F16;
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray) {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        }
+        return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+    }
+
+    private static float vectorDot(F16ArrayFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for (; j < upperBound; j += F_SPECIES.length()) {
+            val = thiz.getFloatVector(F_SPECIES, thisOffset + j).fma(that.getFloatVector(F_SPECIES, thatOffset + j), val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+
+    /**
+     * out[outOffset ... outOffset + size) += a * this[thisOffset ... thisOffset + size)
+     */
+    void saxpyInto(ArrayFloatTensor out, int outOffset, int thisOffset, int size, float a) {
+        var va = FloatVector.broadcast(F_SPECIES, a);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            getFloatVector(F_SPECIES, thisOffset + i)
+                .fma(va, out.getFloatVector(F_SPECIES, outOffset + i))
+                .intoArray(out.values, outOffset + i);
+        }
+        for (; i < size; ++i) {
+            out.values[outOffset + i] += a * getFloat(thisOffset + i);
+        }
+    }
+
+    /**
+     * this[thisOffset ... thisOffset + size) = that[thatOffset ... thatOffset + size)
+     */
+    void store(int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        for (int i = 0; i < size; ++i) {
+            values[thisOffset + i] = Float.floatToFloat16(that.values[thatOffset + i]);
+        }
+    }
+}
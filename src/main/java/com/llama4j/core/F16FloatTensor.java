@@ -0,0 +1,89 @@
+package com.llama4j.core;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} of IEEE 754 half-precision floats, read directly from the memory-mapped model file.
+ */
+final class F16FloatTensor extends FloatTensor {
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public F16FloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.F16;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        return Float.float16ToFloat(readShort(memorySegment, (long) index * Float16.BYTES));
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray) {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    /**
+     * Converts F16 lanes to floats: the exponent and mantissa are shifted into place and the exponent
+     * re-biased with a multiplication, which also normalizes subnormals. Infinities and NaNs are not handled,
+     * they are not expected in model weights.
+     */
+    static FloatVector toFloatVector(ShortVector halfs) {
+        var bits = (IntVector) halfs.castShape(I_BITS_SPECIES, 0);
+        var sign = bits.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+        var magnitude = bits.and(0x7FFF).lanewise(VectorOperators.LSHL, 13)
+            .reinterpretAsFloats()
+            .mul(0x1p112f);
+        return magnitude.reinterpretAsInts().or(sign).reinterpretAsFloats();
+    }
+
+    private static float vectorDot(F16FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        int j = 0;
+        for (; j < upperBound; j += F_SPECIES.length()) {
+            var halfs = ShortVector.fromMemorySegment(S_HALF_SPECIES, thiz.memorySegment, (long) (thisOffset + j) * Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+            val = toFloatVector(halfs).fma(that.getFloatVector(F_SPECIES, thatOffset + j), val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+}
@@ -1,6 +1,11 @@
 package com.llama4j.core;
 
+import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.Vector;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
 import org.jetbrains.annotations.NotNull;
 import sun.misc.Unsafe;
@@ -20,6 +25,10 @@ public abstract class FloatTensor {
 
     static final boolean USE_VECTOR_API = Boolean.parseBoolean(System.getProperty("llama.VectorAPI", "true"));
 
+    // Quantize activations to Q8_0 before multiplying them with Q4_0/Q8_0 weights, dot products are then computed
+    // with integer arithmetic and one float multiply per block. Requires the Vector API.
+    static final boolean QUANTIZE_ACTIVATIONS = USE_VECTOR_API && Boolean.parseBoolean(System.getProperty("llama.QuantizeActivations", "false"));
+
     // static final ValueLayout.OfFloat JAVA_FLOAT_LE = ValueLayout.JAVA_FLOAT.withOrder(ByteOrder.LITTLE_ENDIAN);
     // static final ValueLayout.OfShort JAVA_SHORT_LE = ValueLayout.JAVA_SHORT.withOrder(ByteOrder.LITTLE_ENDIAN);
 
@@ -46,9 +55,31 @@ public abstract class FloatTensor {
         return UNSAFE.getByte(memorySegment.address() + offset);
     }
 
+    static float readFloat(@NotNull MemorySegment memorySegment, long offset) {
+        // The MemorySegment.get* methods should be used instead.
+        return UNSAFE.getFloat(memorySegment.address() + offset);
+    }
+
     // Preferred vector size for the fast multiplication routines.
-    // (Apple Silicon) NEON only supports up-to 128bit vectors.
-    static final VectorSpecies<Float> F_SPECIES = FloatVector.SPECIES_PREFERRED.vectorBitSize() == 128 ? FloatVector.SPECIES_128 : FloatVector.SPECIES_256;
+    // (Apple Silicon) NEON only supports up-to 128bit vectors, AVX-512 machines get 512bit vectors.
+    static final VectorSpecies<Float> F_SPECIES = switch (FloatVector.SPECIES_PREFERRED.vectorBitSize()) {
+        case 512 -> FloatVector.SPECIES_512;
+        case 128 -> FloatVector.SPECIES_128;
+        default -> FloatVector.SPECIES_256;
+    };
+
+    // Species for the integer dot products: bytes are widened to shorts and the products summed into ints,
+    // ints have as many lanes as F_I_SPECIES so that the sums of a block can be converted with a single cast.
+    // Capped at 256 bits, wider vectors of shorts would not fit in a half Q4_0 block.
+    static final VectorShape I_SHAPE = F_SPECIES.vectorBitSize() > 256 ? VectorShape.S_256_BIT : F_SPECIES.vectorShape();
+    static final VectorSpecies<Float> F_I_SPECIES = FloatVector.SPECIES_PREFERRED.withShape(I_SHAPE);
+    static final VectorSpecies<Integer> I_SPECIES = IntVector.SPECIES_PREFERRED.withShape(I_SHAPE);
+    static final VectorSpecies<Short> S_SPECIES = ShortVector.SPECIES_PREFERRED.withShape(I_SHAPE);
+    static final VectorSpecies<Byte> B_HALF_SPECIES = ByteVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(I_SHAPE.vectorBitSize() / 2));
+
+    // 16-bit floats (F16, BF16) with as many lanes as F_SPECIES, widened to ints to rebuild the float bits.
+    static final VectorSpecies<Short> S_HALF_SPECIES = ShortVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(F_SPECIES.vectorBitSize() / 2));
+    static final VectorSpecies<Integer> I_BITS_SPECIES = IntVector.SPECIES_PREFERRED.withShape(F_SPECIES.vectorShape());
 
     abstract int size();
 
@@ -78,7 +109,153 @@ public abstract class FloatTensor {
     }
 
     void matmul(FloatTensor that, FloatTensor out, int dim0, int dim1) {
-        Parallel.parallelFor(0, dim0, i -> out.setFloat(i, dot(i * dim1, that, 0, dim1)));
+        FloatTensor input = matmulInput(that, dim1);
+        Parallel.parallelFor(0, dim0, Parallel.MATMUL_GRAIN, i -> out.setFloat(i, dot(i * dim1, input, 0, dim1)));
+    }
+
+    /**
+     * Returns the representation of the matmul input {@code that} (the first {@code size} elements) best suited
+     * to {@link #dot(int, FloatTensor, int, int)} against this tensor, by default {@code that} itself.
+     */
+    FloatTensor matmulInput(FloatTensor that, int size) {
+        return that;
+    }
+
+    /**
+     * Batched matmul, {@code that} holds {@code batchSize} input vectors of {@code dim1} elements back to back
+     * and {@code out} receives {@code batchSize} output vectors of {@code dim0} elements.
+     * <p>
+     * Every row of this tensor is applied to the whole batch before moving on to the next row, so the weights
+     * are streamed from memory once per batch instead of once per vector.
+     */
+    void matmul(int batchSize, FloatTensor that, FloatTensor out, int dim0, int dim1) {
+        FloatTensor input = matmulInput(that, batchSize * dim1);
+        Parallel.parallelFor(0, dim0, Parallel.MATMUL_GRAIN, i -> dotBatch(i, batchSize, input, out, dim0, dim1));
+    }
+
+    /**
+     * Dot products of the given row of this tensor against the {@code batchSize} vectors of {@code input},
+     * results are stored at {@code out[b * dim0 + row]}.
+     */
+    void dotBatch(int row, int batchSize, FloatTensor input, FloatTensor out, int dim0, int dim1) {
+        for (int b = 0; b < batchSize; ++b) {
+            out.setFloat(b * dim0 + row, dot(row * dim1, input, b * dim1, dim1));
+        }
+    }
+
+    /**
+     * Fused matmul of several matrices sharing the same input, e.g. the query, key and value projections.
+     * <p>
+     * All the rows are computed in a single parallel sweep, {@code weights[k]} has {@code dim0s[k]} rows and
+     * its output goes to {@code outs[k]}.
+     */
+    static void fusedMatmul(FloatTensor that, FloatTensor[] weights, FloatTensor[] outs, int[] dim0s, int dim1) {
+        fusedMatmul(1, that, weights, outs, dim0s, dim1);
+    }
+
+    static void fusedMatmul(int batchSize, FloatTensor that, FloatTensor[] weights, FloatTensor[] outs, int[] dim0s, int dim1) {
+        FloatTensor[] inputs = matmulInputs(that, batchSize * dim1, weights);
+        int[] rowOffsets = new int[weights.length + 1];
+        for (int k = 0; k < weights.length; ++k) {
+            rowOffsets[k + 1] = rowOffsets[k] + dim0s[k];
+        }
+        Parallel.parallelFor(0, rowOffsets[weights.length], Parallel.MATMUL_GRAIN, i -> {
+            int k = 0;
+            while (i >= rowOffsets[k + 1]) {
+                ++k;
+            }
+            weights[k].dotBatch(i - rowOffsets[k], batchSize, inputs[k], outs[k], dim0s[k], dim1);
+        });
+    }
+
+    /**
+     * Fused SwiGLU feed-forward projections, {@code out = silu(gate * that) * (up * that)}.
+     * <p>
+     * Both projections of a row are computed together in a single parallel sweep, the non-linearity is applied
+     * on the fly so the output of the up projection is never written.
+     */
+    static void fusedSwiGLU(FloatTensor gate, FloatTensor up, FloatTensor that, FloatTensor out, int dim0, int dim1) {
+        FloatTensor[] inputs = matmulInputs(that, dim1, gate, up);
+        Parallel.parallelFor(0, dim0, Parallel.MATMUL_GRAIN, i -> {
+            float g = gate.dot(i * dim1, inputs[0], 0, dim1);
+            float u = up.dot(i * dim1, inputs[1], 0, dim1);
+            out.setFloat(i, g / (float) (1.0 + Math.exp(-g)) * u);
+        });
+    }
+
+    /**
+     * Batched version of {@link #fusedSwiGLU(FloatTensor, FloatTensor, FloatTensor, FloatTensor, int, int)},
+     * {@code upOut} (batchSize, dim0) holds the up projections of the current row for the whole batch.
+     */
+    static void fusedSwiGLU(int batchSize, FloatTensor gate, FloatTensor up, FloatTensor that, FloatTensor out, FloatTensor upOut, int dim0, int dim1) {
+        FloatTensor[] inputs = matmulInputs(that, batchSize * dim1, gate, up);
+        Parallel.parallelFor(0, dim0, Parallel.MATMUL_GRAIN, i -> {
+            gate.dotBatch(i, batchSize, inputs[0], out, dim0, dim1);
+            up.dotBatch(i, batchSize, inputs[1], upOut, dim0, dim1);
+            for (int b = 0; b < batchSize; ++b) {
+                float g = out.getFloat(b * dim0 + i);
+                out.setFloat(b * dim0 + i, g / (float) (1.0 + Math.exp(-g)) * upOut.getFloat(b * dim0 + i));
+            }
+        });
+    }
+
+    // Matmul inputs for each of the given weights, prepared only once per tensor class.
+    private static FloatTensor[] matmulInputs(FloatTensor that, int size, FloatTensor... weights) {
+        FloatTensor[] inputs = new FloatTensor[weights.length];
+        for (int k = 0; k < weights.length; ++k) {
+            for (int p = 0; p < k && inputs[k] == null; ++p) {
+                if (weights[p].getClass() == weights[k].getClass()) {
+                    inputs[k] = inputs[p];
+                }
+            }
+            if (inputs[k] == null) {
+                inputs[k] = weights[k].matmulInput(that, size);
+            }
+        }
+        return inputs;
+    }
+
+    // Products of 4 consecutive F_SPECIES slices of that, starting at thatOffset, with w0 ... w3, summed lane-wise.
+    static FloatVector sumOfProducts(ArrayFloatTensor that, int thatOffset,
+                                     Vector<Float> w0, Vector<Float> w1, Vector<Float> w2, Vector<Float> w3) {
+        var sum0 = that.getFloatVector(F_SPECIES, thatOffset).mul(w0);
+        var sum1 = that.getFloatVector(F_SPECIES, thatOffset + F_SPECIES.length()).mul(w1);
+        var sum2 = that.getFloatVector(F_SPECIES, thatOffset + 2 * F_SPECIES.length()).mul(w2);
+        var sum3 = that.getFloatVector(F_SPECIES, thatOffset + 3 * F_SPECIES.length()).mul(w3);
+        return sum0.add(sum1).add(sum2).add(sum3);
+    }
+
+    // Same with 2 slices, a block of 32 weights with 512-bit vectors.
+    static FloatVector sumOfProducts(ArrayFloatTensor that, int thatOffset, Vector<Float> w0, Vector<Float> w1) {
+        var sum0 = that.getFloatVector(F_SPECIES, thatOffset).mul(w0);
+        var sum1 = that.getFloatVector(F_SPECIES, thatOffset + F_SPECIES.length()).mul(w1);
+        return sum0.add(sum1);
+    }
+
+    /**
+     * Accumulates {@code that[thatOffset ... thatOffset + 16) * (scale * q + offset)} lane-wise into {@code acc},
+     * {@code q} holds 16 signed byte quants (ByteVector.SPECIES_128).
+     * Used by the k-quantized tensors, where a scale (and offset) applies to each group of 16 or 32 weights.
+     */
+    static FloatVector fmaQuantized16(ArrayFloatTensor that, int thatOffset, ByteVector q, FloatVector scale, FloatVector offset, FloatVector acc) {
+        assert q.length() == 16;
+        for (int p = 0; p < 16 / F_SPECIES.length(); ++p) {
+            var w = ((FloatVector) q.castShape(F_SPECIES, p)).fma(scale, offset);
+            acc = that.getFloatVector(F_SPECIES, thatOffset + p * F_SPECIES.length()).fma(w, acc);
+        }
+        return acc;
+    }
+
+    /**
+     * Accumulates the products of the widened weight quants {@code w} (S_SPECIES) with the Q8_0 activation quants
+     * {@code that.quants[thatOffset ... thatOffset + S_SPECIES.length())} into the integer lanes of {@code sum}.
+     * Used by the repacked tensors, which widen each chunk of weights once for several activation vectors.
+     */
+    static IntVector sumOfIntegerProducts(Vector<Short> w, Q8_0ArrayFloatTensor that, int thatOffset, IntVector sum) {
+        var aQuants = ByteVector.fromArray(B_HALF_SPECIES, that.quants, thatOffset);
+        // |int8 * int8| <= 128 * 128, no overflow in 16 bits
+        var products = w.mul(aQuants.castShape(S_SPECIES, 0));
+        return sum.add(products.castShape(I_SPECIES, 0)).add(products.castShape(I_SPECIES, 1));
     }
 
     @FunctionalInterface
@@ -174,20 +351,41 @@ public abstract class FloatTensor {
         return mapInPlace(thisOffset, size, f -> f / value);
     }
 
+    FloatTensor multiplyInPlace(int thisOffset, int size, float value) {
+        return mapInPlace(thisOffset, size, f -> f * value);
+    }
+
     FloatTensor fillInPlace(int thisOffset, int size) {
         return mapInPlace(thisOffset, size, _ -> (float) 0.0);
     }
 
+    FloatTensor siluInPlace(int thisOffset, int size) {
+        // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
+        return mapInPlace(thisOffset, size, value -> value / (float) (1.0 + Math.exp(-value)));
+    }
+
+    FloatTensor scaledProductInPlace(int thisOffset, FloatTensor that, FloatTensor weight, int size, float scale) {
+        // this[thisOffset ... thisOffset + size) = weight[0 ... size) * (scale * that[thisOffset ... thisOffset + size))
+        return mapWithIndexInPlace(thisOffset, size, (value, index) -> weight.getFloat(index - thisOffset) * (scale * that.getFloat(index)));
+    }
+
     FloatTensor softmaxInPlace(int thisOffset, int size) {
         // find max value (for numerical stability)
         float maxVal = max(thisOffset, size);
         // exp and sum
-        mapInPlace(thisOffset, size, f -> (float) Math.exp(f - maxVal));
-        float sum = sum(thisOffset, size);
+        float sum = expInPlace(thisOffset, size, maxVal);
         // normalize
         return divideInPlace(thisOffset, size, sum);
     }
 
+    /**
+     * Replaces every value {@code f} by {@code exp(f - maxValue)} and returns their sum.
+     */
+    float expInPlace(int thisOffset, int size, float maxValue) {
+        mapInPlace(thisOffset, size, f -> (float) Math.exp(f - maxValue));
+        return sum(thisOffset, size);
+    }
+
     void saxpyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size, float a) {
         // this[thatOffset ... thatOffset + size) = a * that[thatOffset ... thatOffset + size) + this[thisOffset ... thisOffset + size)
         for (int i = 0; i < size; ++i) {
@@ -18,9 +18,21 @@ enum GGMLType {
     Q5_K(2 * Float16.BYTES + ((GGMLType.QK_K / 16) / 8 * 6) + GGMLType.QK_K / 8 + GGMLType.QK_K / 2, GGMLType.QK_K),
     Q6_K(GGMLType.QK_K / 2 + GGMLType.QK_K / 4 + GGMLType.QK_K / 16 + Float16.BYTES, GGMLType.QK_K),
     Q8_K(Integer.MAX_VALUE),
+    IQ2_XXS(Integer.MAX_VALUE),
+    IQ2_XS(Integer.MAX_VALUE),
+    IQ3_XXS(Integer.MAX_VALUE),
+    IQ1_S(Integer.MAX_VALUE),
+    IQ4_NL(Integer.MAX_VALUE),
+    IQ3_S(Integer.MAX_VALUE),
+    IQ2_S(Integer.MAX_VALUE),
+    IQ4_XS(Integer.MAX_VALUE),
     I8(Byte.BYTES),
     I16(Short.BYTES),
-    I32(Integer.BYTES);
+    I32(Integer.BYTES),
+    I64(Long.BYTES),
+    F64(Double.BYTES),
+    IQ1_M(Integer.MAX_VALUE),
+    BF16(Short.BYTES);
 
     private static final GGMLType[] VALUES = values();
 
@@ -36,6 +48,7 @@ enum GGMLType {
         return blockSize;
     }
 
+    // The ordinals match the ggml type ids.
     public static GGMLType fromId(int id) {
         return VALUES[id];
     }
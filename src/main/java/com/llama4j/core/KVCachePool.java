@@ -0,0 +1,101 @@
+package com.llama4j.core;
+
+import java.util.ArrayDeque;
+import java.util.stream.Stream;
+
+/**
+ * Paged KV cache shared by all the {@link Llama.State states} of a model.
+ * <p>
+ * Keys and values are stored in fixed-size blocks of {@code llama.KVBlockSize} tokens (all layers), handed out on demand
+ * as a sequence grows and returned to the pool when its state is closed, so the memory used follows the number of tokens
+ * actually in flight rather than the context length. Released blocks are kept and reused, up to
+ * {@code llama.KVCacheFreeBlocks} of them, the ones above this watermark are dropped so the memory of a load peak is
+ * given back to the GC. {@code llama.KVCacheBlocks} bounds the number of blocks the pool can have at once.
+ * <p>
+ * Blocks are reference counted, a full block can be shared by several sequences and the {@link PrefixCache}.
+ */
+final class KVCachePool {
+
+    static final int BLOCK_SIZE = Integer.getInteger("llama.KVBlockSize", 64);
+    static final int MAX_BLOCKS = Integer.getInteger("llama.KVCacheBlocks", Integer.MAX_VALUE);
+    static final int MAX_FREE_BLOCKS = Integer.getInteger("llama.KVCacheFreeBlocks", 32);
+
+    // Precision of the KV cache: F32, F16 or Q8_0 (blocks of 32 within each head).
+    static final GGMLType TYPE = GGMLType.valueOf(System.getProperty("llama.KVCacheType", "F32"));
+
+    /**
+     * Keys and values of {@link #BLOCK_SIZE} consecutive tokens, {@code (n_layer, block_size, kv_dim)}.
+     */
+    static final class Block {
+        final FloatTensor[] keys;
+        final FloatTensor[] values;
+        private int references;
+
+        private Block(FloatTensor[] keys, FloatTensor[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    private final int numberOfLayers;
+    private final int kvDim;
+    private final ArrayDeque<Block> free = new ArrayDeque<>();
+    private int created;
+
+    KVCachePool(Llama.Configuration config) {
+        if (TYPE != GGMLType.F32 && TYPE != GGMLType.F16 && TYPE != GGMLType.Q8_0) {
+            throw new IllegalArgumentException("Unsupported KV cache type: " + TYPE);
+        }
+        if (TYPE == GGMLType.Q8_0 && config.headSize % Q8_0ArrayFloatTensor.BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Q8_0 KV cache requires a head size multiple of " + Q8_0ArrayFloatTensor.BLOCK_SIZE + ", got " + config.headSize);
+        }
+        this.numberOfLayers = config.numberOfLayers;
+        this.kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+    }
+
+    synchronized Block allocate() {
+        Block block = free.poll();
+        if (block == null) {
+            if (created == MAX_BLOCKS) {
+                throw new IllegalStateException("KV cache exhausted, all " + MAX_BLOCKS + " blocks are in use");
+            }
+            created++;
+            block = new Block(allocateLayers(), allocateLayers());
+        }
+        block.references = 1;
+        return block;
+    }
+
+    synchronized void retain(Block block) {
+        assert block.references > 0;
+        block.references++;
+    }
+
+    synchronized void release(Block block) {
+        assert block.references > 0;
+        if (--block.references == 0) {
+            if (free.size() < MAX_FREE_BLOCKS) {
+                free.push(block);
+            } else {
+                created--;
+            }
+        }
+    }
+
+    /**
+     * Number of blocks currently held by sequences.
+     */
+    synchronized int usedBlocks() {
+        return created - free.size();
+    }
+
+    private FloatTensor[] allocateLayers() {
+        int size = BLOCK_SIZE * kvDim;
+        return Stream.generate(() -> switch (TYPE) {
+            case F32 -> ArrayFloatTensor.allocate(size);
+            case F16 -> new F16ArrayFloatTensor(size);
+            case Q8_0 -> new Q8_0ArrayFloatTensor(size);
+            default -> throw new IllegalStateException();
+        }).limit(numberOfLayers).toArray(FloatTensor[]::new);
+    }
+}
@@ -1,19 +1,53 @@
 package com.llama4j.core;
 
 import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.function.IntConsumer;
-import java.util.stream.Stream;
 
-public record Llama(Configuration configuration, Tokenizer tokenizer, Weights weights) {
+public record Llama(Configuration configuration, Tokenizer tokenizer, Weights weights, Parallel parallel,
+                    KVCachePool kvCachePool, PrefixCache prefixCache) implements AutoCloseable {
 
+    public Llama(Configuration configuration, Tokenizer tokenizer, Weights weights) {
+        this(configuration, tokenizer, weights, Parallel.forNewModel());
+    }
+
+    public Llama(Configuration configuration, Tokenizer tokenizer, Weights weights, Parallel parallel) {
+        this(configuration, tokenizer, weights, parallel, new KVCachePool(configuration));
+    }
+
+    private Llama(Configuration configuration, Tokenizer tokenizer, Weights weights, Parallel parallel, KVCachePool kvCachePool) {
+        this(configuration, tokenizer, weights, parallel, kvCachePool, new PrefixCache(kvCachePool));
+    }
+
+    /**
+     * Cache of the encoded chunks of the tokenizer, with its hit and miss counters.
+     */
+    public ChunkCache tokenizerCache() {
+        return tokenizer.chunkCache();
+    }
+
+    /**
+     * Shuts down the compute pool of the model if it has its own, see {@code llama.ComputePoolPerModel}.
+     */
+    @Override
+    public void close() {
+        parallel.close();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(Llama.class);
+
+    // Maximum number of prompt tokens forwarded together by forwardBatch, and of sequences decoded together by forwardDecode.
+    static final int BATCH_SIZE = Integer.getInteger("llama.BatchSize", 32);
 
     public @NotNull State createNewState() {
-        State state = new State(configuration());
+        State state = new State(configuration(), kvCachePool());
         state.latestToken = tokenizer.getSpecialTokens().get("<|begin_of_text|>");
         return state;
     }
@@ -55,26 +89,26 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
         // token embedding table
         public final FloatTensor token_embedding_table; // (vocab_size, dim)
         // weights for rmsnorms
-        public final FloatBuffer[] rms_att_weight; // (layer, dim) rmsnorm weights
+        public final FloatTensor[] rms_att_weight; // (layer, dim) rmsnorm weights
         // weights for matmuls
         public final FloatTensor[] wq; // (layer, n_heads * head_size)
         public final FloatTensor[] wk; // (layer, n_kv_heads, head_size)
         public final FloatTensor[] wv; // (layer, n_kv_heads * head_size)
         public final FloatTensor[] wo; // (layer, n_heads * head_size, dim)
-        public final FloatBuffer[] rms_ffn_weight; // (layer, dim)
+        public final FloatTensor[] rms_ffn_weight; // (layer, dim)
         // weights for ffn
         public final FloatTensor[] w1; // (layer, hidden_dim, dim)
         public final FloatTensor[] w2; // (layer, dim, hidden_dim)
         public final FloatTensor[] w3; // (layer, hidden_dim, dim)
         // public final rmsnorm
-        public final FloatBuffer rms_final_weight; // (dim,)
+        public final FloatTensor rms_final_weight; // (dim,)
         // freq_cis for RoPE relatively positional embeddings
         public final FloatBuffer freq_cis_real; // (seq_len, head_size/2)
         public final FloatBuffer freq_cis_imag; // (seq_len, head_size/2)
         // (optional) classifier weights for the logits, on the last layer
         public final FloatTensor wcls; // (vocab_size, dim)
 
-        public Weights(FloatTensor token_embedding_table, FloatBuffer[] rms_att_weight, FloatTensor[] wq, FloatTensor[] wk, FloatTensor[] wv, FloatTensor[] wo, FloatBuffer[] rms_ffn_weight, FloatTensor[] w1, FloatTensor[] w2, FloatTensor[] w3, FloatBuffer rms_final_weight, FloatBuffer freq_cis_real, FloatBuffer freq_cis_imag, FloatTensor wcls) {
+        public Weights(FloatTensor token_embedding_table, FloatTensor[] rms_att_weight, FloatTensor[] wq, FloatTensor[] wk, FloatTensor[] wv, FloatTensor[] wo, FloatTensor[] rms_ffn_weight, FloatTensor[] w1, FloatTensor[] w2, FloatTensor[] w3, FloatTensor rms_final_weight, FloatBuffer freq_cis_real, FloatBuffer freq_cis_imag, FloatTensor wcls) {
             this.token_embedding_table = token_embedding_table;
             this.rms_att_weight = rms_att_weight;
             this.wq = wq;
@@ -92,54 +126,199 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
         }
     }
 
-    public static final class State {
+    /**
+     * Activations and KV cache of a sequence, the KV cache blocks are taken from the model's {@link KVCachePool} as the
+     * sequence grows and given back by {@link #close()}.
+     */
+    public static final class State implements AutoCloseable {
 
         // current wave of activations
         public final FloatTensor x; // activation at current time stamp (dim,)
         public final FloatTensor xb; // same, but inside a residual branch (dim,)
         public final FloatTensor xb2; // an additional buffer just for convenience (dim,)
         public final FloatTensor hb; // buffer for hidden dimension in the ffn (hidden_dim,)
-        public final FloatTensor hb2; // buffer for hidden dimension in the ffn (hidden_dim,)
         public final FloatTensor q; // query (dim,)
         public final FloatTensor k; // key (dim,)
         public final FloatTensor v; // value (dim,)
-        public final FloatTensor att; // buffer for scores/attention values (n_heads, seq_len)
         public final FloatTensor logits; // output logits
-        // kv cache
-        public final FloatTensor[] keyCache;   // (n_layer, seq_len, kv_dim)
-        public final FloatTensor[] valueCache; // (n_layer, seq_len, kv_dim)
+        final FloatTensor attentionScores; // (n_heads, attention_tile), scores of the current tile of each head
+        // kv cache, block i holds the keys and values of positions [i * block_size, (i + 1) * block_size)
+        final KVCachePool kvCachePool;
+        final List<KVCachePool.Block> blockTable = new ArrayList<>();
+        int length; // number of positions stored in the kv cache
+
+        // batched prompt ingestion, one row per token of the chunk
+        public final int batchSize;
+        public final FloatTensor xBatch; // (batch_size, dim)
+        public final FloatTensor xbBatch; // (batch_size, dim)
+        public final FloatTensor xb2Batch; // (batch_size, dim)
+        public final FloatTensor hbBatch; // (batch_size, hidden_dim)
+        public final FloatTensor hb2Batch; // (batch_size, hidden_dim)
+        public final FloatTensor qBatch; // (batch_size, dim)
+        public final FloatTensor kBatch; // (batch_size, kv_dim)
+        public final FloatTensor vBatch; // (batch_size, kv_dim)
 
         public int latestToken;
 
-        State(Configuration config) {
+        State(Configuration config, KVCachePool kvCachePool) {
             this.x = ArrayFloatTensor.allocate(config.dim);
             this.xb = ArrayFloatTensor.allocate(config.dim);
             this.xb2 = ArrayFloatTensor.allocate(config.dim);
             this.hb = ArrayFloatTensor.allocate(config.hiddenDim);
-            this.hb2 = ArrayFloatTensor.allocate(config.hiddenDim);
             this.q = ArrayFloatTensor.allocate(config.dim);
             this.k = ArrayFloatTensor.allocate(config.dim);
             this.v = ArrayFloatTensor.allocate(config.dim);
-            this.att = ArrayFloatTensor.allocate(config.numberOfHeads, config.contextLength);
             this.logits = ArrayFloatTensor.allocate(config.vocabularySize);
+            this.attentionScores = ArrayFloatTensor.allocate(config.numberOfHeads, ATTENTION_TILE);
             int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
-            this.keyCache = Stream.generate(() -> ArrayFloatTensor.allocate(config.contextLength, kvDim)).limit(config.numberOfLayers).toArray(FloatTensor[]::new);
-            this.valueCache = Stream.generate(() -> ArrayFloatTensor.allocate(config.contextLength, kvDim)).limit(config.numberOfLayers).toArray(FloatTensor[]::new);
+            this.kvCachePool = kvCachePool;
+            this.batchSize = BATCH_SIZE;
+            this.xBatch = ArrayFloatTensor.allocate(batchSize, config.dim);
+            this.xbBatch = ArrayFloatTensor.allocate(batchSize, config.dim);
+            this.xb2Batch = ArrayFloatTensor.allocate(batchSize, config.dim);
+            this.hbBatch = ArrayFloatTensor.allocate(batchSize, config.hiddenDim);
+            this.hb2Batch = ArrayFloatTensor.allocate(batchSize, config.hiddenDim);
+            this.qBatch = ArrayFloatTensor.allocate(batchSize, config.dim);
+            this.kBatch = ArrayFloatTensor.allocate(batchSize, kvDim);
+            this.vBatch = ArrayFloatTensor.allocate(batchSize, kvDim);
+        }
+
+        /**
+         * Makes sure the block table covers positions {@code [0, length)}.
+         */
+        void reserve(int length) {
+            while (blockTable.size() * KVCachePool.BLOCK_SIZE < length) {
+                blockTable.add(kvCachePool.allocate());
+            }
+        }
+
+        /**
+         * Saves the keys and values of {@code count} consecutive positions, rows {@code [row, row + count)} of {@code k} and {@code v},
+         * to the KV cache.
+         */
+        void store(int layer, FloatTensor k, FloatTensor v, int row, int position, int count, int kvDim) {
+            reserve(position + count);
+            for (int i = 0; i < count; i++) {
+                KVCachePool.Block block = blockTable.get((position + i) / KVCachePool.BLOCK_SIZE);
+                int offset = (position + i) % KVCachePool.BLOCK_SIZE * kvDim;
+                k.copyTo((row + i) * kvDim, block.keys[layer], offset, kvDim);
+                v.copyTo((row + i) * kvDim, block.values[layer], offset, kvDim);
+            }
+            length = Math.max(length, position + count);
+        }
+
+        /**
+         * Forgets the positions from {@code length} on, e.g. rejected draft tokens, they are overwritten when forwarded again.
+         */
+        void truncate(int length) {
+            this.length = Math.min(this.length, length);
+        }
+
+        /**
+         * Returns the KV cache blocks to the pool, the state can be reused from position 0, e.g. for another sequence.
+         */
+        void clear() {
+            blockTable.forEach(kvCachePool::release);
+            blockTable.clear();
+            length = 0;
+        }
+
+        /**
+         * Returns the KV cache blocks to the pool, the state must not be used afterwards.
+         */
+        @Override
+        public void close() {
+            clear();
         }
     }
 
-    static void rmsnorm(FloatTensor out, FloatTensor x, FloatBuffer weight, int size, float rmsNormEps) {
+    static void rmsnorm(FloatTensor out, FloatTensor x, FloatTensor weight, int size, float rmsNormEps) {
+        rmsnorm(out, x, 0, weight, size, rmsNormEps);
+    }
+
+    static void rmsnorm(FloatTensor out, FloatTensor x, int offset, FloatTensor weight, int size, float rmsNormEps) {
         // calculate sum of squares
-        float ss = x.reduce(0, size, 0f, (acc, xi) -> acc + xi * xi);
+        float ss = x.dot(offset, x, offset, size);
         ss /= size;
         ss += rmsNormEps;
         ss = (float) (1.0 / Math.sqrt(ss));
         // normalize and scale
-        final float finalss = ss; // for the lambda
-        out.mapWithIndexInPlace(0, size, (value, index) -> weight.get(index) * (finalss * x.getFloat(index)));
+        out.scaledProductInPlace(offset, x, weight, size, ss);
+    }
+
+    static void rope(Configuration config, Weights weights, FloatTensor q, int qOffset, FloatTensor k, int kOffset, int position) {
+        int dim = config.dim;
+        int headSize = config.headSize;
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        // RoPE relative positional encoding: complex-valued rotate q and k in each head
+        for (int i = 0; i < dim; i += 2) {
+            int head_dim = i % headSize;
+            float fcr = weights.freq_cis_real.get(position * (headSize / 2) + (head_dim / 2));
+            float fci = weights.freq_cis_imag.get(position * (headSize / 2) + (head_dim / 2));
+            int rotn = i < kvDim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
+            for (int v = 0; v < rotn; v++) {
+                FloatTensor vec = v == 0 ? q : k; // the vector to rotate (query or key)
+                int offset = v == 0 ? qOffset : kOffset;
+                float v0 = vec.getFloat(offset + i);
+                float v1 = vec.getFloat(offset + i + 1);
+                vec.setFloat(offset + i, v0 * fcr - v1 * fci);
+                vec.setFloat(offset + i + 1, v0 * fci + v1 * fcr);
+            }
+        }
+    }
+
+    // Number of timesteps whose scores are computed together by attention.
+    static final int ATTENTION_TILE = 64;
+
+    /**
+     * Attention of a single query head over the first {@code length} timesteps of the KV cache, the result is written to
+     * {@code out[outOffset ... outOffset + headSize)}.
+     * <p>
+     * Keys and values are streamed once, tile by tile following the block table, using an online softmax: a running
+     * maximum and sum of the exponentiated scores are kept, and the output accumulated so far is rescaled whenever
+     * the maximum grows. Only the scores of the current tile are buffered, in
+     * {@code scores[scoresOffset ... scoresOffset + ATTENTION_TILE)}, tiles do not cross KV cache blocks.
+     */
+    static void attention(FloatTensor q, int qOffset, List<KVCachePool.Block> blockTable, int layer, int kvOffset, int kvDim,
+                          int length, int headSize, FloatTensor out, int outOffset, FloatTensor scores, int scoresOffset) {
+        float sqrtHeadSize = (float) Math.sqrt(headSize);
+        float maxScore = Float.NEGATIVE_INFINITY;
+        float sum = 0f;
+        out.fillInPlace(outOffset, headSize);
+        for (int tileStart = 0; tileStart < length; ) {
+            int withinBlock = tileStart % KVCachePool.BLOCK_SIZE;
+            KVCachePool.Block block = blockTable.get(tileStart / KVCachePool.BLOCK_SIZE);
+            FloatTensor keys = block.keys[layer];
+            FloatTensor values = block.values[layer];
+            int tileSize = Math.min(Math.min(ATTENTION_TILE, length - tileStart), KVCachePool.BLOCK_SIZE - withinBlock);
+            for (int t = 0; t < tileSize; t++) {
+                // calculate the attention score as the dot product of q and k
+                float score = keys.dot((withinBlock + t) * kvDim + kvOffset, q, qOffset, headSize);
+                scores.setFloat(scoresOffset + t, score / sqrtHeadSize);
+            }
+            float tileMax = scores.max(scoresOffset, tileSize);
+            if (tileMax > maxScore) {
+                // rescale what has been accumulated so far to the new maximum, (a no-op on the first tile)
+                float correction = (float) Math.exp(maxScore - tileMax);
+                out.multiplyInPlace(outOffset, headSize, correction);
+                sum *= correction;
+                maxScore = tileMax;
+            }
+            sum += scores.expInPlace(scoresOffset, tileSize, maxScore);
+            // accumulate the weighted values
+            for (int t = 0; t < tileSize; t++) {
+                out.saxpyInPlace(outOffset, values, (withinBlock + t) * kvDim + kvOffset, headSize, scores.getFloat(scoresOffset + t));
+            }
+            tileStart += tileSize;
+        }
+        out.divideInPlace(outOffset, headSize, sum);
     }
 
     static FloatTensor forward(Llama model, State state, int token, int position) {
+        return model.parallel().call(() -> forwardToken(model, state, token, position));
+    }
+
+    private static FloatTensor forwardToken(Llama model, State state, int token, int position) {
         // a few convenience variables
         Configuration config = model.configuration();
         Weights weights = model.weights();
@@ -147,7 +326,6 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
         int headSize = config.headSize;
         int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
         int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads; // integer multiplier of the kv sharing in multiquery
-        float sqrtHeadSize = (float) Math.sqrt(headSize);
 
         // copy the token embedding into x
         weights.token_embedding_table.copyTo(token * dim, state.x, 0, dim);
@@ -157,73 +335,24 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
             // attention rmsnorm
             rmsnorm(state.xb, state.x, weights.rms_att_weight[l], dim, config.rmsNormEps);
 
-            // qkv matmuls for this position
-            weights.wq[l].matmul(state.xb, state.q, dim, dim);
-            weights.wk[l].matmul(state.xb, state.k, kvDim, dim);
-            weights.wv[l].matmul(state.xb, state.v, kvDim, dim);
-
-            // RoPE relative positional encoding: complex-valued rotate q and k in each head
-            for (int i = 0; i < dim; i += 2) {
-                int head_dim = i % headSize;
-                float fcr = weights.freq_cis_real.get(position * (headSize / 2) + (head_dim / 2));
-                float fci = weights.freq_cis_imag.get(position * (headSize / 2) + (head_dim / 2));
-                int rotn = i < kvDim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
-                for (int v = 0; v < rotn; v++) {
-                    FloatTensor vec = v == 0 ? state.q : state.k; // the vector to rotate (query or key)
-                    float v0 = vec.getFloat(i);
-                    float v1 = vec.getFloat(i + 1);
-                    vec.setFloat(i, v0 * fcr - v1 * fci);
-                    vec.setFloat(i + 1, v0 * fci + v1 * fcr);
-                }
-            }
+            // qkv matmuls for this position, fused in a single parallel sweep
+            FloatTensor.fusedMatmul(state.xb,
+                new FloatTensor[]{weights.wq[l], weights.wk[l], weights.wv[l]},
+                new FloatTensor[]{state.q, state.k, state.v},
+                new int[]{dim, kvDim, kvDim}, dim);
+
+            rope(config, weights, state.q, 0, state.k, 0, position);
 
             // save key,value at this time step (position) to our kv cache
-            //int loff = l * config.seq_len * kvDim; // kv cache layer offset for convenience
-            state.k.copyTo(0, state.keyCache[l], position * kvDim, kvDim);
-            state.v.copyTo(0, state.valueCache[l], position * kvDim, kvDim);
+            state.store(l, state.k, state.v, 0, position, 1, kvDim);
 
             int curLayer = l;
 
-            // multihead attention. iterate over all heads
-            Parallel.parallelFor(0, config.numberOfHeads, h -> {
-                // get the query vector for this head
-                // float* q = s.q + h * headSize;
-                int qOffset = h * headSize;
-
-                // attention scores for this head
-                // float* att = s.att + h * config.seq_len;
-                int attOffset = h * config.contextLength;
-
-                // iterate over all timesteps, including the current one
-                for (int t = 0; t <= position; t++) {
-                    // get the key vector for this head and at this timestep
-                    // float* k = s.key_cache + loff + t * dim + h * headSize;
-                    int keyCacheOffset = /* loff + */ t * kvDim + (h / kvMul) * headSize;
-                    // calculate the attention score as the dot product of q and k
-                    float score = state.q.dot(qOffset, state.keyCache[curLayer], keyCacheOffset, headSize);
-                    score /= sqrtHeadSize;
-                    // save the score to the attention buffer
-                    state.att.setFloat(attOffset + t, score);
-                }
-
-                // softmax the scores to get attention weights, from 0..position inclusively
-                state.att.softmaxInPlace(attOffset, position + 1);
-
-                // weighted sum of the values, store back into xb
-                // float* xb = s.xb + h * headSize;
-                int xbOffset = h * headSize;
-                // memset(xb, 0, headSize * sizeof(float));
-                state.xb.fillInPlace(xbOffset, headSize);
-
-                for (int t = 0; t <= position; t++) {
-                    // get the value vector for this head and at this timestep
-                    // float* v = s.value_cache + loff + t * dim + h * headSize;
-                    int vOffset = /* loff + */ t * kvDim + (h / kvMul) * headSize;
-                    // get the attention weight for this timestep
-                    float a = state.att.getFloat(attOffset + t);
-                    // accumulate the weighted value into xb
-                    state.xb.saxpyInPlace(xbOffset, state.valueCache[curLayer], vOffset, headSize, a);
-                }
+            // multihead attention. iterate over all heads, all timesteps including the current one are attended
+            Parallel.parallelFor(0, config.numberOfHeads, Parallel.ATTENTION_GRAIN, h -> {
+                // float* q = s.q + h * headSize; float* xb = s.xb + h * headSize;
+                attention(state.q, h * headSize, state.blockTable, curLayer, (h / kvMul) * headSize,
+                    kvDim, position + 1, headSize, state.xb, h * headSize, state.attentionScores, h * ATTENTION_TILE);
             });
 
             // final matmul to get the output of the attention
@@ -236,16 +365,9 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
             rmsnorm(state.xb, state.x, weights.rms_ffn_weight[l], dim, config.rmsNormEps);
 
             // Now for FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
-            // first calculate self.w1(x) and self.w3(x)
-            weights.w1[l].matmul(state.xb, state.hb, config.hiddenDim, dim);
-            weights.w3[l].matmul(state.xb, state.hb2, config.hiddenDim, dim);
-
-            // SwiGLU non-linearity
+            // self.w1(x) and self.w3(x) are computed together, the SwiGLU non-linearity is applied on the fly
             // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
-            state.hb.mapInPlace(value -> value / (float) (1.0 + Math.exp(-value)));
-
-            // elementwise multiply with w3(x)
-            state.hb.multiplyInPlace(state.hb2);
+            FloatTensor.fusedSwiGLU(weights.w1[l], weights.w3[l], state.xb, state.hb, config.hiddenDim, dim);
 
             // final matmul to get the output of the ffn
             weights.w2[l].matmul(state.hb, state.xb, dim, config.hiddenDim);
@@ -263,6 +385,149 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
         return state.logits;
     }
 
+    /**
+     * Ingests a sequence of tokens, at consecutive positions starting at {@code startPosition}, into the KV cache.
+     * <p>
+     * Tokens are forwarded in chunks of up to {@link State#batchSize} tokens, every weight matrix is streamed once per chunk
+     * and applied to all the tokens of the chunk, attention is causal within the chunk.
+     * No logits are computed, the last token of a prompt should be forwarded with {@link #forward(Llama, State, int, int)}.
+     */
+    static void forwardBatch(Llama model, State state, int[] tokens, int startPosition) {
+        model.parallel().call(() -> {
+            for (int chunkStart = 0; chunkStart < tokens.length; chunkStart += state.batchSize) {
+                int chunkSize = Math.min(state.batchSize, tokens.length - chunkStart);
+                State[] states = new State[chunkSize];
+                int[] positions = new int[chunkSize];
+                for (int b = 0; b < chunkSize; b++) {
+                    states[b] = state;
+                    positions[b] = startPosition + chunkStart + b;
+                }
+                forwardRows(model, state, states, Arrays.copyOfRange(tokens, chunkStart, chunkStart + chunkSize), positions, null);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Same as {@link #forwardBatch(Llama, State, int[], int)} for at most {@link State#batchSize} tokens, also computing the
+     * logits of every token into {@code logits} ({@code tokens.length, vocabulary_size}), e.g. to verify draft tokens.
+     */
+    static void forwardBatch(Llama model, State state, int[] tokens, int startPosition, FloatTensor logits) {
+        assert tokens.length <= state.batchSize;
+        State[] states = new State[tokens.length];
+        int[] positions = new int[tokens.length];
+        for (int b = 0; b < tokens.length; b++) {
+            states[b] = state;
+            positions[b] = startPosition + b;
+        }
+        model.parallel().call(() -> {
+            forwardRows(model, state, states, tokens, positions, logits);
+            return null;
+        });
+    }
+
+    /**
+     * Forwards the next token of several sequences at once (continuous batching), row {@code b} is token {@code tokens[b]}
+     * of {@code states[b]} at position {@code positions[b]}. Every weight matrix is streamed once for all the rows.
+     * <p>
+     * The batch buffers of {@code workspace} are used, up to its {@link State#batchSize} rows; {@code logits}
+     * ({@code batch_size, vocabulary_size}) receives the logits of all the rows, which are also copied to each state.
+     */
+    static void forwardDecode(Llama model, State workspace, State[] states, int[] tokens, int[] positions, FloatTensor logits) {
+        model.parallel().call(() -> {
+            forwardRows(model, workspace, states, tokens, positions, logits);
+            int vocabularySize = model.configuration().vocabularySize;
+            for (int b = 0; b < tokens.length; b++) {
+                logits.copyTo(b * vocabularySize, states[b].logits, 0, vocabularySize);
+            }
+            return null;
+        });
+    }
+
+    private static void forwardRows(Llama model, State workspace, State[] states, int[] tokens, int[] positions, FloatTensor logits) {
+        // a few convenience variables
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        int dim = config.dim;
+        int hiddenDim = config.hiddenDim;
+        int headSize = config.headSize;
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads; // integer multiplier of the kv sharing in multiquery
+        int batchSize = tokens.length;
+        assert batchSize <= workspace.batchSize;
+        State state = workspace; // batch buffers
+
+        // copy the token embeddings into x, one row per token
+        for (int b = 0; b < batchSize; b++) {
+            weights.token_embedding_table.copyTo(tokens[b] * dim, state.xBatch, b * dim, dim);
+        }
+
+        // forward all the layers
+        for (int l = 0; l < config.numberOfLayers; l++) {
+            // attention rmsnorm
+            for (int b = 0; b < batchSize; b++) {
+                rmsnorm(state.xbBatch, state.xBatch, b * dim, weights.rms_att_weight[l], dim, config.rmsNormEps);
+            }
+
+            // qkv matmuls for all positions of the chunk, fused in a single parallel sweep
+            FloatTensor.fusedMatmul(batchSize, state.xbBatch,
+                new FloatTensor[]{weights.wq[l], weights.wk[l], weights.wv[l]},
+                new FloatTensor[]{state.qBatch, state.kBatch, state.vBatch},
+                new int[]{dim, kvDim, kvDim}, dim);
+
+            for (int b = 0; b < batchSize; b++) {
+                rope(config, weights, state.qBatch, b * dim, state.kBatch, b * kvDim, positions[b]);
+            }
+
+            // save the keys and values of every row to the kv cache of its sequence
+            for (int b = 0; b < batchSize; b++) {
+                states[b].store(l, state.kBatch, state.vBatch, b, positions[b], 1, kvDim);
+            }
+
+            int curLayer = l;
+
+            // multihead attention. iterate over all heads, causal attention up to and including the token of each row
+            Parallel.parallelFor(0, config.numberOfHeads, Parallel.ATTENTION_GRAIN, h -> {
+                for (int b = 0; b < batchSize; b++) {
+                    attention(state.qBatch, b * dim + h * headSize, states[b].blockTable, curLayer, (h / kvMul) * headSize,
+                        kvDim, positions[b] + 1, headSize, state.xbBatch, b * dim + h * headSize, state.attentionScores, h * ATTENTION_TILE);
+                }
+            });
+
+            // final matmul to get the output of the attention
+            weights.wo[l].matmul(batchSize, state.xbBatch, state.xb2Batch, dim, dim);
+
+            // residual connection back into x
+            state.xBatch.addInPlace(state.xb2Batch, batchSize * dim);
+
+            // ffn rmsnorm
+            for (int b = 0; b < batchSize; b++) {
+                rmsnorm(state.xbBatch, state.xBatch, b * dim, weights.rms_ffn_weight[l], dim, config.rmsNormEps);
+            }
+
+            // self.w2(F.silu(self.w1(x)) * self.w3(x)) for all positions of the chunk, w1 and w3 fused with SwiGLU
+            FloatTensor.fusedSwiGLU(batchSize, weights.w1[l], weights.w3[l], state.xbBatch, state.hbBatch, state.hb2Batch, hiddenDim, dim);
+
+            // final matmul to get the output of the ffn
+            weights.w2[l].matmul(batchSize, state.hbBatch, state.xbBatch, dim, hiddenDim);
+
+            // residual connection
+            state.xBatch.addInPlace(state.xbBatch, batchSize * dim);
+        }
+
+        if (logits == null) {
+            return;
+        }
+
+        // final rmsnorm
+        for (int b = 0; b < batchSize; b++) {
+            rmsnorm(state.xBatch, state.xBatch, b * dim, weights.rms_final_weight, dim, config.rmsNormEps);
+        }
+
+        // classifier into logits
+        weights.wcls.matmul(batchSize, state.xBatch, logits, config.vocabularySize, dim);
+    }
+
     /**
      * LLM generation entry point, ingest prompt tokens and generates new tokens.
      *
@@ -290,7 +555,35 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
                                                         Sampler sampler,
                                                         boolean echo,
                                                         IntConsumer onTokenGenerated) {
-        System.out.printf("Generating tokens from position %s%n", startPosition);
+        return generateTokens(model, state, startPosition, promptTokens, stopTokens, maxTokens, sampler, echo, onTokenGenerated, null, List.of());
+    }
+
+    /**
+     * Same as {@link #generateTokens(Llama, State, int, List, Set, int, Sampler, boolean, IntConsumer)}, with speculative
+     * decoding: tokens are drafted by {@code speculative}, with a draft model or by prompt lookup over the prompt and the
+     * generated tokens, and verified several at a time.
+     * <p>
+     * The decoder speculates the sequence of {@code state}: its draft KV cache is caught up with {@code history}, or
+     * restored from the prefix cache of the draft model, so a decoder used for another sequence must be reset first.
+     *
+     * @param speculative drafts the tokens, null to generate without speculation
+     * @param history     tokens at the positions before {@code startPosition}, in position order, the ones held by the KV
+     *                    cache of {@code state}; they are drafted from too
+     */
+    public static @NotNull List<Integer> generateTokens(Llama model, State state,
+                                                        int startPosition,
+                                                        List<Integer> promptTokens,
+                                                        Set<Integer> stopTokens,
+                                                        int maxTokens,
+                                                        Sampler sampler,
+                                                        boolean echo,
+                                                        IntConsumer onTokenGenerated,
+                                                        SpeculativeDecoder speculative,
+                                                        List<Integer> history) {
+        if (speculative != null && history.size() != startPosition) {
+            throw new IllegalArgumentException("History of " + history.size() + " tokens, expected " + startPosition);
+        }
+        LOG.debug("Generating tokens from position {} with {}", startPosition, state.logits);
         long startNanos = System.nanoTime();
         if (maxTokens < 0 || model.configuration().contextLength < maxTokens) {
             maxTokens = model.configuration().contextLength;
@@ -299,10 +592,57 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
         int token = state.latestToken; // BOS?
         int nextToken;
         int promptIndex = 0;
+        int position = startPosition;
+
+        // tokens in position order, for the draft model and prompt lookup
+        List<Integer> tokens = new ArrayList<>(history);
+        tokens.add(token);
+        tokens.addAll(promptTokens);
+
+        if (!promptTokens.isEmpty()) {
+            // Batched prompt ingestion: the latest token and all prompt tokens but the last one are forwarded in chunks,
+            // logits are only needed from the last prompt token on.
+            int[] batchTokens = new int[Math.min(promptTokens.size(), Math.max(0, maxTokens - startPosition))];
+            for (int i = 0; i < batchTokens.length; i++) {
+                batchTokens[i] = i == 0 ? token : promptTokens.get(i - 1);
+            }
+            forwardBatch(model, state, batchTokens, startPosition);
+            for (int i = 0; i < batchTokens.length; i++) {
+                // Force-pick token from prompt.
+                nextToken = promptTokens.get(promptIndex++);
+                if (echo) {
+                    // log prompt token (different color?)
+                    System.err.println(Tokenizer.replaceControlCharacters(model.tokenizer().decode(List.of(nextToken))));
+                }
+                state.latestToken = token = nextToken;
+            }
+            position += batchTokens.length;
+        }
 
-        System.out.printf("Using %s%n", state.logits);
+        for (; position < maxTokens; ++position) {
+            if (speculative != null && promptIndex == promptTokens.size()) {
+                List<Integer> nextTokens = speculative.step(state, tokens, 0, position, sampler, stopTokens, maxTokens - position);
+                if (nextTokens != null) {
+                    for (int generatedToken : nextTokens) {
+                        if (echo) {
+                            // log inferred token
+                            System.err.println(Tokenizer.replaceControlCharacters(model.tokenizer().decode(List.of(generatedToken))));
+                        }
+                        generatedTokens.add(generatedToken);
+                        tokens.add(generatedToken);
+                        if (onTokenGenerated != null) {
+                            onTokenGenerated.accept(generatedToken);
+                        }
+                    }
+                    state.latestToken = token = nextTokens.getLast();
+                    position += nextTokens.size() - 1;
+                    if (stopTokens.contains(token)) {
+                        break;
+                    }
+                    continue;
+                }
+            }
 
-        for (int position = startPosition; position < maxTokens; ++position) {
             forward(model, state, token, position);
 
             if (promptIndex < promptTokens.size()) {
@@ -314,11 +654,13 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
                 }
             } else {
                 nextToken = sampler.sampleToken(state.logits);
+                sampler.accept(nextToken);
                 if (echo) {
                     // log inferred token
                     System.err.println(Tokenizer.replaceControlCharacters(model.tokenizer().decode(List.of(nextToken))));
                 }
                 generatedTokens.add(nextToken);
+                tokens.add(nextToken);
                 if (onTokenGenerated != null) {
                     onTokenGenerated.accept(nextToken);
                 }
@@ -327,17 +669,17 @@ public record Llama(Configuration configuration, Tokenizer tokenizer, Weights we
                 }
             }
             state.latestToken = token = nextToken;
-
-            if (position % 50 == 0) {
-                System.out.printf("Progress: %s tokens generated%n", position);
-            }
         }
 
         long elapsedNanos = System.nanoTime() - startNanos;
         int totalTokens = promptIndex + generatedTokens.size();
 
-        String tokensMsg = String.format("%n%.2f tokens/s (%d)", totalTokens / (elapsedNanos / 1_000_000_000.0), totalTokens);
-        System.out.println(tokensMsg);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("{} tokens/s ({})", String.format("%.2f", totalTokens / (elapsedNanos / 1_000_000_000.0)), totalTokens);
+            if (speculative != null) {
+                LOG.debug("{}% draft tokens accepted", String.format("%.0f", 100 * speculative.acceptanceRate()));
+            }
+        }
 
         return generatedTokens;
     }
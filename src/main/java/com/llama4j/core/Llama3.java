@@ -3,46 +3,53 @@ package com.llama4j.core;
 import com.llama4j.dto.RequestResponse;
 
 import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.random.RandomGenerator;
 import java.util.random.RandomGeneratorFactory;
 
 public class Llama3 {
 
+    private static final Logger LOG = LoggerFactory.getLogger(Llama3.class);
 
     public static Sampler selectSampler(int vocabularySize, float temperature, float topp, long rngSeed) {
-        System.out.printf("Creating sampler with temperature=%s, topp=%s, seed=%s%n", temperature, topp, rngSeed);
+        return selectSampler(vocabularySize, new SamplerOptions(temperature, topp), rngSeed);
+    }
 
-        Sampler sampler;
-        if (temperature == 0.0f) {
-            // greedy argmax sampling: take the token with the highest probability
-            sampler = Sampler.ARGMAX;
-        } else {
-            // we sample from this distribution to get the next token
-            RandomGenerator rng = RandomGeneratorFactory.getDefault().create(rngSeed);
-            Sampler innerSampler;
-            if (topp <= 0 || topp >= 1) {
-                // simply sample from the predicted probability distribution
-                innerSampler = new CategoricalSampler(rng);
-            } else {
-                // top-p (nucleus) sampling, clamping the least likely tokens to zero
-                innerSampler = new ToppSampler(vocabularySize, topp, rng);
+    public static Sampler selectSampler(int vocabularySize, @NotNull SamplerOptions options, long rngSeed) {
+        LOG.debug("Creating sampler with {}, seed={}", options, rngSeed);
+
+        for (int token : options.logitBias().keySet()) {
+            if (token < 0 || token >= vocabularySize) {
+                throw new IllegalArgumentException("Logit bias for token " + token + " outside of the vocabulary");
             }
-            sampler = logits -> {
-                // apply the temperature to the logits
-                logits.divideInPlace(0, logits.size(), temperature);
-                // apply softmax to the logits to get the probabilities for next token
-                logits.softmaxInPlace(0, logits.size());
-                return innerSampler.sampleToken(logits);
-            };
         }
-        return sampler;
+        if (options.temperature() == 0.0f && !options.penalizesRepetitions() && options.logitBias().isEmpty()) {
+            // greedy argmax sampling: take the token with the highest probability
+            return Sampler.ARGMAX;
+        }
+        // penalties and bias, top-k, min-p, temperature, top-p then sample from the resulting distribution
+        RandomGenerator rng = RandomGeneratorFactory.getDefault().create(rngSeed);
+        return new SamplerChain(options, rng);
     }
 
     public static void runInteractive(@NotNull Llama model, Sampler sampler, @NotNull Options options) {
+        runInteractive(model, sampler, options, null);
+    }
+
+    /**
+     * Runs an interactive conversation on the console, its responses are decoded speculatively by {@code speculative},
+     * null to generate without speculation.
+     */
+    public static void runInteractive(@NotNull Llama model, Sampler sampler, @NotNull Options options, SpeculativeDecoder speculative) {
         Llama.State state = null;
+        List<Integer> history = new ArrayList<>(); // tokens in position order, held by the KV cache of the state
         List<Integer> conversationTokens = new ArrayList<>();
         ChatFormat chatFormat = new ChatFormat(model.tokenizer());
         conversationTokens.add(chatFormat.beginOfText);
@@ -63,13 +70,22 @@ public class Llama3 {
             conversationTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, userText)));
             conversationTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
             Set<Integer> stopTokens = chatFormat.getStopTokens();
-            List<Integer> responseTokens = Llama.generateTokens(model, state, startPosition, conversationTokens.subList(startPosition, conversationTokens.size()), stopTokens, options.maxTokens(), sampler, options.echo(), token -> {
+            StreamingDecoder decoder = new StreamingDecoder(model.tokenizer());
+            List<Integer> promptTokens = conversationTokens.subList(startPosition, conversationTokens.size());
+            int latestToken = state.latestToken;
+            List<Integer> responseTokens = Llama.generateTokens(model, state, startPosition, promptTokens, stopTokens, options.maxTokens(), sampler, options.echo(), token -> {
                 if (options.stream()) {
-                    if (model.tokenizer().isNotSpecialToken(token)) {
-                        System.out.println(model.tokenizer().decode(List.of(token)));
+                    // the bytes held back before a special token are printed, not the special token
+                    String text = model.tokenizer().isNotSpecialToken(token) ? decoder.decode(token) : decoder.flush();
+                    if (!text.isEmpty()) {
+                        System.out.println(text);
                     }
                 }
-            });
+            }, speculative, history);
+            // the latest token of the response is forwarded with the next turn
+            history.add(latestToken);
+            history.addAll(promptTokens);
+            history.addAll(responseTokens.subList(0, Math.max(0, responseTokens.size() - 1)));
             // Include stop token in the prompt history, but not in the response displayed to the user.
             conversationTokens.addAll(responseTokens);
             startPosition = conversationTokens.size();
@@ -87,6 +103,12 @@ public class Llama3 {
                 break;
             }
         }
+        if (state != null) {
+            state.close();
+        }
+        if (speculative != null) {
+            speculative.reset();
+        }
     }
 
     /**
@@ -99,43 +121,202 @@ public class Llama3 {
     public static @NotNull RequestResponse runInstructOnce(@NotNull Llama model,
                                                   Sampler sampler,
                                                   @NotNull Options options) {
-        System.out.println("Running instruct once");
+        return runInstructOnce(model, sampler, options, null);
+    }
+
+    /**
+     * Run instruct once, the response is decoded speculatively.
+     *
+     * @param model       the Llama model
+     * @param sampler     the sampler
+     * @param options     the options
+     * @param speculative drafts the tokens of the response, null to generate without speculation
+     */
+    public static @NotNull RequestResponse runInstructOnce(@NotNull Llama model,
+                                                  Sampler sampler,
+                                                  @NotNull Options options,
+                                                  SpeculativeDecoder speculative) {
         StringBuffer buffer = new StringBuffer();
-        Llama.State state = model.createNewState();
         ChatFormat chatFormat = new ChatFormat(model.tokenizer());
+        List<Integer> promptTokens = instructPrompt(chatFormat, options);
 
-        List<Integer> promptTokens = new ArrayList<>();
-        promptTokens.add(chatFormat.beginOfText);
-        if (options.systemPrompt() != null) {
-            promptTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.SYSTEM, options.systemPrompt())));
+        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        StreamingDecoder decoder = new StreamingDecoder(model.tokenizer());
+        List<Integer> responseTokens;
+        int cachedTokens;
+        try (Llama.State state = model.createNewState()) {
+            // tokens in position order: the latest token of the fresh state, then the prompt
+            List<Integer> sequence = new ArrayList<>();
+            sequence.add(state.latestToken);
+            sequence.addAll(promptTokens);
+            // resume after the longest cached prefix, the last prompt token is always forwarded to get the logits
+            cachedTokens = model.prefixCache().restore(state, sequence, sequence.size() - 1);
+            state.latestToken = sequence.get(cachedTokens);
+            responseTokens = Llama.generateTokens(model, state, cachedTokens, sequence.subList(cachedTokens + 1, sequence.size()), stopTokens, options.maxTokens(), sampler, options.echo(),
+                appendingTo(buffer, decoder, model, null), speculative, sequence.subList(0, cachedTokens));
+            sequence.addAll(responseTokens);
+            model.prefixCache().insert(state, sequence);
+            if (speculative != null) {
+                speculative.reset(sequence);
+            }
         }
-        promptTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, options.prompt())));
-        promptTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+        flushTo(buffer, decoder, null);
+
+        String finishReason = "length";
+        if (!responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast())) {
+            responseTokens.removeLast();
+            finishReason = "stop";
+        }
+
+        return new RequestResponse(responseTokens.size(), buffer.toString(), cachedTokens, finishReason);
+    }
+
+    /**
+     * Run instruct once, generation is batched with the other requests of the scheduler.
+     *
+     * @param scheduler        the scheduler of the Llama model
+     * @param model            the Llama model
+     * @param sampler          the sampler
+     * @param options          the options
+     * @param onTextGenerated  called on the scheduler thread with the text of every generated token, except special ones, may be null
+     * @return the response, completed when the generation ends
+     */
+    public static @NotNull CompletableFuture<RequestResponse> submitInstructOnce(@NotNull BatchScheduler scheduler,
+                                                                                @NotNull Llama model,
+                                                                                Sampler sampler,
+                                                                                @NotNull Options options,
+                                                                                Consumer<String> onTextGenerated) {
+        StringBuffer buffer = new StringBuffer();
+        ChatFormat chatFormat = new ChatFormat(model.tokenizer());
+        List<Integer> promptTokens = instructPrompt(chatFormat, options);
+
+        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        StreamingDecoder decoder = new StreamingDecoder(model.tokenizer());
+        return scheduler.submit(promptTokens, stopTokens, options.maxTokens(), sampler, appendingTo(buffer, decoder, model, onTextGenerated))
+            .thenApply(result -> requestResponse(result, flushTo(buffer, decoder, onTextGenerated), stopTokens));
+    }
+
+    /**
+     * Runs one turn of a server-side conversation: the first turn ingests the system and user prompts, the next ones
+     * only the new user message, on top of the KV cache kept by the session.
+     *
+     * @param scheduler        the scheduler of the Llama model
+     * @param model            the Llama model
+     * @param sampler          the sampler
+     * @param options          the options, the system prompt is only used by the first turn, max tokens limits the tokens
+     *                         generated by this turn
+     * @param session          the conversation, acquired by the caller and not to be released before the returned future completes
+     * @param onTextGenerated  called on the scheduler thread with the text of every generated token, except special ones, may be null
+     * @return the response, completed when the generation ends and the session history is updated
+     * @throws IllegalArgumentException if the turn does not fit in the context length, the session is left unchanged
+     */
+    public static @NotNull CompletableFuture<RequestResponse> submitSessionTurn(@NotNull BatchScheduler scheduler,
+                                                                               @NotNull Llama model,
+                                                                               Sampler sampler,
+                                                                               @NotNull Options options,
+                                                                               SessionManager.@NotNull Session session,
+                                                                               Consumer<String> onTextGenerated) {
+        StringBuffer buffer = new StringBuffer();
+        ChatFormat chatFormat = new ChatFormat(model.tokenizer());
+        List<Integer> conversationTokens = session.tokens();
+        List<Integer> turnTokens = new ArrayList<>();
+        if (conversationTokens.isEmpty()) {
+            turnTokens.add(session.state().latestToken);
+            turnTokens.addAll(instructPrompt(chatFormat, options));
+        } else {
+            turnTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, options.prompt())));
+            turnTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+        }
+        int contextLength = model.configuration().contextLength;
+        if (conversationTokens.size() + turnTokens.size() >= contextLength) {
+            throw new IllegalArgumentException("Session " + session.id() + " is full: the conversation would take "
+                + (conversationTokens.size() + turnTokens.size()) + " of the " + contextLength + " tokens of the context, start a new session");
+        }
+        conversationTokens.addAll(turnTokens);
+        // max tokens limits the tokens of this turn, the scheduler limits the position, the last prompt token being at size - 1
+        int maxTokens = options.maxTokens() < 0
+            ? contextLength
+            : (int) Math.min(conversationTokens.size() - 1L + options.maxTokens(), contextLength);
 
         Set<Integer> stopTokens = chatFormat.getStopTokens();
-        List<Integer> responseTokens = Llama.generateTokens(model, state, 0, promptTokens, stopTokens, options.maxTokens(), sampler, options.echo(), token -> {
-            String decode = model.tokenizer().decode(List.of(token));
-            buffer.append(decode);
-            System.out.println(decode);
-
-            // TODO Double check if this is still required when using buffer.append ?
-//            if (options.stream()) {
-//                if (model.tokenizer().isNotSpecialToken(token)) {
-//                    soutcode);
-//                }
-//            }
-        });
+        StreamingDecoder decoder = new StreamingDecoder(model.tokenizer());
+        return scheduler.submit(session.state(), conversationTokens, stopTokens, maxTokens, sampler, appendingTo(buffer, decoder, model, onTextGenerated))
+            .thenApply(result -> {
+                // Include the stop token in the conversation history, but not in the response.
+                conversationTokens.addAll(result.tokens());
+                return requestResponse(result, flushTo(buffer, decoder, onTextGenerated), stopTokens);
+            });
+    }
+
+    /**
+     * Token ids of each of the texts, encoded as ordinary text: special tokens are not recognized.
+     * The texts are encoded in parallel on the tokenizer pool, and so are the chunks of a long one.
+     */
+    public static @NotNull List<int[]> tokenize(@NotNull Llama model, @NotNull List<String> texts) {
+        return Tokenizer.inParallel(() -> texts.parallelStream().map(text -> model.tokenizer().encode(text)).toList());
+    }
+
+    /**
+     * Text of each of the token id sequences, in parallel on the tokenizer pool.
+     *
+     * @throws IllegalArgumentException if a token id is outside of the vocabulary
+     */
+    public static @NotNull List<String> detokenize(@NotNull Llama model, @NotNull List<int[]> tokens) {
+        for (int[] ids : tokens) {
+            for (int token : ids) {
+                if (token < 0 || token >= model.configuration().vocabularySize) {
+                    throw new IllegalArgumentException("Token " + token + " outside of the vocabulary");
+                }
+            }
+        }
+        return Tokenizer.inParallel(() -> tokens.parallelStream().map(ids -> model.tokenizer().decode(ids)).toList());
+    }
 
+    // Characters split across tokens are emitted with the token completing them. Bytes still held back when a special
+    // token comes are emitted before it, special tokens are only appended to the buffer.
+    private static IntConsumer appendingTo(StringBuffer buffer, StreamingDecoder decoder, Llama model, Consumer<String> onTextGenerated) {
+        return token -> {
+            if (model.tokenizer().isNotSpecialToken(token)) {
+                emit(buffer, decoder.decode(token), onTextGenerated);
+            } else {
+                emit(buffer, decoder.flush(), onTextGenerated);
+                buffer.append(decoder.decode(token));
+            }
+        };
+    }
+
+    // Emits the bytes held back at the end of the generation, before its response completes.
+    private static StringBuffer flushTo(StringBuffer buffer, StreamingDecoder decoder, Consumer<String> onTextGenerated) {
+        emit(buffer, decoder.flush(), onTextGenerated);
+        return buffer;
+    }
+
+    private static void emit(StringBuffer buffer, String text, Consumer<String> onTextGenerated) {
+        buffer.append(text);
+        if (onTextGenerated != null && !text.isEmpty()) {
+            onTextGenerated.accept(text);
+        }
+    }
+
+    private static RequestResponse requestResponse(BatchScheduler.Result result, StringBuffer buffer, Set<Integer> stopTokens) {
+        List<Integer> responseTokens = new ArrayList<>(result.tokens());
+        String finishReason = "length";
         if (!responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast())) {
             responseTokens.removeLast();
+            finishReason = "stop";
         }
+        return new RequestResponse(responseTokens.size(), buffer.toString(), result.cachedTokens(), finishReason);
+    }
 
-        if (!options.stream()) {
-            String responseText = model.tokenizer().decode(responseTokens);
-            System.out.println(responseText);
+    private static List<Integer> instructPrompt(ChatFormat chatFormat, Options options) {
+        List<Integer> promptTokens = new ArrayList<>();
+        promptTokens.add(chatFormat.beginOfText);
+        if (options.systemPrompt() != null) {
+            promptTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.SYSTEM, options.systemPrompt())));
         }
-
-        return new RequestResponse(responseTokens.size(), buffer.toString());
+        promptTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, options.prompt())));
+        promptTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+        return promptTokens;
     }
 
     public record Options(Path modelPath,
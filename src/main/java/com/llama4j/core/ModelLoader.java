@@ -3,6 +3,7 @@ package com.llama4j.core;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
@@ -18,7 +19,9 @@ import java.util.stream.IntStream;
 public final class ModelLoader {
     private static final String TOKENIZER_LLAMA_3_MODEL = "gpt2";
 
-    private static final String LLAMA_3_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    // Copy the Q4_0/Q8_0 matmul weights to the heap-independent layout of Q4_0RepackedFloatTensor/Q8_0RepackedFloatTensor,
+    // trading a slower startup and the memory of the copy for faster matmuls.
+    static final boolean REPACK_WEIGHTS = Boolean.parseBoolean(System.getProperty("llama.RepackWeights", "false"));
 
     private static Vocabulary loadVocabulary(Map<String, Object> metadata) {
         String model = (String) metadata.get("tokenizer.ggml.model");
@@ -80,21 +83,21 @@ public final class ModelLoader {
         GGMLTensorEntry tokenEmbeddings = tensorEntries.get("token_embd.weight");
         Llama.Weights qw = new Llama.Weights(
             loadQuantized(tokenEmbeddings),
-            loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_norm.weight")),
-            loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_q.weight")),
-            loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_k.weight")),
-            loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_v.weight")),
-            loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_output.weight")),
-            loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_norm.weight")),
-            loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_gate.weight")), // w1
-            loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_down.weight")), // w2
-            loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_up.weight")), // w3
-            toFloatBuffer(tensorEntries.get("output_norm.weight")),
+            loadArrayOfFloatTensor(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_norm.weight")),
+            loadArrayOfMatmulWeights(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_q.weight")),
+            loadArrayOfMatmulWeights(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_k.weight")),
+            loadArrayOfMatmulWeights(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_v.weight")),
+            loadArrayOfMatmulWeights(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_output.weight")),
+            loadArrayOfFloatTensor(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_norm.weight")),
+            loadArrayOfMatmulWeights(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_gate.weight")), // w1
+            loadArrayOfMatmulWeights(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_down.weight")), // w2
+            loadArrayOfMatmulWeights(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_up.weight")), // w3
+            toFloatTensor(tensorEntries.get("output_norm.weight")),
             FloatBuffer.wrap(ropeFreqsReal),
             FloatBuffer.wrap(ropeFreqsImag),
             // If "output.weight" is not present then the embedding weights are tied/shared with the decoder.
             // This is commonly referred as "tie word embeddings".
-            loadQuantized(tensorEntries.getOrDefault("output.weight", tokenEmbeddings))
+            loadMatmulWeight(tensorEntries.getOrDefault("output.weight", tokenEmbeddings))
         );
 
         return qw;
@@ -125,19 +128,50 @@ public final class ModelLoader {
                     i -> baseTokens + i)
                 );
 
-        return new Tokenizer(vocabulary, merges, LLAMA_3_PATTERN, specialTokens);
+        return new Tokenizer(vocabulary, merges, PreTokenizer.LLAMA_3_PATTERN, specialTokens);
     }
 
     public static FloatTensor loadQuantized(GGMLTensorEntry entry) {
         GGMLType ggmlType = entry.ggmlType();
         return switch (ggmlType) {
-            //case F32 -> new F32FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case F32 -> new F32FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case F16 -> new F16FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case BF16 -> new BF16FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case Q8_0 -> new Q8_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case Q4_0 -> new Q4_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q4_K -> new Q4_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q5_K -> new Q5_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q6_K -> new Q6_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             default -> throw new UnsupportedOperationException("Quantization format " + ggmlType);
         };
     }
 
+    /**
+     * Loads a weight only used as a matmul operand, repacked to {@link Q4_0RepackedFloatTensor}/{@link Q8_0RepackedFloatTensor}
+     * if {@link #REPACK_WEIGHTS} is enabled.
+     */
+    static FloatTensor loadMatmulWeight(GGMLTensorEntry entry) {
+        FloatTensor tensor = loadQuantized(entry);
+        if (!REPACK_WEIGHTS || entry.shape().length != 2) {
+            return tensor;
+        }
+        int columns = entry.shape()[0];
+        int rows = entry.shape()[1];
+        return switch (tensor) {
+            case Q4_0FloatTensor q4 when Q4_0RepackedFloatTensor.canRepack(rows, columns) -> Q4_0RepackedFloatTensor.repack(q4, rows, columns);
+            case Q8_0FloatTensor q8 when Q8_0RepackedFloatTensor.canRepack(rows, columns) -> Q8_0RepackedFloatTensor.repack(q8, rows, columns);
+            default -> tensor;
+        };
+    }
+
+    static FloatTensor[] loadArrayOfMatmulWeights(int size, IntFunction<GGMLTensorEntry> getTensorEntry) {
+        FloatTensor[] array = new FloatTensor[size];
+        for (int i = 0; i < size; i++) {
+            array[i] = loadMatmulWeight(getTensorEntry.apply(i));
+        }
+        return array;
+    }
+
     public static FloatTensor[] loadArrayOfQuantized(int size, IntFunction<GGMLTensorEntry> getTensorEntry) {
         FloatTensor[] array = new FloatTensor[size];
         for (int i = 0; i < size; i++) {
@@ -146,18 +180,29 @@ public final class ModelLoader {
         return array;
     }
 
-    public static FloatBuffer[] loadArrayOfFloatBuffer(int size, IntFunction<GGMLTensorEntry> getTensorEntry) {
-        FloatBuffer[] array = new FloatBuffer[size];
+    public static FloatTensor[] loadArrayOfFloatTensor(int size, IntFunction<GGMLTensorEntry> getTensorEntry) {
+        FloatTensor[] array = new FloatTensor[size];
         for (int i = 0; i < size; i++) {
-            array[i] = toFloatBuffer(getTensorEntry.apply(i));
+            array[i] = toFloatTensor(getTensorEntry.apply(i));
         }
         return array;
     }
 
-    public static FloatBuffer toFloatBuffer(GGMLTensorEntry tensorEntry) {
+    /**
+     * Copies a (small) tensor, e.g. the rmsnorm weights, to the heap so it can be read with the vectorized {@link ArrayFloatTensor} operations.
+     */
+    public static FloatTensor toFloatTensor(GGMLTensorEntry tensorEntry) {
         GGMLType ggmlType = tensorEntry.ggmlType();
         return switch (ggmlType) {
-            case F32 -> tensorEntry.memorySegment().asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            case F32 -> new ArrayFloatTensor(tensorEntry.memorySegment().toArray(ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN)));
+            case F16, BF16 -> {
+                FloatTensor tensor = loadQuantized(tensorEntry);
+                float[] values = new float[tensor.size()];
+                for (int i = 0; i < values.length; ++i) {
+                    values[i] = tensor.getFloat(i);
+                }
+                yield new ArrayFloatTensor(values);
+            }
             default -> throw new UnsupportedOperationException("Conversion to " + ggmlType);
         };
     }
@@ -1,10 +1,124 @@
 package com.llama4j.core;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntConsumer;
-import java.util.stream.IntStream;
+import java.util.function.Supplier;
 
+/**
+ * Compute pool used by the matmuls and attention, separate from {@link ForkJoinPool#commonPool()} so that inference
+ * does not compete with (nor is slowed down by) other users of parallel streams in the application.
+ * <p>
+ * Ranges are split statically in contiguous chunks, {@code llama.ChunksPerThread} per thread unless a grain is given,
+ * so that e.g. consecutive rows of a matrix are processed by the same task. The matmuls use {@code llama.MatmulGrain}
+ * rows per chunk (0 for the default split) and the attention {@code llama.AttentionGrain} heads per chunk.
+ * A model can get its own pool ({@code llama.ComputePoolPerModel}), the work submitted with {@link #call(Supplier)}
+ * then runs, including the nested {@link #parallelFor} calls, on the threads of that pool, until the model is closed.
+ */
 final class Parallel {
+
+    static final int THREADS = Integer.getInteger("llama.ComputeThreads", Runtime.getRuntime().availableProcessors());
+    static final int CHUNKS_PER_THREAD = Integer.getInteger("llama.ChunksPerThread", 4);
+    // Rows (or row groups of a repacked tensor) per chunk of a matmul, 0 splits the rows in ChunksPerThread chunks per thread.
+    static final int MATMUL_GRAIN = Integer.getInteger("llama.MatmulGrain", 0);
+    // Heads per chunk of the attention, a head is a long task and a layer has few of them, one per chunk balances best.
+    static final int ATTENTION_GRAIN = Integer.getInteger("llama.AttentionGrain", 1);
+    static final boolean POOL_PER_MODEL = Boolean.parseBoolean(System.getProperty("llama.ComputePoolPerModel", "false"));
+
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+    private static final Parallel SHARED = new Parallel("llama-compute", THREADS);
+
+    private final ForkJoinPool pool;
+    private final int threads;
+
+    private Parallel(String name, int threads) {
+        this.threads = threads;
+        this.pool = new ForkJoinPool(threads, pool -> new ComputeThread(pool, this, name), null, false);
+    }
+
+    private static final class ComputeThread extends ForkJoinWorkerThread {
+        final Parallel parallel;
+
+        ComputeThread(ForkJoinPool pool, Parallel parallel, String name) {
+            super(null, pool, true);
+            this.parallel = parallel;
+            setName(name + "-" + getPoolIndex());
+        }
+    }
+
+    /**
+     * Compute pool for a newly loaded model, a dedicated one if {@code llama.ComputePoolPerModel} is set.
+     */
+    static Parallel forNewModel() {
+        return POOL_PER_MODEL ? new Parallel("llama-model-" + POOL_COUNTER.incrementAndGet(), THREADS) : SHARED;
+    }
+
+    // The pool of the current thread, or the shared pool when called from outside a compute pool.
+    private static Parallel current() {
+        return Thread.currentThread() instanceof ComputeThread computeThread ? computeThread.parallel : SHARED;
+    }
+
+    /**
+     * Runs {@code task} on this pool and waits for its result.
+     */
+    <T> T call(Supplier<T> task) {
+        if (Thread.currentThread() instanceof ComputeThread computeThread && computeThread.parallel == this) {
+            return task.get();
+        }
+        return pool.invoke(ForkJoinTask.adapt(task::get));
+    }
+
+    /**
+     * Shuts down the pool of a model that has its own, the shared pool stays up.
+     */
+    void close() {
+        if (this != SHARED) {
+            pool.shutdown();
+        }
+    }
+
     public static void parallelFor(int startInclusive, int endExclusive, IntConsumer action) {
-        IntStream.range(startInclusive, endExclusive).parallel().forEach(action);
+        Parallel parallel = current();
+        int grain = Math.max(1, Math.ceilDiv(endExclusive - startInclusive, parallel.threads * CHUNKS_PER_THREAD));
+        parallel.forRange(startInclusive, endExclusive, grain, action);
+    }
+
+    /**
+     * Applies {@code action} to every index of the range, in chunks of (at most) {@code grain} consecutive indices, a
+     * grain of 0 splits the range like {@link #parallelFor(int, int, IntConsumer)}.
+     */
+    public static void parallelFor(int startInclusive, int endExclusive, int grain, IntConsumer action) {
+        if (grain <= 0) {
+            parallelFor(startInclusive, endExclusive, action);
+        } else {
+            current().forRange(startInclusive, endExclusive, grain, action);
+        }
+    }
+
+    private void forRange(int startInclusive, int endExclusive, int grain, IntConsumer action) {
+        int size = endExclusive - startInclusive;
+        if (size <= grain) {
+            for (int i = startInclusive; i < endExclusive; ++i) {
+                action.accept(i);
+            }
+            return;
+        }
+        ForkJoinTask<?>[] chunks = new ForkJoinTask<?>[Math.ceilDiv(size, grain)];
+        for (int c = 0; c < chunks.length; ++c) {
+            int chunkStart = startInclusive + c * grain;
+            int chunkEnd = Math.min(endExclusive, chunkStart + grain);
+            chunks[c] = ForkJoinTask.adapt(() -> {
+                for (int i = chunkStart; i < chunkEnd; ++i) {
+                    action.accept(i);
+                }
+            });
+        }
+        if (Thread.currentThread() instanceof ComputeThread) {
+            ForkJoinTask.invokeAll(chunks);
+        } else {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(chunks)));
+        }
     }
-}
\ No newline at end of file
+}
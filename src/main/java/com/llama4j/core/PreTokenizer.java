@@ -0,0 +1,129 @@
+package com.llama4j.core;
+
+/**
+ * Hand-written state machine splitting text into chunks exactly like {@link #LLAMA_3_PATTERN} does with
+ * {@link java.util.regex.Matcher#find()}, over code points, without backtracking and without allocating.
+ * <p>
+ * Every position starts a match of the pattern, so the chunks are contiguous: each one ends where the next begins.
+ * The alternatives, tried in order at the start {@code i} of a chunk, reduce to:
+ * <ol>
+ * <li>{@code (?i:'s|'t|'re|'ve|'m|'ll|'d)}: a contraction, ASCII case-insensitive,</li>
+ * <li>{@code [^\r\n\p{L}\p{N}]?\p{L}+}: letters, with at most one leading code point that is neither a newline, a
+ * letter nor a number,</li>
+ * <li>{@code \p{N}{1,3}}: up to 3 numbers,</li>
+ * <li>{@code  ?[^\s\p{L}\p{N}]+[\r\n]*}: punctuation and symbols, with an optional leading space and trailing newlines,</li>
+ * <li>{@code \s*[\r\n]+}: whitespace up to and including its last newline,</li>
+ * <li>{@code \s+(?!\S)}: whitespace but the last one before a non-whitespace, that starts the next chunk,</li>
+ * <li>{@code \s+}: whitespace.</li>
+ * </ol>
+ * {@code \s} is {@code [ \t\n\x0B\f\r]} as in {@link java.util.regex.Pattern} without {@code UNICODE_CHARACTER_CLASS}.
+ */
+final class PreTokenizer {
+
+    static final String LLAMA_3_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+
+    private PreTokenizer() {
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static boolean isNewline(int c) {
+        return c == '\r' || c == '\n';
+    }
+
+    private static boolean isNumber(int c) {
+        int type = Character.getType(c);
+        return type == Character.DECIMAL_DIGIT_NUMBER || type == Character.LETTER_NUMBER || type == Character.OTHER_NUMBER;
+    }
+
+    // [^\s\p{L}\p{N}]
+    private static boolean isSymbol(int c) {
+        return !isWhitespace(c) && !Character.isLetter(c) && !isNumber(c);
+    }
+
+    private static int lowerAscii(int c) {
+        return 'A' <= c && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * End of the chunk of {@code text[start, end)} starting at {@code start}, the text ends at {@code end}.
+     */
+    static int chunkEnd(CharSequence text, int start, int end) {
+        int c = Character.codePointAt(text, start);
+        int i = start + Character.charCount(c);
+        int next = i < end ? Character.codePointAt(text, i) : -1;
+
+        // 'll 're 've 's 't 'm 'd
+        if (c == '\'' && next != -1) {
+            int first = lowerAscii(next);
+            if (first == 's' || first == 't' || first == 'm' || first == 'd') {
+                return i + 1;
+            }
+            int second = i + 1 < end ? lowerAscii(text.charAt(i + 1)) : -1;
+            if ((first == 'r' && second == 'e') || (first == 'v' && second == 'e') || (first == 'l' && second == 'l')) {
+                return i + 2;
+            }
+        }
+        // letters, with one leading code point that is neither a newline, a letter nor a number
+        if (Character.isLetter(c)) {
+            return skipLetters(text, i, end);
+        }
+        if (!isNewline(c) && !isNumber(c) && next != -1 && Character.isLetter(next)) {
+            return skipLetters(text, i + Character.charCount(next), end);
+        }
+        // up to 3 numbers
+        if (isNumber(c)) {
+            for (int count = 1; count < 3 && i < end; count++) {
+                int n = Character.codePointAt(text, i);
+                if (!isNumber(n)) {
+                    break;
+                }
+                i += Character.charCount(n);
+            }
+            return i;
+        }
+        // symbols, with one leading space, then newlines
+        if (isSymbol(c) || (c == ' ' && next != -1 && isSymbol(next))) {
+            while (i < end) {
+                int s = Character.codePointAt(text, i);
+                if (!isSymbol(s)) {
+                    break;
+                }
+                i += Character.charCount(s);
+            }
+            while (i < end && isNewline(text.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+        // c is whitespace, all of it is a single char
+        int runEnd = i;
+        int lastNewline = isNewline(c) ? start : -1;
+        while (runEnd < end && isWhitespace(text.charAt(runEnd))) {
+            if (isNewline(text.charAt(runEnd))) {
+                lastNewline = runEnd;
+            }
+            runEnd++;
+        }
+        if (lastNewline != -1) {
+            return lastNewline + 1;
+        }
+        if (runEnd < end && runEnd - start >= 2) {
+            return runEnd - 1; // the last whitespace goes with what follows
+        }
+        return runEnd;
+    }
+
+    private static int skipLetters(CharSequence text, int i, int end) {
+        while (i < end) {
+            int c = Character.codePointAt(text, i);
+            if (!Character.isLetter(c)) {
+                break;
+            }
+            i += Character.charCount(c);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,125 @@
+package com.llama4j.core;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * KV cache of previously seen token prefixes, so that e.g. a shared system prompt is only ingested once.
+ * <p>
+ * A radix tree over full {@link KVCachePool} blocks: every node is keyed by the {@link KVCachePool#BLOCK_SIZE} tokens of
+ * its block, the path from the root spells the prefix. The cache holds a reference on the blocks of its nodes and states
+ * restored from it share them, they are never written again since only full blocks are cached.
+ * When more than {@code llama.PrefixCacheTokens} tokens are cached, the least recently used leaves are evicted, the
+ * leaves are kept in access order so that an eviction does not walk the tree.
+ */
+final class PrefixCache {
+
+    static final int CAPACITY_TOKENS = Integer.getInteger("llama.PrefixCacheTokens", 2048);
+
+    private static final class Node {
+        final Node parent;
+        final List<Integer> tokens;
+        final KVCachePool.Block block;
+        final Map<List<Integer>, Node> children = new HashMap<>();
+        long lastUsed;
+
+        Node(Node parent, List<Integer> tokens, KVCachePool.Block block) {
+            this.parent = parent;
+            this.tokens = tokens;
+            this.block = block;
+        }
+    }
+
+    private final KVCachePool kvCachePool;
+    private final int capacityBlocks;
+    private final Node root = new Node(null, List.of(), null);
+    // from the least to the most recently used
+    private final LinkedHashSet<Node> leaves = new LinkedHashSet<>();
+    private int size; // number of cached blocks
+    private long clock;
+
+    PrefixCache(KVCachePool kvCachePool) {
+        this.kvCachePool = kvCachePool;
+        this.capacityBlocks = CAPACITY_TOKENS / KVCachePool.BLOCK_SIZE;
+    }
+
+    /**
+     * Restores, into a state with an empty KV cache, the longest cached prefix of {@code tokens} (token {@code i} at position {@code i})
+     * of at most {@code maxLength} tokens.
+     *
+     * @return the number of positions restored, a multiple of the block size
+     */
+    synchronized int restore(Llama.State state, List<Integer> tokens, int maxLength) {
+        assert state.blockTable.isEmpty();
+        Node node = root;
+        int length = 0;
+        while (length + KVCachePool.BLOCK_SIZE <= Math.min(maxLength, tokens.size())) {
+            Node child = node.children.get(tokens.subList(length, length + KVCachePool.BLOCK_SIZE));
+            if (child == null) {
+                break;
+            }
+            touch(child);
+            kvCachePool.retain(child.block);
+            state.blockTable.add(child.block);
+            length += KVCachePool.BLOCK_SIZE;
+            node = child;
+        }
+        state.length = length;
+        return length;
+    }
+
+    /**
+     * Caches the full blocks of {@code state}, holding {@code tokens} (token {@code i} at position {@code i}).
+     */
+    synchronized void insert(Llama.State state, List<Integer> tokens) {
+        if (capacityBlocks == 0) {
+            return;
+        }
+        int blocks = Math.min(tokens.size(), state.length) / KVCachePool.BLOCK_SIZE;
+        Node node = root;
+        for (int i = 0; i < blocks; i++) {
+            List<Integer> key = tokens.subList(i * KVCachePool.BLOCK_SIZE, (i + 1) * KVCachePool.BLOCK_SIZE);
+            Node child = node.children.get(key);
+            if (child == null) {
+                // the same prefix may have been cached meanwhile by another sequence, the first one is kept
+                KVCachePool.Block block = state.blockTable.get(i);
+                kvCachePool.retain(block);
+                child = new Node(node, List.copyOf(key), block);
+                node.children.put(child.tokens, child);
+                leaves.remove(node);
+                size++;
+            }
+            touch(child);
+            node = child;
+        }
+        while (size > capacityBlocks) {
+            // only leaves can be evicted, the KV cache of a block depends on all the previous ones
+            evict(leaves.removeFirst());
+        }
+    }
+
+    private void touch(Node node) {
+        node.lastUsed = ++clock;
+        if (node.children.isEmpty()) {
+            leaves.addLast(node);
+        }
+    }
+
+    private void evict(Node node) {
+        Node parent = node.parent;
+        parent.children.remove(node.tokens);
+        kvCachePool.release(node.block);
+        size--;
+        if (parent != root && parent.children.isEmpty()) {
+            // a parent is used along with its children, and also alone for a shorter prefix: it goes first when it is
+            // older than every leaf, e.g. the rest of a stale sequence, last otherwise, e.g. a shared system prompt
+            if (leaves.isEmpty() || parent.lastUsed < leaves.getFirst().lastUsed) {
+                leaves.addFirst(parent);
+            } else {
+                leaves.addLast(parent);
+            }
+        }
+    }
+}
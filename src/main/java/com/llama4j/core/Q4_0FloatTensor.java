@@ -5,6 +5,7 @@ import java.nio.ByteOrder;
 
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
@@ -62,15 +63,140 @@ final class Q4_0FloatTensor extends FloatTensor {
         return quant * scale;
     }
 
+    @Override
+    FloatTensor matmulInput(FloatTensor that, int size) {
+        if (FloatTensor.QUANTIZE_ACTIVATIONS && size % GGMLType.Q4_0.getBlockSize() == 0) {
+            return Q8_0ArrayFloatTensor.quantize(that, size);
+        }
+        return that;
+    }
+
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
-        if (FloatTensor.USE_VECTOR_API) {
+        if (that instanceof Q8_0ArrayFloatTensor quantized) {
+            return integerDot(this, thisOffset, quantized, thatOffset, size);
+        } else if (FloatTensor.USE_VECTOR_API) {
             return vectorDot(this, thisOffset, (ArrayFloatTensor) that, thatOffset, size);
         } else {
             return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
         }
     }
 
+    @Override
+    void dotBatch(int row, int batchSize, FloatTensor input, FloatTensor out, int dim0, int dim1) {
+        if (FloatTensor.USE_VECTOR_API && input instanceof ArrayFloatTensor inputArray && dim1 % GGMLType.Q4_0.getBlockSize() == 0) {
+            vectorDotBatch(this, row, inputArray, out, batchSize, dim0, dim1);
+        } else {
+            super.dotBatch(row, batchSize, input, out, dim0, dim1);
+        }
+    }
+
+    /**
+     * Dot products of the given row against every vector of the batch.
+     * Each quantized block is loaded and widened once, then applied to 4 vectors at a time.
+     */
+    private static void vectorDotBatch(Q4_0FloatTensor thiz,
+                                       int row,
+                                       ArrayFloatTensor that,
+                                       FloatTensor out,
+                                       int batchSize,
+                                       int dim0,
+                                       int size) {
+        assert size % GGMLType.Q4_0.getBlockSize() == 0;
+        int rowBlockOffset = row * size / GGMLType.Q4_0.getBlockSize() * GGMLType.Q4_0.getTypeSize();
+        int b = 0;
+        for (; b + 4 <= batchSize; b += 4) {
+            int thatOffset0 = b * size;
+            int thatOffset1 = thatOffset0 + size;
+            int thatOffset2 = thatOffset1 + size;
+            int thatOffset3 = thatOffset2 + size;
+            FloatVector val0 = FloatVector.zero(F_SPECIES);
+            FloatVector val1 = FloatVector.zero(F_SPECIES);
+            FloatVector val2 = FloatVector.zero(F_SPECIES);
+            FloatVector val3 = FloatVector.zero(F_SPECIES);
+            int blockOffset = rowBlockOffset;
+            for (int j = 0; j < size; j += GGMLType.Q4_0.getBlockSize(), blockOffset += GGMLType.Q4_0.getTypeSize()) {
+                float wScaleValue = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
+                var wScale = FloatVector.broadcast(F_SPECIES, wScaleValue);
+                var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+                var loBytes = wBytes.and((byte) 0xF).sub((byte) 8);
+                var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte) 8);
+                if (F_SPECIES.vectorBitSize() == 512) {
+                    var w0 = loBytes.castShape(F_SPECIES, 0);
+                    var w1 = hiBytes.castShape(F_SPECIES, 0);
+                    val0 = sumOfProducts(that, thatOffset0 + j, w0, w1).fma(wScale, val0);
+                    val1 = sumOfProducts(that, thatOffset1 + j, w0, w1).fma(wScale, val1);
+                    val2 = sumOfProducts(that, thatOffset2 + j, w0, w1).fma(wScale, val2);
+                    val3 = sumOfProducts(that, thatOffset3 + j, w0, w1).fma(wScale, val3);
+                } else if (F_SPECIES.vectorBitSize() == 256) {
+                    var w0 = loBytes.castShape(F_SPECIES, 0);
+                    var w1 = loBytes.castShape(F_SPECIES, 1);
+                    var w2 = hiBytes.castShape(F_SPECIES, 0);
+                    var w3 = hiBytes.castShape(F_SPECIES, 1);
+                    val0 = sumOfProducts(that, thatOffset0 + j, w0, w1, w2, w3).fma(wScale, val0);
+                    val1 = sumOfProducts(that, thatOffset1 + j, w0, w1, w2, w3).fma(wScale, val1);
+                    val2 = sumOfProducts(that, thatOffset2 + j, w0, w1, w2, w3).fma(wScale, val2);
+                    val3 = sumOfProducts(that, thatOffset3 + j, w0, w1, w2, w3).fma(wScale, val3);
+                } else if (F_SPECIES.vectorBitSize() == 128) {
+                    for (int i = 0; i < 2; ++i) {
+                        var tmp = i == 0 ? loBytes : hiBytes;
+                        var w0 = tmp.castShape(F_SPECIES, 0);
+                        var w1 = tmp.castShape(F_SPECIES, 1);
+                        var w2 = tmp.castShape(F_SPECIES, 2);
+                        var w3 = tmp.castShape(F_SPECIES, 3);
+                        int k = j + i * 4 * F_SPECIES.length();
+                        val0 = sumOfProducts(that, thatOffset0 + k, w0, w1, w2, w3).fma(wScale, val0);
+                        val1 = sumOfProducts(that, thatOffset1 + k, w0, w1, w2, w3).fma(wScale, val1);
+                        val2 = sumOfProducts(that, thatOffset2 + k, w0, w1, w2, w3).fma(wScale, val2);
+                        val3 = sumOfProducts(that, thatOffset3 + k, w0, w1, w2, w3).fma(wScale, val3);
+                    }
+                } else {
+                    throw new UnsupportedOperationException(F_SPECIES.toString());
+                }
+            }
+            out.setFloat(b * dim0 + row, val0.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 1) * dim0 + row, val1.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 2) * dim0 + row, val2.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 3) * dim0 + row, val3.reduceLanes(VectorOperators.ADD));
+        }
+        // Remaining vectors of the batch.
+        for (; b < batchSize; ++b) {
+            out.setFloat(b * dim0 + row, vectorDot(thiz, row * size, that, b * size, size));
+        }
+    }
+
+    /**
+     * Dot product against Q8_0 quantized activations, int4 x int8 products are accumulated as integers and
+     * both scales are applied with a single float multiply per block.
+     */
+    private static float integerDot(Q4_0FloatTensor thiz,
+                                    int thisOffset,
+                                    Q8_0ArrayFloatTensor that,
+                                    int thatOffset,
+                                    int size) {
+        int blockSize = GGMLType.Q4_0.getBlockSize();
+        if (((thisOffset | thatOffset | size) & (blockSize - 1)) != 0 || S_SPECIES.length() > blockSize / 2) {
+            return FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, size);
+        }
+        FloatVector val = FloatVector.zero(F_I_SPECIES);
+        int blockOffset = thisOffset / blockSize * GGMLType.Q4_0.getTypeSize();
+        for (int j = 0; j < size; j += blockSize, blockOffset += GGMLType.Q4_0.getTypeSize()) {
+            float scale = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset)) * that.scales[(thatOffset + j) / blockSize];
+            IntVector sum = IntVector.zero(I_SPECIES);
+            for (int k = 0; k < blockSize; k += S_SPECIES.length()) {
+                // The first half of the block is stored in the low nibbles, the second half in the high nibbles.
+                var wBytes = ByteVector.fromMemorySegment(B_HALF_SPECIES, thiz.memorySegment, blockOffset + Float16.BYTES + (k & (blockSize / 2 - 1)), ByteOrder.LITTLE_ENDIAN);
+                var wQuants = (k < blockSize / 2 ? wBytes.and((byte) 0xF) : wBytes.lanewise(VectorOperators.LSHR, 4)).sub((byte) 8);
+                var aQuants = ByteVector.fromArray(B_HALF_SPECIES, that.quants, thatOffset + j + k);
+                // |int4 * int8| <= 8 * 128, no overflow in 16 bits
+                var products = wQuants.castShape(S_SPECIES, 0).mul(aQuants.castShape(S_SPECIES, 0));
+                sum = sum.add(products.castShape(I_SPECIES, 0)).add(products.castShape(I_SPECIES, 1));
+            }
+            val = FloatVector.broadcast(F_I_SPECIES, scale).fma(sum.castShape(F_I_SPECIES, 0), val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
+
     private static float vectorDot(Q4_0FloatTensor thiz,
                                    int thisOffset,
                                    ArrayFloatTensor that,
@@ -90,7 +216,7 @@ final class Q4_0FloatTensor extends FloatTensor {
 
         FloatVector val = FloatVector.zero(F_SPECIES);
         int blockOffset = (thisOffset + j) / GGMLType.Q4_0.getBlockSize() * GGMLType.Q4_0.getTypeSize();
-        int upperBound = size / GGMLType.Q4_0.getBlockSize() * GGMLType.Q4_0.getBlockSize();
+        int upperBound = j + (size - j) / GGMLType.Q4_0.getBlockSize() * GGMLType.Q4_0.getBlockSize();
         for (; j < upperBound; j += GGMLType.Q4_0.getBlockSize(), blockOffset += GGMLType.Q4_0.getTypeSize()) {
             float wScaleValue = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
             var wScale = FloatVector.broadcast(F_SPECIES, wScaleValue);
@@ -98,7 +224,11 @@ final class Q4_0FloatTensor extends FloatTensor {
             var wBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
             var loBytes = wBytes.and((byte) 0xF).sub((byte) 8);
             var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte) 8);
-            if (F_SPECIES.vectorBitSize() == 256) {
+            if (F_SPECIES.vectorBitSize() == 512) {
+                var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j).mul(loBytes.castShape(F_SPECIES, 0));
+                var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
+                val = sum0.add(sum1).fma(wScale, val);
+            } else if (F_SPECIES.vectorBitSize() == 256) {
                 var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j).mul(loBytes.castShape(F_SPECIES, 0));
                 var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 1));
                 var sum2 = that.getFloatVector(F_SPECIES, thatOffset + j + 2 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
@@ -0,0 +1,56 @@
+package com.llama4j.core;
+
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.Vector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * {@link Q4_0FloatTensor} weights in the layout of {@link RepackedFloatTensor}. The first half of a block is stored in
+ * the low nibbles of its quants, the second half in the high nibbles, the quants of a group fill exactly one 64-byte
+ * aligned cache line.
+ */
+final class Q4_0RepackedFloatTensor extends RepackedFloatTensor {
+
+    static final int QUANTS_BYTES = BLOCK_SIZE / 2;
+
+    private Q4_0RepackedFloatTensor(int rows, int columns) {
+        super(rows, columns, QUANTS_BYTES);
+    }
+
+    static Q4_0RepackedFloatTensor repack(Q4_0FloatTensor tensor, int rows, int columns) {
+        assert canRepack(rows, columns);
+        var result = new Q4_0RepackedFloatTensor(rows, columns);
+        result.copyBlocks(tensor.memorySegment);
+        return result;
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q4_0;
+    }
+
+    @Override
+    int quant(long blockIndex, int index) {
+        byte quants = readByte(this.quants, blockIndex * QUANTS_BYTES + index % QUANTS_BYTES);
+        return (index < QUANTS_BYTES ? (quants & 0x0F) : ((quants >>> 4) & 0x0F)) - 8;
+    }
+
+    @Override
+    FloatVector weights(long blockIndex, int part) {
+        int index = part * F_SPECIES.length();
+        int byteIndex = index % QUANTS_BYTES;
+        int lanes = B_WEIGHTS_SPECIES.length();
+        var wBytes = ByteVector.fromMemorySegment(B_WEIGHTS_SPECIES, quants, blockIndex * QUANTS_BYTES + byteIndex / lanes * lanes, ByteOrder.LITTLE_ENDIAN);
+        var q = (index < QUANTS_BYTES ? wBytes.and((byte) 0xF) : wBytes.lanewise(VectorOperators.LSHR, 4)).sub((byte) 8);
+        return (FloatVector) q.castShape(F_SPECIES, byteIndex % lanes / F_SPECIES.length());
+    }
+
+    @Override
+    Vector<Short> widenedQuants(long blockIndex, int k) {
+        var wBytes = ByteVector.fromMemorySegment(B_HALF_SPECIES, quants, blockIndex * QUANTS_BYTES + (k & (QUANTS_BYTES - 1)), ByteOrder.LITTLE_ENDIAN);
+        return (k < QUANTS_BYTES ? wBytes.and((byte) 0xF) : wBytes.lanewise(VectorOperators.LSHR, 4)).sub((byte) 8).castShape(S_SPECIES, 0);
+    }
+}
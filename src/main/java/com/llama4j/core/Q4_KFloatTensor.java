@@ -0,0 +1,136 @@
+package com.llama4j.core;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGMLType#Q4_K} format.
+ * <p>
+ * Super-blocks of 256 weights: a F16 scale {@code d} and min {@code dmin}, 12 bytes of packed 6-bit scales and mins
+ * for the 8 sub-blocks of 32 weights and 128 bytes of 4-bit quants. Each 64 weights share 32 bytes of quants,
+ * the first 32 in the low nibbles and the next 32 in the high nibbles. A weight is {@code d * scale * q - dmin * min}.
+ */
+final class Q4_KFloatTensor extends FloatTensor {
+
+    static final int BLOCK_SIZE = GGMLType.Q4_K.getBlockSize();
+    static final int TYPE_SIZE = GGMLType.Q4_K.getTypeSize();
+    static final int SCALES_OFFSET = 2 * Float16.BYTES;
+    static final int QUANTS_OFFSET = SCALES_OFFSET + 12;
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public Q4_KFloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q4_K;
+    }
+
+    // 6-bit scale of the given sub-block (0 ... 8).
+    static int scale(MemorySegment memorySegment, long blockOffset, int subBlock) {
+        long scales = blockOffset + SCALES_OFFSET;
+        if (subBlock < 4) {
+            return readByte(memorySegment, scales + subBlock) & 63;
+        }
+        return (readByte(memorySegment, scales + subBlock + 4) & 0xF) | ((readByte(memorySegment, scales + subBlock - 4) & 0xFF) >>> 6 << 4);
+    }
+
+    // 6-bit min of the given sub-block (0 ... 8).
+    static int min(MemorySegment memorySegment, long blockOffset, int subBlock) {
+        long scales = blockOffset + SCALES_OFFSET;
+        if (subBlock < 4) {
+            return readByte(memorySegment, scales + subBlock + 4) & 63;
+        }
+        return ((readByte(memorySegment, scales + subBlock + 4) & 0xFF) >>> 4) | ((readByte(memorySegment, scales + subBlock) & 0xFF) >>> 6 << 4);
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        long blockOffset = (long) (index / BLOCK_SIZE) * TYPE_SIZE;
+        int withinBlockIndex = index % BLOCK_SIZE;
+        int subBlock = withinBlockIndex / 32;
+        float d = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        float dmin = Float.float16ToFloat(readShort(memorySegment, blockOffset + Float16.BYTES));
+        byte quants = readByte(memorySegment, blockOffset + QUANTS_OFFSET + (withinBlockIndex / 64) * 32 + (withinBlockIndex % 32));
+        int quant = subBlock % 2 == 0 ? (quants & 0x0F) : ((quants >>> 4) & 0x0F);
+        return d * scale(memorySegment, blockOffset, subBlock) * quant - dmin * min(memorySegment, blockOffset, subBlock);
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray) {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(Q4_KFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to the super-block size.
+        int alignmentBound = Math.min(size, -thisOffset & (BLOCK_SIZE - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % BLOCK_SIZE == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / BLOCK_SIZE * TYPE_SIZE;
+        int upperBound = j + (size - j) / BLOCK_SIZE * BLOCK_SIZE;
+        for (; j < upperBound; j += BLOCK_SIZE, blockOffset += TYPE_SIZE) {
+            float d = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
+            float dmin = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset + Float16.BYTES));
+            for (int chunk = 0; chunk < 4; ++chunk) {
+                int loSubBlock = 2 * chunk;
+                int hiSubBlock = 2 * chunk + 1;
+                var loScale = FloatVector.broadcast(F_SPECIES, d * scale(thiz.memorySegment, blockOffset, loSubBlock));
+                var loOffset = FloatVector.broadcast(F_SPECIES, -dmin * min(thiz.memorySegment, blockOffset, loSubBlock));
+                var hiScale = FloatVector.broadcast(F_SPECIES, d * scale(thiz.memorySegment, blockOffset, hiSubBlock));
+                var hiOffset = FloatVector.broadcast(F_SPECIES, -dmin * min(thiz.memorySegment, blockOffset, hiSubBlock));
+                for (int half = 0; half < 2; ++half) {
+                    var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment,
+                        blockOffset + QUANTS_OFFSET + chunk * 32 + half * 16, ByteOrder.LITTLE_ENDIAN);
+                    int xOffset = thatOffset + j + chunk * 64 + half * 16;
+                    val = fmaQuantized16(that, xOffset, wBytes.and((byte) 0xF), loScale, loOffset, val);
+                    val = fmaQuantized16(that, xOffset + 32, wBytes.lanewise(VectorOperators.LSHR, 4), hiScale, hiOffset, val);
+                }
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+}
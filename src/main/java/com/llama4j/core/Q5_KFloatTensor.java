@@ -0,0 +1,123 @@
+package com.llama4j.core;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGMLType#Q5_K} format.
+ * <p>
+ * Same layout as {@link Q4_KFloatTensor}, with 32 extra bytes holding the 5th bit of every quant:
+ * bit {@code i} of {@code qh[l]} belongs to weight {@code 32 * i + l} of the super-block.
+ */
+final class Q5_KFloatTensor extends FloatTensor {
+
+    static final int BLOCK_SIZE = GGMLType.Q5_K.getBlockSize();
+    static final int TYPE_SIZE = GGMLType.Q5_K.getTypeSize();
+    static final int SCALES_OFFSET = 2 * Float16.BYTES;
+    static final int HIGH_BITS_OFFSET = SCALES_OFFSET + 12;
+    static final int QUANTS_OFFSET = HIGH_BITS_OFFSET + 32;
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public Q5_KFloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q5_K;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        long blockOffset = (long) (index / BLOCK_SIZE) * TYPE_SIZE;
+        int withinBlockIndex = index % BLOCK_SIZE;
+        int subBlock = withinBlockIndex / 32;
+        float d = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        float dmin = Float.float16ToFloat(readShort(memorySegment, blockOffset + Float16.BYTES));
+        byte quants = readByte(memorySegment, blockOffset + QUANTS_OFFSET + (withinBlockIndex / 64) * 32 + (withinBlockIndex % 32));
+        int quant = subBlock % 2 == 0 ? (quants & 0x0F) : ((quants >>> 4) & 0x0F);
+        quant |= ((readByte(memorySegment, blockOffset + HIGH_BITS_OFFSET + withinBlockIndex % 32) >>> subBlock) & 1) << 4;
+        return d * Q4_KFloatTensor.scale(memorySegment, blockOffset, subBlock) * quant - dmin * Q4_KFloatTensor.min(memorySegment, blockOffset, subBlock);
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray) {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(Q5_KFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to the super-block size.
+        int alignmentBound = Math.min(size, -thisOffset & (BLOCK_SIZE - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % BLOCK_SIZE == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / BLOCK_SIZE * TYPE_SIZE;
+        int upperBound = j + (size - j) / BLOCK_SIZE * BLOCK_SIZE;
+        for (; j < upperBound; j += BLOCK_SIZE, blockOffset += TYPE_SIZE) {
+            float d = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
+            float dmin = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset + Float16.BYTES));
+            for (int chunk = 0; chunk < 4; ++chunk) {
+                int loSubBlock = 2 * chunk;
+                int hiSubBlock = 2 * chunk + 1;
+                var loScale = FloatVector.broadcast(F_SPECIES, d * Q4_KFloatTensor.scale(thiz.memorySegment, blockOffset, loSubBlock));
+                var loOffset = FloatVector.broadcast(F_SPECIES, -dmin * Q4_KFloatTensor.min(thiz.memorySegment, blockOffset, loSubBlock));
+                var hiScale = FloatVector.broadcast(F_SPECIES, d * Q4_KFloatTensor.scale(thiz.memorySegment, blockOffset, hiSubBlock));
+                var hiOffset = FloatVector.broadcast(F_SPECIES, -dmin * Q4_KFloatTensor.min(thiz.memorySegment, blockOffset, hiSubBlock));
+                for (int half = 0; half < 2; ++half) {
+                    var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment,
+                        blockOffset + QUANTS_OFFSET + chunk * 32 + half * 16, ByteOrder.LITTLE_ENDIAN);
+                    var hBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment,
+                        blockOffset + HIGH_BITS_OFFSET + half * 16, ByteOrder.LITTLE_ENDIAN);
+                    var loBits = hBytes.lanewise(VectorOperators.LSHR, loSubBlock).and((byte) 1).lanewise(VectorOperators.LSHL, 4);
+                    var hiBits = hBytes.lanewise(VectorOperators.LSHR, hiSubBlock).and((byte) 1).lanewise(VectorOperators.LSHL, 4);
+                    int xOffset = thatOffset + j + chunk * 64 + half * 16;
+                    val = fmaQuantized16(that, xOffset, wBytes.and((byte) 0xF).or(loBits), loScale, loOffset, val);
+                    val = fmaQuantized16(that, xOffset + 32, wBytes.lanewise(VectorOperators.LSHR, 4).or(hiBits), hiScale, hiOffset, val);
+                }
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+}
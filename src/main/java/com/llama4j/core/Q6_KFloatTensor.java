@@ -0,0 +1,125 @@
+package com.llama4j.core;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGMLType#Q6_K} format.
+ * <p>
+ * Super-blocks of 256 weights: 128 bytes with the low 4 bits of the quants, 64 bytes with the high 2 bits,
+ * 16 signed 8-bit scales (one per 16 weights) and a trailing F16 scale {@code d}.
+ * A weight is {@code d * scale * (q - 32)}.
+ */
+final class Q6_KFloatTensor extends FloatTensor {
+
+    static final int BLOCK_SIZE = GGMLType.Q6_K.getBlockSize();
+    static final int TYPE_SIZE = GGMLType.Q6_K.getTypeSize();
+    static final int HIGH_BITS_OFFSET = BLOCK_SIZE / 2;
+    static final int SCALES_OFFSET = HIGH_BITS_OFFSET + BLOCK_SIZE / 4;
+    static final int D_OFFSET = SCALES_OFFSET + BLOCK_SIZE / 16;
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public Q6_KFloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q6_K;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        long blockOffset = (long) (index / BLOCK_SIZE) * TYPE_SIZE;
+        int withinBlockIndex = index % BLOCK_SIZE;
+        // Each half of the super-block is split in 4 quarters of 32 weights sharing the same low/high bytes.
+        int half = withinBlockIndex / 128;
+        int quarter = (withinBlockIndex % 128) / 32;
+        int l = withinBlockIndex % 32;
+        float d = Float.float16ToFloat(readShort(memorySegment, blockOffset + D_OFFSET));
+        byte lowBits = readByte(memorySegment, blockOffset + half * 64 + (quarter % 2) * 32 + l);
+        byte highBits = readByte(memorySegment, blockOffset + HIGH_BITS_OFFSET + half * 32 + l);
+        int quant = (quarter < 2 ? (lowBits & 0x0F) : ((lowBits >>> 4) & 0x0F)) | (((highBits >>> (2 * quarter)) & 3) << 4);
+        byte scale = readByte(memorySegment, blockOffset + SCALES_OFFSET + half * 8 + 2 * quarter + l / 16);
+        return d * scale * (quant - 32);
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray) {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(Q6_KFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to the super-block size.
+        int alignmentBound = Math.min(size, -thisOffset & (BLOCK_SIZE - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % BLOCK_SIZE == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / BLOCK_SIZE * TYPE_SIZE;
+        int upperBound = j + (size - j) / BLOCK_SIZE * BLOCK_SIZE;
+        for (; j < upperBound; j += BLOCK_SIZE, blockOffset += TYPE_SIZE) {
+            float d = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset + D_OFFSET));
+            for (int half = 0; half < 2; ++half) {
+                for (int l = 0; l < 32; l += 16) {
+                    var loBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment,
+                        blockOffset + half * 64 + l, ByteOrder.LITTLE_ENDIAN);
+                    var hiBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment,
+                        blockOffset + half * 64 + 32 + l, ByteOrder.LITTLE_ENDIAN);
+                    var highBits = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment,
+                        blockOffset + HIGH_BITS_OFFSET + half * 32 + l, ByteOrder.LITTLE_ENDIAN);
+                    for (int quarter = 0; quarter < 4; ++quarter) {
+                        var lowBits = quarter % 2 == 0 ? loBytes : hiBytes;
+                        var quants = (quarter < 2 ? lowBits.and((byte) 0xF) : lowBits.lanewise(VectorOperators.LSHR, 4))
+                            .or(highBits.lanewise(VectorOperators.LSHR, 2 * quarter).and((byte) 3).lanewise(VectorOperators.LSHL, 4));
+                        float scale = d * readByte(thiz.memorySegment, blockOffset + SCALES_OFFSET + half * 8 + 2 * quarter + l / 16);
+                        int xOffset = thatOffset + j + half * 128 + quarter * 32 + l;
+                        val = fmaQuantized16(that, xOffset, quants, FloatVector.broadcast(F_SPECIES, scale), FloatVector.broadcast(F_SPECIES, -32f * scale), val);
+                    }
+                }
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package com.llama4j.core;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} quantized in (a heap-backed variant of) the {@link GGMLType#Q8_0} format.
+ * <p>
+ * Used to quantize activations once per matmul, so that the quantized weights can be multiplied using integer
+ * dot products, see {@link FloatTensor#QUANTIZE_ACTIVATIONS}, and for the KV cache ({@code llama.KVCacheType=Q8_0})
+ * where rows are quantized as they are stored and attention reads the quants directly.
+ * Unlike {@link GGMLType#Q8_0}, scales are kept as floats.
+ */
+final class Q8_0ArrayFloatTensor extends FloatTensor {
+
+    static final int BLOCK_SIZE = GGMLType.Q8_0.getBlockSize();
+
+    // Bytes with (at least) as many lanes as F_SPECIES, the quants of a float vector are narrowed into them.
+    // There is no 32-bit shape, with 128-bit floats the quants are rounded one by one.
+    private static final VectorSpecies<Byte> B_QUANTS_SPECIES =
+        VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, F_SPECIES.length() * Byte.SIZE)));
+
+    final int size;
+    final byte[] quants;
+    final float[] scales;
+
+    Q8_0ArrayFloatTensor(int size) {
+        assert size % BLOCK_SIZE == 0;
+        this.size = size;
+        this.quants = new byte[size];
+        this.scales = new float[size / BLOCK_SIZE];
+    }
+
+    /**
+     * Quantizes the first {@code size} elements of {@code that}, {@code size} must be a multiple of the block size.
+     * <p>
+     * Activations ({@link ArrayFloatTensor}) are quantized into a buffer they own, allocated on first use and
+     * overwritten by the next call, so a matmul does not allocate. The result may be larger than {@code size}.
+     */
+    static Q8_0ArrayFloatTensor quantize(FloatTensor that, int size) {
+        Q8_0ArrayFloatTensor result;
+        if (that instanceof ArrayFloatTensor thatArray) {
+            if (thatArray.quantized == null || thatArray.quantized.size < size) {
+                thatArray.quantized = new Q8_0ArrayFloatTensor(thatArray.size() / BLOCK_SIZE * BLOCK_SIZE);
+            }
+            result = thatArray.quantized;
+        } else {
+            result = new Q8_0ArrayFloatTensor(size);
+        }
+        result.store(0, that, 0, size);
+        return result;
+    }
+
+    /**
+     * Quantizes {@code that[thatOffset ... thatOffset + size)} into {@code this[thisOffset ... thisOffset + size)},
+     * {@code thisOffset} and {@code size} must be multiples of the block size.
+     */
+    void store(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        assert thisOffset % BLOCK_SIZE == 0 && size % BLOCK_SIZE == 0;
+        if (USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray) {
+            vectorStore(this, thisOffset, thatArray, thatOffset, size);
+            return;
+        }
+        for (int j = 0; j < size; j += BLOCK_SIZE) {
+            float amax = that.reduce(thatOffset + j, BLOCK_SIZE, 0f, (acc, value) -> Math.max(acc, Math.abs(value)));
+            float scale = amax / 127f;
+            float inverseScale = scale != 0f ? 1f / scale : 0f;
+            scales[(thisOffset + j) / BLOCK_SIZE] = scale;
+            for (int i = 0; i < BLOCK_SIZE; ++i) {
+                float scaled = that.getFloat(thatOffset + j + i) * inverseScale;
+                // Rounds half away from zero, as the vectorized version.
+                quants[thisOffset + j + i] = (byte) (scaled + (scaled < 0f ? -0.5f : 0.5f));
+            }
+        }
+    }
+
+    private static void vectorStore(Q8_0ArrayFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        var half = FloatVector.broadcast(F_SPECIES, 0.5f);
+        for (int j = 0; j < size; j += BLOCK_SIZE) {
+            var amax = FloatVector.zero(F_SPECIES);
+            for (int i = 0; i < BLOCK_SIZE; i += F_SPECIES.length()) {
+                amax = amax.max(that.getFloatVector(F_SPECIES, thatOffset + j + i).abs());
+            }
+            float scale = amax.reduceLanes(VectorOperators.MAX) / 127f;
+            float inverseScale = scale != 0f ? 1f / scale : 0f;
+            thiz.scales[(thisOffset + j) / BLOCK_SIZE] = scale;
+            if (B_QUANTS_SPECIES.length() != F_SPECIES.length()) {
+                for (int i = 0; i < BLOCK_SIZE; ++i) {
+                    float scaled = that.values[thatOffset + j + i] * inverseScale;
+                    thiz.quants[thisOffset + j + i] = (byte) (scaled + (scaled < 0f ? -0.5f : 0.5f));
+                }
+                continue;
+            }
+            for (int i = 0; i < BLOCK_SIZE; i += F_SPECIES.length()) {
+                var scaled = that.getFloatVector(F_SPECIES, thatOffset + j + i).mul(inverseScale);
+                // The conversion truncates, |scaled| <= 127 so the rounded value fits in a byte.
+                var rounded = scaled.add(half.blend(-0.5f, scaled.lt(0f))).convert(VectorOperators.F2I, 0);
+                ((ByteVector) rounded.convertShape(VectorOperators.I2B, B_QUANTS_SPECIES, 0)).intoArray(thiz.quants, thisOffset + j + i);
+            }
+        }
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        return quants[index] * scales[index / BLOCK_SIZE];
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q8_0;
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray && thisOffset % BLOCK_SIZE == 0 && size % BLOCK_SIZE == 0) {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        }
+        return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+    }
+
+    private static float vectorDot(Q8_0ArrayFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        var zero = FloatVector.zero(F_SPECIES);
+        for (int j = 0; j < size; j += BLOCK_SIZE) {
+            var scale = FloatVector.broadcast(F_SPECIES, thiz.scales[(thisOffset + j) / BLOCK_SIZE]);
+            for (int half = 0; half < BLOCK_SIZE; half += 16) {
+                var q = ByteVector.fromArray(ByteVector.SPECIES_128, thiz.quants, thisOffset + j + half);
+                val = fmaQuantized16(that, thatOffset + j + half, q, scale, zero, val);
+            }
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
+
+    /**
+     * out[outOffset ... outOffset + size) += a * this[thisOffset ... thisOffset + size)
+     */
+    void saxpyInto(ArrayFloatTensor out, int outOffset, int thisOffset, int size, float a) {
+        if (!USE_VECTOR_API || thisOffset % BLOCK_SIZE != 0 || size % BLOCK_SIZE != 0) {
+            for (int i = 0; i < size; ++i) {
+                out.values[outOffset + i] += a * getFloat(thisOffset + i);
+            }
+            return;
+        }
+        for (int j = 0; j < size; j += BLOCK_SIZE) {
+            var scale = FloatVector.broadcast(F_SPECIES, a * scales[(thisOffset + j) / BLOCK_SIZE]);
+            for (int half = 0; half < BLOCK_SIZE; half += 16) {
+                var q = ByteVector.fromArray(ByteVector.SPECIES_128, quants, thisOffset + j + half);
+                for (int p = 0; p < 16 / F_SPECIES.length(); ++p) {
+                    int index = outOffset + j + half + p * F_SPECIES.length();
+                    ((FloatVector) q.castShape(F_SPECIES, p))
+                        .fma(scale, out.getFloatVector(F_SPECIES, index))
+                        .intoArray(out.values, index);
+                }
+            }
+        }
+    }
+}
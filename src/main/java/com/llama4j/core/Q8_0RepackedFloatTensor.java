@@ -0,0 +1,51 @@
+package com.llama4j.core;
+
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.Vector;
+
+/**
+ * {@link Q8_0FloatTensor} weights in the layout of {@link RepackedFloatTensor}, the quants of a group fill exactly two
+ * 64-byte aligned cache lines.
+ */
+final class Q8_0RepackedFloatTensor extends RepackedFloatTensor {
+
+    static final int QUANTS_BYTES = BLOCK_SIZE;
+
+    private Q8_0RepackedFloatTensor(int rows, int columns) {
+        super(rows, columns, QUANTS_BYTES);
+    }
+
+    static Q8_0RepackedFloatTensor repack(Q8_0FloatTensor tensor, int rows, int columns) {
+        assert canRepack(rows, columns);
+        var result = new Q8_0RepackedFloatTensor(rows, columns);
+        result.copyBlocks(tensor.memorySegment);
+        return result;
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q8_0;
+    }
+
+    @Override
+    int quant(long blockIndex, int index) {
+        return readByte(quants, blockIndex * QUANTS_BYTES + index);
+    }
+
+    @Override
+    FloatVector weights(long blockIndex, int part) {
+        int index = part * F_SPECIES.length();
+        int lanes = B_WEIGHTS_SPECIES.length();
+        var wBytes = ByteVector.fromMemorySegment(B_WEIGHTS_SPECIES, quants, blockIndex * QUANTS_BYTES + index / lanes * lanes, ByteOrder.LITTLE_ENDIAN);
+        return (FloatVector) wBytes.castShape(F_SPECIES, index % lanes / F_SPECIES.length());
+    }
+
+    @Override
+    Vector<Short> widenedQuants(long blockIndex, int k) {
+        var wBytes = ByteVector.fromMemorySegment(B_HALF_SPECIES, quants, blockIndex * QUANTS_BYTES + k, ByteOrder.LITTLE_ENDIAN);
+        return wBytes.castShape(S_SPECIES, 0);
+    }
+}
@@ -0,0 +1,293 @@
+package com.llama4j.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.Vector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Q4_0 or Q8_0 weights copied at load time into a layout tuned for matmul, see {@link ModelLoader#REPACK_WEIGHTS}.
+ * <p>
+ * Rows are interleaved by groups of {@link #ROWS}: the i-th blocks of the rows of a group are stored next to each other,
+ * and {@link #matmul(FloatTensor, FloatTensor, int, int)} hands out whole groups, so each thread streams a contiguous
+ * range of memory. Scales are pre-converted to F32 and stored apart from the quants.
+ * <p>
+ * Subclasses decode the quants of a block, {@link #weights} against floats and {@link #widenedQuants} against Q8_0
+ * quantized activations, a vector at a time, the rows, groups and batches are walked here.
+ */
+abstract class RepackedFloatTensor extends FloatTensor {
+
+    static final int ROWS = 4;
+    // Q4_0 and Q8_0 blocks both hold 32 weights.
+    static final int BLOCK_SIZE = GGMLType.Q8_0.getBlockSize();
+    // Vectors of F_SPECIES.length() weights in a block.
+    static final int PARTS = BLOCK_SIZE / F_SPECIES.length();
+    // Bytes loaded to decode F_SPECIES.length() weights, at least the 64 bits of the smallest byte vector.
+    static final VectorSpecies<Byte> B_WEIGHTS_SPECIES = ByteVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(Math.max(64, F_SPECIES.length() * Byte.SIZE)));
+
+    final int size;
+    final int columns;
+    final int blocksPerRow;
+    final int quantsBytes; // bytes of quants per block
+    final MemorySegment scales;
+    final MemorySegment quants;
+
+    RepackedFloatTensor(int rows, int columns, int quantsBytes) {
+        this.size = rows * columns;
+        this.columns = columns;
+        this.blocksPerRow = columns / BLOCK_SIZE;
+        this.quantsBytes = quantsBytes;
+        long blocks = (long) rows * blocksPerRow;
+        Arena arena = Arena.ofAuto();
+        this.scales = arena.allocate(blocks * Float.BYTES, 64);
+        this.quants = arena.allocate(blocks * quantsBytes, 64);
+    }
+
+    static boolean canRepack(int rows, int columns) {
+        return rows % ROWS == 0 && columns % BLOCK_SIZE == 0;
+    }
+
+    // Copies the GGUF blocks of this type, a float16 scale followed by the quants, to the interleaved layout.
+    void copyBlocks(MemorySegment source) {
+        int rows = size / columns;
+        int typeSize = type().getTypeSize();
+        Parallel.parallelFor(0, rows, row -> {
+            for (int block = 0; block < blocksPerRow; ++block) {
+                long sourceOffset = ((long) row * blocksPerRow + block) * typeSize;
+                long index = blockIndex(row, block);
+                float scale = Float.float16ToFloat(readShort(source, sourceOffset));
+                scales.setAtIndex(ValueLayout.JAVA_FLOAT, index, scale);
+                MemorySegment.copy(source, sourceOffset + Float16.BYTES, quants, index * quantsBytes, quantsBytes);
+            }
+        });
+    }
+
+    // Position of the given block of a row in the scales and quants.
+    long blockIndex(int row, int block) {
+        return ((long) (row / ROWS) * blocksPerRow + block) * ROWS + row % ROWS;
+    }
+
+    /**
+     * Quant of the {@code index}-th weight of a block, the weight without the scale.
+     */
+    abstract int quant(long blockIndex, int index);
+
+    /**
+     * Weights {@code [part * F_SPECIES.length() ... (part + 1) * F_SPECIES.length())} of a block, without the scale.
+     */
+    abstract FloatVector weights(long blockIndex, int part);
+
+    /**
+     * Signed quants {@code [k ... k + S_SPECIES.length())} of a block, widened to shorts.
+     */
+    abstract Vector<Short> widenedQuants(long blockIndex, int k);
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        int column = index % columns;
+        long blockIndex = blockIndex(index / columns, column / BLOCK_SIZE);
+        return quant(blockIndex, column % BLOCK_SIZE) * readFloat(scales, blockIndex * Float.BYTES);
+    }
+
+    @Override
+    FloatTensor matmulInput(FloatTensor that, int size) {
+        if (FloatTensor.QUANTIZE_ACTIVATIONS && size % BLOCK_SIZE == 0) {
+            return Q8_0ArrayFloatTensor.quantize(that, size);
+        }
+        return that;
+    }
+
+    // The integer kernels widen the quants of a block S_SPECIES.length() at a time, within its bytes of quants.
+    private boolean integerDotSupported() {
+        return S_SPECIES.length() <= quantsBytes;
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API && thisOffset % columns == 0 && size == columns) {
+            if (that instanceof Q8_0ArrayFloatTensor quantized && thatOffset % BLOCK_SIZE == 0 && integerDotSupported()) {
+                return integerDot(this, thisOffset / columns, quantized, thatOffset);
+            } else if (that instanceof ArrayFloatTensor thatArray) {
+                return vectorDot(this, thisOffset / columns, thatArray, thatOffset);
+            }
+        }
+        return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+    }
+
+    @Override
+    void matmul(FloatTensor that, FloatTensor out, int dim0, int dim1) {
+        FloatTensor input = matmulInput(that, dim1);
+        if (FloatTensor.USE_VECTOR_API && (input instanceof ArrayFloatTensor || input instanceof Q8_0ArrayFloatTensor) && dim1 == columns) {
+            Parallel.parallelFor(0, dim0 / ROWS, Parallel.MATMUL_GRAIN, group -> dotGroup(this, group, input, out));
+        } else {
+            super.matmul(that, out, dim0, dim1);
+        }
+    }
+
+    @Override
+    void dotBatch(int row, int batchSize, FloatTensor input, FloatTensor out, int dim0, int dim1) {
+        if (FloatTensor.USE_VECTOR_API && input instanceof Q8_0ArrayFloatTensor quantized && dim1 == columns && integerDotSupported()) {
+            integerDotBatch(this, row, quantized, out, batchSize, dim0);
+        } else if (FloatTensor.USE_VECTOR_API && input instanceof ArrayFloatTensor inputArray && dim1 == columns) {
+            vectorDotBatch(this, row, inputArray, out, batchSize, dim0);
+        } else {
+            super.dotBatch(row, batchSize, input, out, dim0, dim1);
+        }
+    }
+
+    private static float vectorDot(RepackedFloatTensor thiz, int row, ArrayFloatTensor that, int thatOffset) {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        for (int block = 0; block < thiz.blocksPerRow; ++block) {
+            long blockIndex = thiz.blockIndex(row, block);
+            var wScale = FloatVector.broadcast(F_SPECIES, readFloat(thiz.scales, blockIndex * Float.BYTES));
+            int j = thatOffset + block * BLOCK_SIZE;
+            FloatVector sum = FloatVector.zero(F_SPECIES);
+            for (int part = 0; part < PARTS; ++part) {
+                sum = that.getFloatVector(F_SPECIES, j + part * F_SPECIES.length()).fma(thiz.weights(blockIndex, part), sum);
+            }
+            val = sum.fma(wScale, val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
+
+    /**
+     * Dot product against Q8_0 quantized activations, the products of the quants are accumulated as integers and
+     * both scales are applied with a single float multiply per block.
+     */
+    private static float integerDot(RepackedFloatTensor thiz, int row, Q8_0ArrayFloatTensor that, int thatOffset) {
+        FloatVector val = FloatVector.zero(F_I_SPECIES);
+        for (int block = 0; block < thiz.blocksPerRow; ++block) {
+            long blockIndex = thiz.blockIndex(row, block);
+            int j = thatOffset + block * BLOCK_SIZE;
+            float scale = readFloat(thiz.scales, blockIndex * Float.BYTES) * that.scales[j / BLOCK_SIZE];
+            IntVector sum = IntVector.zero(I_SPECIES);
+            for (int k = 0; k < BLOCK_SIZE; k += S_SPECIES.length()) {
+                sum = sumOfIntegerProducts(thiz.widenedQuants(blockIndex, k), that, j + k, sum);
+            }
+            val = FloatVector.broadcast(F_I_SPECIES, scale).fma(sum.castShape(F_I_SPECIES, 0), val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
+
+    // The rows of a group are computed together, their blocks share the same cache lines.
+    private static void dotGroup(RepackedFloatTensor thiz, int group, FloatTensor that, FloatTensor out) {
+        for (int r = 0; r < ROWS; ++r) {
+            int row = group * ROWS + r;
+            out.setFloat(row, thiz.dot(row * thiz.columns, that, 0, thiz.columns));
+        }
+    }
+
+    /**
+     * Dot products of the given row against every vector of the batch, 4 vectors at a time so that the weights of a
+     * block are decoded once for all of them.
+     */
+    private static void vectorDotBatch(RepackedFloatTensor thiz, int row, ArrayFloatTensor that, FloatTensor out, int batchSize, int dim0) {
+        int size = thiz.columns;
+        int b = 0;
+        for (; b + 4 <= batchSize; b += 4) {
+            int thatOffset0 = b * size;
+            int thatOffset1 = thatOffset0 + size;
+            int thatOffset2 = thatOffset1 + size;
+            int thatOffset3 = thatOffset2 + size;
+            FloatVector val0 = FloatVector.zero(F_SPECIES);
+            FloatVector val1 = FloatVector.zero(F_SPECIES);
+            FloatVector val2 = FloatVector.zero(F_SPECIES);
+            FloatVector val3 = FloatVector.zero(F_SPECIES);
+            for (int block = 0; block < thiz.blocksPerRow; ++block) {
+                long blockIndex = thiz.blockIndex(row, block);
+                var wScale = FloatVector.broadcast(F_SPECIES, readFloat(thiz.scales, blockIndex * Float.BYTES));
+                FloatVector sum0 = FloatVector.zero(F_SPECIES);
+                FloatVector sum1 = FloatVector.zero(F_SPECIES);
+                FloatVector sum2 = FloatVector.zero(F_SPECIES);
+                FloatVector sum3 = FloatVector.zero(F_SPECIES);
+                for (int part = 0; part < PARTS; ++part) {
+                    var w = thiz.weights(blockIndex, part);
+                    int k = block * BLOCK_SIZE + part * F_SPECIES.length();
+                    sum0 = that.getFloatVector(F_SPECIES, thatOffset0 + k).fma(w, sum0);
+                    sum1 = that.getFloatVector(F_SPECIES, thatOffset1 + k).fma(w, sum1);
+                    sum2 = that.getFloatVector(F_SPECIES, thatOffset2 + k).fma(w, sum2);
+                    sum3 = that.getFloatVector(F_SPECIES, thatOffset3 + k).fma(w, sum3);
+                }
+                val0 = sum0.fma(wScale, val0);
+                val1 = sum1.fma(wScale, val1);
+                val2 = sum2.fma(wScale, val2);
+                val3 = sum3.fma(wScale, val3);
+            }
+            out.setFloat(b * dim0 + row, val0.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 1) * dim0 + row, val1.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 2) * dim0 + row, val2.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 3) * dim0 + row, val3.reduceLanes(VectorOperators.ADD));
+        }
+        // Remaining vectors of the batch.
+        for (; b < batchSize; ++b) {
+            out.setFloat(b * dim0 + row, vectorDot(thiz, row, that, b * size));
+        }
+    }
+
+    // Same as vectorDotBatch against Q8_0 quantized activations, each chunk of weights is widened once for 4 vectors.
+    private static void integerDotBatch(RepackedFloatTensor thiz, int row, Q8_0ArrayFloatTensor that, FloatTensor out, int batchSize, int dim0) {
+        int size = thiz.columns;
+        int b = 0;
+        for (; b + 4 <= batchSize; b += 4) {
+            int thatOffset0 = b * size;
+            int thatOffset1 = thatOffset0 + size;
+            int thatOffset2 = thatOffset1 + size;
+            int thatOffset3 = thatOffset2 + size;
+            FloatVector val0 = FloatVector.zero(F_I_SPECIES);
+            FloatVector val1 = FloatVector.zero(F_I_SPECIES);
+            FloatVector val2 = FloatVector.zero(F_I_SPECIES);
+            FloatVector val3 = FloatVector.zero(F_I_SPECIES);
+            for (int block = 0; block < thiz.blocksPerRow; ++block) {
+                long blockIndex = thiz.blockIndex(row, block);
+                float wScale = readFloat(thiz.scales, blockIndex * Float.BYTES);
+                int j = block * BLOCK_SIZE;
+                IntVector sum0 = IntVector.zero(I_SPECIES);
+                IntVector sum1 = IntVector.zero(I_SPECIES);
+                IntVector sum2 = IntVector.zero(I_SPECIES);
+                IntVector sum3 = IntVector.zero(I_SPECIES);
+                for (int k = 0; k < BLOCK_SIZE; k += S_SPECIES.length()) {
+                    var w = thiz.widenedQuants(blockIndex, k);
+                    sum0 = sumOfIntegerProducts(w, that, thatOffset0 + j + k, sum0);
+                    sum1 = sumOfIntegerProducts(w, that, thatOffset1 + j + k, sum1);
+                    sum2 = sumOfIntegerProducts(w, that, thatOffset2 + j + k, sum2);
+                    sum3 = sumOfIntegerProducts(w, that, thatOffset3 + j + k, sum3);
+                }
+                val0 = FloatVector.broadcast(F_I_SPECIES, wScale * that.scales[(thatOffset0 + j) / BLOCK_SIZE]).fma(sum0.castShape(F_I_SPECIES, 0), val0);
+                val1 = FloatVector.broadcast(F_I_SPECIES, wScale * that.scales[(thatOffset1 + j) / BLOCK_SIZE]).fma(sum1.castShape(F_I_SPECIES, 0), val1);
+                val2 = FloatVector.broadcast(F_I_SPECIES, wScale * that.scales[(thatOffset2 + j) / BLOCK_SIZE]).fma(sum2.castShape(F_I_SPECIES, 0), val2);
+                val3 = FloatVector.broadcast(F_I_SPECIES, wScale * that.scales[(thatOffset3 + j) / BLOCK_SIZE]).fma(sum3.castShape(F_I_SPECIES, 0), val3);
+            }
+            out.setFloat(b * dim0 + row, val0.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 1) * dim0 + row, val1.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 2) * dim0 + row, val2.reduceLanes(VectorOperators.ADD));
+            out.setFloat((b + 3) * dim0 + row, val3.reduceLanes(VectorOperators.ADD));
+        }
+        // Remaining vectors of the batch.
+        for (; b < batchSize; ++b) {
+            out.setFloat(b * dim0 + row, integerDot(thiz, row, that, b * size));
+        }
+    }
+}
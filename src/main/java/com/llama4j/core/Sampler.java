@@ -4,5 +4,11 @@ package com.llama4j.core;
 public interface Sampler {
     int sampleToken(FloatTensor logits);
 
+    /**
+     * Notifies the sampler of a token appended to the generated sequence, e.g. for repetition penalties.
+     */
+    default void accept(int token) {
+    }
+
     Sampler ARGMAX = FloatTensor::argmax;
 }
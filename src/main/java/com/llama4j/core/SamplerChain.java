@@ -0,0 +1,314 @@
+package com.llama4j.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.random.RandomGenerator;
+
+import org.jetbrains.annotations.NotNull;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * Logits processing and sampling pipeline, every stage narrows the candidate set of the next one:
+ * <ol>
+ * <li>repetition, presence and frequency penalties and logit bias, applied in place to the few tokens concerned,</li>
+ * <li>top-k and min-p, in a single (vectorized) scan of the logits: min-p is a threshold on the logits,
+ * {@code max + temperature * ln(minP)}, and top-k keeps the k largest in a heap,</li>
+ * <li>temperature and softmax, over the candidates only (over the whole vocabulary without top-k and min-p),</li>
+ * <li>top-p, by quickselect over the candidates, and a categorical pick.</li>
+ * </ol>
+ * Penalties count the {@link #accept accepted} tokens in a primitive open-addressing table. The candidate buffers, as large
+ * as the vocabulary, are pooled and shared by all the chains instead of being allocated per request.
+ */
+final class SamplerChain implements DistributionSampler {
+
+    // Candidate buffers, borrowed for the duration of a call.
+    private static final class Workspace {
+        int[] tokens = new int[0];
+        float[] values = new float[0];
+        long[] candidates = new long[0]; // ToppSampler keys, (probability, token)
+
+        Workspace ensureCapacity(int size) {
+            if (tokens.length < size) {
+                tokens = new int[size];
+                values = new float[size];
+                candidates = new long[size];
+            }
+            return this;
+        }
+    }
+
+    private static final ConcurrentLinkedDeque<Workspace> WORKSPACES = new ConcurrentLinkedDeque<>();
+
+    // Number of times each token was accepted, open addressing with linear probing.
+    private static final class TokenCounts {
+        int[] tokens = new int[16];
+        int[] counts = new int[16];
+        int size;
+
+        TokenCounts() {
+            Arrays.fill(tokens, -1);
+        }
+
+        void increment(int token) {
+            int slot = slot(tokens, token);
+            if (tokens[slot] == -1) {
+                if ((size + 1) * 2 > tokens.length) {
+                    grow();
+                    slot = slot(tokens, token);
+                }
+                tokens[slot] = token;
+                size++;
+            }
+            counts[slot]++;
+        }
+
+        private static int slot(int[] tokens, int token) {
+            int mask = tokens.length - 1;
+            int hash = token * 0x9E3779B9;
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (tokens[slot] != -1 && tokens[slot] != token) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            int[] oldTokens = tokens;
+            int[] oldCounts = counts;
+            tokens = new int[oldTokens.length * 2];
+            counts = new int[oldTokens.length * 2];
+            Arrays.fill(tokens, -1);
+            for (int i = 0; i < oldTokens.length; i++) {
+                if (oldTokens[i] != -1) {
+                    int slot = slot(tokens, oldTokens[i]);
+                    tokens[slot] = oldTokens[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+    }
+
+    private final SamplerOptions options;
+    private final RandomGenerator rng;
+    private final CategoricalSampler categorical;
+    private final int[] biasedTokens;
+    private final float[] biases;
+    private final TokenCounts counts; // null without penalties
+
+    SamplerChain(@NotNull SamplerOptions options, @NotNull RandomGenerator rng) {
+        this.options = options;
+        this.rng = rng;
+        this.categorical = new CategoricalSampler(rng);
+        this.biasedTokens = options.logitBias().keySet().stream().mapToInt(Integer::intValue).toArray();
+        this.biases = new float[biasedTokens.length];
+        for (int i = 0; i < biasedTokens.length; i++) {
+            biases[i] = options.logitBias().get(biasedTokens[i]);
+        }
+        this.counts = options.penalizesRepetitions() ? new TokenCounts() : null;
+    }
+
+    @Override
+    public void accept(int token) {
+        if (counts != null) {
+            counts.increment(token);
+        }
+    }
+
+    @Override
+    public int sampleToken(@NotNull FloatTensor logits) {
+        Workspace workspace = borrow(logits.size());
+        try {
+            int n = process(logits, workspace);
+            long[] candidates = workspace.candidates;
+            float cumulativeProb = 0f;
+            for (int i = 0; i < n; i++) {
+                cumulativeProb += ToppSampler.probability(candidates[i]);
+            }
+            float r = rng.nextFloat(1f) * cumulativeProb;
+            float cdf = 0f;
+            for (int i = 0; i < n; i++) {
+                cdf += ToppSampler.probability(candidates[i]);
+                if (r < cdf) {
+                    return ToppSampler.index(candidates[i]);
+                }
+            }
+            return ToppSampler.index(candidates[n - 1]); // in case of rounding errors
+        } finally {
+            WORKSPACES.push(workspace);
+        }
+    }
+
+    @Override
+    public void probabilitiesInPlace(@NotNull FloatTensor logits) {
+        Workspace workspace = borrow(logits.size());
+        try {
+            int n = process(logits, workspace);
+            long[] candidates = workspace.candidates;
+            float cumulativeProb = 0f;
+            for (int i = 0; i < n; i++) {
+                cumulativeProb += ToppSampler.probability(candidates[i]);
+            }
+            logits.fillInPlace(0, logits.size());
+            for (int i = 0; i < n; i++) {
+                logits.setFloat(ToppSampler.index(candidates[i]), ToppSampler.probability(candidates[i]) / cumulativeProb);
+            }
+        } finally {
+            WORKSPACES.push(workspace);
+        }
+    }
+
+    @Override
+    public int sampleFromProbabilities(@NotNull FloatTensor probabilities) {
+        return categorical.sampleToken(probabilities);
+    }
+
+    @Override
+    public float nextFloat() {
+        return rng.nextFloat(1f);
+    }
+
+    private static Workspace borrow(int size) {
+        Workspace workspace = WORKSPACES.poll();
+        return (workspace != null ? workspace : new Workspace()).ensureCapacity(size);
+    }
+
+    // Runs all the stages, the candidates left are workspace.candidates[0, n) with their probabilities, n is returned.
+    private int process(FloatTensor logits, Workspace workspace) {
+        penalize(logits);
+        float temperature = options.temperature();
+        if (temperature == 0f) {
+            workspace.candidates[0] = ToppSampler.candidate(1f, logits.argmax());
+            return 1;
+        }
+        if (options.topK() <= 0 && options.minP() <= 0f) {
+            // the whole vocabulary: vectorized softmax in place, then top-p over the probabilities that can be part of it
+            logits.divideInPlace(0, logits.size(), temperature);
+            logits.softmaxInPlace(0, logits.size());
+            if (options.topp() <= 0f || options.topp() >= 1f) {
+                return ToppSampler.selectCandidates(logits, 0f, workspace.candidates);
+            }
+            float cutoff = (1.0f - options.topp()) / (logits.size() - 1);
+            int n = ToppSampler.selectCandidates(logits, cutoff, workspace.candidates);
+            return ToppSampler.selectNucleus(workspace.candidates, n, options.topp());
+        }
+        float max = logits.max(0, logits.size());
+        float threshold = options.minP() > 0f
+            ? max + temperature * (float) Math.log(options.minP())
+            : Float.NEGATIVE_INFINITY;
+        int k = options.topK() > 0 ? options.topK() : Integer.MAX_VALUE;
+        int n = FloatTensor.USE_VECTOR_API && logits instanceof ArrayFloatTensor array
+            ? selectCandidates(array.values, logits.size(), threshold, k, workspace)
+            : selectCandidates(logits, threshold, k, workspace);
+
+        // temperature and softmax over the candidates, the max logit is always one of them
+        float sum = 0f;
+        for (int i = 0; i < n; i++) {
+            float exp = (float) Math.exp((workspace.values[i] - max) / temperature);
+            workspace.values[i] = exp;
+            sum += exp;
+        }
+        for (int i = 0; i < n; i++) {
+            workspace.candidates[i] = ToppSampler.candidate(workspace.values[i] / sum, workspace.tokens[i]);
+        }
+        if (options.topp() > 0f && options.topp() < 1f) {
+            n = ToppSampler.selectNucleus(workspace.candidates, n, options.topp());
+        }
+        return n;
+    }
+
+    private void penalize(FloatTensor logits) {
+        if (counts != null) {
+            for (int slot = 0; slot < counts.tokens.length; slot++) {
+                int token = counts.tokens[slot];
+                if (token == -1) {
+                    continue;
+                }
+                float logit = logits.getFloat(token);
+                if (options.repetitionPenalty() != 1f) {
+                    logit = logit > 0 ? logit / options.repetitionPenalty() : logit * options.repetitionPenalty();
+                }
+                logit -= counts.counts[slot] * options.frequencyPenalty() + options.presencePenalty();
+                logits.setFloat(token, logit);
+            }
+        }
+        for (int i = 0; i < biasedTokens.length; i++) {
+            logits.setFloat(biasedTokens[i], logits.getFloat(biasedTokens[i]) + biases[i]);
+        }
+    }
+
+    private static int selectCandidates(FloatTensor logits, float threshold, int k, Workspace workspace) {
+        int n = 0;
+        for (int i = 0; i < logits.size(); i++) {
+            n = offer(workspace, n, k, i, logits.getFloat(i), threshold);
+        }
+        return n;
+    }
+
+    // Vectorized, whole vectors below the threshold, or the smallest of a full top-k heap, are skipped.
+    private static int selectCandidates(float[] logits, int size, float threshold, int k, Workspace workspace) {
+        var species = FloatTensor.F_SPECIES;
+        int upperBound = species.loopBound(size);
+        int n = 0;
+        int i = 0;
+        for (; i < upperBound; i += species.length()) {
+            float cutoff = n < k ? threshold : Math.max(threshold, Math.nextUp(workspace.values[0]));
+            long mask = FloatVector.fromArray(species, logits, i).compare(VectorOperators.GE, cutoff).toLong();
+            while (mask != 0) {
+                int lane = Long.numberOfTrailingZeros(mask);
+                n = offer(workspace, n, k, i + lane, logits[i + lane], threshold);
+                mask &= mask - 1;
+            }
+        }
+        for (; i < size; i++) {
+            n = offer(workspace, n, k, i, logits[i], threshold);
+        }
+        return n;
+    }
+
+    // Adds a candidate, the first n form a min-heap on values once there are k of them, returns the new count.
+    private static int offer(Workspace workspace, int n, int k, int token, float value, float threshold) {
+        if (value < threshold) {
+            return n;
+        }
+        int[] tokens = workspace.tokens;
+        float[] values = workspace.values;
+        if (n < k) {
+            tokens[n] = token;
+            values[n] = value;
+            if (++n == k) {
+                for (int i = k / 2 - 1; i >= 0; i--) {
+                    siftDown(tokens, values, i, k);
+                }
+            }
+            return n;
+        }
+        if (value > values[0]) {
+            tokens[0] = token;
+            values[0] = value;
+            siftDown(tokens, values, 0, k);
+        }
+        return n;
+    }
+
+    private static void siftDown(int[] tokens, float[] values, int from, int n) {
+        int prev = from, next;
+        while ((next = 2 * prev + 1) < n) {
+            int r = next + 1;
+            if (r < n && values[r] < values[next]) {
+                next = r;
+            }
+            if (values[next] >= values[prev]) {
+                break;
+            }
+            float value = values[prev];
+            values[prev] = values[next];
+            values[next] = value;
+            int token = tokens[prev];
+            tokens[prev] = tokens[next];
+            tokens[next] = token;
+            prev = next;
+        }
+    }
+}
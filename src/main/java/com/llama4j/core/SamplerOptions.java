@@ -0,0 +1,34 @@
+package com.llama4j.core;
+
+import java.util.Map;
+
+/**
+ * Logits processing and sampling settings of a request, see {@link Llama3#selectSampler(int, SamplerOptions, long)}.
+ *
+ * @param temperature       0 for greedy sampling
+ * @param topp              top-p (nucleus) probability, 0 or 1 to disable
+ * @param topK              number of most likely tokens kept, 0 to disable
+ * @param minP              tokens less likely than {@code minP} times the most likely one are dropped, 0 to disable
+ * @param presencePenalty   subtracted from the logits of the tokens generated so far
+ * @param frequencyPenalty  subtracted from the logit of a token for every time it was generated so far
+ * @param repetitionPenalty the logits of the tokens generated so far are divided by it if positive, multiplied otherwise;
+ *                          1 to disable
+ * @param logitBias         added to the logits of the given tokens
+ */
+public record SamplerOptions(float temperature,
+                             float topp,
+                             int topK,
+                             float minP,
+                             float presencePenalty,
+                             float frequencyPenalty,
+                             float repetitionPenalty,
+                             Map<Integer, Float> logitBias) {
+
+    public SamplerOptions(float temperature, float topp) {
+        this(temperature, topp, 0, 0f, 0f, 0f, 1f, Map.of());
+    }
+
+    boolean penalizesRepetitions() {
+        return presencePenalty != 0f || frequencyPenalty != 0f || repetitionPenalty != 1f;
+    }
+}
@@ -0,0 +1,138 @@
+package com.llama4j.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side conversations: the {@link Llama.State} and token history of a session are kept between requests, so that
+ * a new turn only ingests the new message.
+ * <p>
+ * Sessions idle for longer than the timeout are closed, giving their KV cache back to the pool. When the cap on live
+ * sessions is reached, the least recently used idle session is closed to make room. Sessions in use when the manager is
+ * closed are closed when they are released.
+ */
+public final class SessionManager implements AutoCloseable {
+
+    public static final class Session {
+        private final String id;
+        private final Llama.State state;
+        // all the tokens in position order, the KV cache of the state holds the first state.length ones
+        private final List<Integer> tokens = new ArrayList<>();
+        private boolean busy;
+        private long lastUsedNanos;
+
+        private Session(String id, Llama.State state) {
+            this.id = id;
+            this.state = state;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public Llama.State state() {
+            return state;
+        }
+
+        public List<Integer> tokens() {
+            return tokens;
+        }
+    }
+
+    private final Llama model;
+    private final int maxSessions;
+    private final long idleTimeoutNanos;
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private final ScheduledExecutorService reaper;
+    private boolean closed;
+
+    public SessionManager(@NotNull Llama model, int maxSessions, @NotNull Duration idleTimeout) {
+        this.model = model;
+        this.maxSessions = maxSessions;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.reaper = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("llama-session-reaper").daemon().factory());
+        long period = Math.max(1, idleTimeout.toMillis() / 4);
+        reaper.scheduleWithFixedDelay(this::closeIdleSessions, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the session with the given id, created if needed, for the exclusive use of the caller until {@link #release}.
+     *
+     * @throws IllegalStateException if the session is already in use, the cap on live sessions is reached and none is
+     *                               idle, or the manager is closed
+     */
+    public synchronized @NotNull Session acquire(@NotNull String id) {
+        if (closed) {
+            throw new IllegalStateException("Session manager is closed");
+        }
+        Session session = sessions.get(id);
+        if (session == null) {
+            if (sessions.size() >= maxSessions) {
+                evictLeastRecentlyUsed();
+            }
+            session = new Session(id, model.createNewState());
+            sessions.put(id, session);
+        }
+        if (session.busy) {
+            throw new IllegalStateException("Session " + id + " is already in use");
+        }
+        session.busy = true;
+        return session;
+    }
+
+    /**
+     * Gives back a session obtained from {@link #acquire}, it is discarded if its state could not be updated consistently.
+     */
+    public synchronized void release(@NotNull Session session, boolean discard) {
+        session.busy = false;
+        session.lastUsedNanos = System.nanoTime();
+        if (closed) {
+            session.state.close(); // in use while the manager was closed
+        } else if (discard && sessions.remove(session.id, session)) {
+            session.state.close();
+        }
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    private void evictLeastRecentlyUsed() {
+        for (Iterator<Session> iterator = sessions.values().iterator(); iterator.hasNext(); ) {
+            Session session = iterator.next();
+            if (!session.busy) {
+                iterator.remove();
+                session.state.close();
+                return;
+            }
+        }
+        throw new IllegalStateException("Too many sessions, all " + maxSessions + " are in use");
+    }
+
+    private synchronized void closeIdleSessions() {
+        long now = System.nanoTime();
+        for (Iterator<Session> iterator = sessions.values().iterator(); iterator.hasNext(); ) {
+            Session session = iterator.next();
+            if (!session.busy && now - session.lastUsedNanos > idleTimeoutNanos) {
+                iterator.remove();
+                session.state.close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        reaper.shutdownNow();
+        sessions.values().stream().filter(session -> !session.busy).forEach(session -> session.state.close());
+        sessions.clear();
+    }
+}
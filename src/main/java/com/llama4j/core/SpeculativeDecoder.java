@@ -0,0 +1,373 @@
+package com.llama4j.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Speculative decoding of a sequence: the next {@code k} tokens are drafted, then the target model verifies them all in a
+ * single batched forward over {@code k + 1} positions, so the target weights are streamed once for up to {@code k + 1}
+ * generated tokens. Tokens are drafted either
+ * <ul>
+ * <li>by a small draft model with the same vocabulary, one by one, or</li>
+ * <li>by prompt lookup, without a second model: the tokens that followed the latest earlier occurrence of the last
+ * {@code n} tokens (at most {@code llama.PromptLookupNgram}, longest match first) in the prompt and history are proposed,
+ * which pays off when the output copies spans of its input, e.g. summarization, extraction or code edits.</li>
+ * </ul>
+ * <p>
+ * Draft tokens are accepted with rejection sampling: token {@code d} drafted with probability {@code q(d)} is accepted with
+ * probability {@code min(1, p(d) / q(d))} where {@code p} is the target distribution, the first rejected one is replaced
+ * by a token drawn from {@code max(0, p - q)}; looked up tokens are drafted with {@code q(d) = 1}. The generated tokens
+ * follow the distribution of the target model, with {@link Sampler#ARGMAX} they are exactly the tokens generated without
+ * speculation. Only {@link Sampler#ARGMAX} and {@link DistributionSampler}s can be verified.
+ * <p>
+ * The draft length adapts to the acceptance rate: it grows by 2 while all the draft tokens are accepted, up to
+ * {@code llama.MaxDraftTokens}, and shrinks by 1 on a rejection.
+ * <p>
+ * The draft model has its own {@link Llama.State}, after a step its KV cache holds the same positions as the target's,
+ * rejected positions are truncated from both. Positions decoded without the draft are caught up by the next step.
+ * If no continuation is found by prompt lookup, the step is not speculated.
+ * <p>
+ * A decoder speculates one sequence at a time and is {@link #reset} to go on with another one, its buffers are reused.
+ */
+public final class SpeculativeDecoder implements AutoCloseable {
+
+    static final int MAX_DRAFT_TOKENS = Integer.getInteger("llama.MaxDraftTokens", 8);
+    static final int PROMPT_LOOKUP_NGRAM = Integer.getInteger("llama.PromptLookupNgram", 3);
+    private static final int INITIAL_DRAFT_TOKENS = Math.min(4, MAX_DRAFT_TOKENS);
+
+    private final Llama model;
+    private final Llama draft; // null for prompt lookup
+    final Llama.State draftState;
+    private final int vocabularySize;
+    private final FloatTensor logits; // (max_draft_tokens + 1, vocabulary_size), target logits of the verified positions
+    private final FloatTensor draftProbabilities; // (max_draft_tokens, vocabulary_size), null for prompt lookup
+    private final FloatTensor probabilities; // (vocabulary_size,)
+    private final NgramIndex ngrams = new NgramIndex(); // prompt lookup
+    private int draftTokens = INITIAL_DRAFT_TOKENS;
+    private long proposedTokens;
+    private long acceptedTokens;
+
+    /**
+     * Speculative decoding with tokens drafted by prompt lookup.
+     */
+    public SpeculativeDecoder(@NotNull Llama model) {
+        this.model = model;
+        this.draft = null;
+        this.draftState = null;
+        this.vocabularySize = model.configuration().vocabularySize;
+        this.logits = ArrayFloatTensor.allocate(MAX_DRAFT_TOKENS + 1, vocabularySize);
+        this.draftProbabilities = null;
+        this.probabilities = ArrayFloatTensor.allocate(vocabularySize);
+    }
+
+    /**
+     * Speculative decoding with tokens drafted by {@code draft}.
+     */
+    public SpeculativeDecoder(@NotNull Llama model, @NotNull Llama draft) {
+        if (model.configuration().vocabularySize != draft.configuration().vocabularySize) {
+            throw new IllegalArgumentException("Draft model vocabulary size " + draft.configuration().vocabularySize
+                + " differs from " + model.configuration().vocabularySize);
+        }
+        this.model = model;
+        this.draft = draft;
+        this.draftState = draft.createNewState();
+        this.vocabularySize = model.configuration().vocabularySize;
+        this.logits = ArrayFloatTensor.allocate(MAX_DRAFT_TOKENS + 1, vocabularySize);
+        this.draftProbabilities = ArrayFloatTensor.allocate(MAX_DRAFT_TOKENS, vocabularySize);
+        this.probabilities = ArrayFloatTensor.allocate(vocabularySize);
+    }
+
+    /**
+     * Generates the next tokens of {@code state}: the tokens following the one at {@code position}, not forwarded yet,
+     * up to and including the first stop token, at most {@code maxNewTokens}.
+     * On return the KV cache of the state holds the positions before the last generated token, and the generated tokens
+     * were {@link Sampler#accept accepted} by the sampler.
+     *
+     * @param tokens       tokens in position order, token {@code i} at position {@code tokensOffset + i}, up to {@code position}
+     * @param tokensOffset position of the first of {@code tokens}, the draft state must already hold the previous ones
+     * @return the generated tokens, or null if this step cannot be speculated: the caller forwards the token as usual
+     */
+    List<Integer> step(Llama.State state, List<Integer> tokens, int tokensOffset, int position, Sampler sampler,
+                       Set<Integer> stopTokens, int maxNewTokens) {
+        boolean greedy = sampler == Sampler.ARGMAX;
+        if (!greedy && !(sampler instanceof DistributionSampler)) {
+            return null;
+        }
+        int k = Math.min(Math.min(draftTokens, maxNewTokens - 1), state.batchSize - 1);
+        int[] rows;
+        if (draft == null) {
+            rows = lookup(tokens, position - tokensOffset + 1, k, ngrams);
+            if (rows == null) {
+                return null;
+            }
+            k = rows.length - 1;
+        } else {
+            k = Math.min(Math.min(k, draftState.batchSize - 1), draft.configuration().contextLength - position);
+            if (k < 1 || !catchUp(tokens, tokensOffset, position)) {
+                return null;
+            }
+            rows = new int[k + 1];
+            rows[0] = tokens.get(position - tokensOffset);
+            draft(rows, position, greedy ? null : (DistributionSampler) sampler);
+        }
+
+        // verify them with the target model, row i predicts the token at position + i + 1
+        Llama.forwardBatch(model, state, rows, position, logits);
+        List<Integer> generated = new ArrayList<>(k + 1);
+        int accepted = 0;
+        while (accepted < k) {
+            logits.copyTo(accepted * vocabularySize, probabilities, 0, vocabularySize);
+            int drafted = rows[accepted + 1];
+            if (greedy) {
+                int token = probabilities.argmax();
+                if (token != drafted) {
+                    generated.add(token);
+                    break;
+                }
+            } else {
+                DistributionSampler distribution = (DistributionSampler) sampler;
+                distribution.probabilitiesInPlace(probabilities);
+                float p = probabilities.getFloat(drafted);
+                float q = draft == null ? 1f : draftProbabilities.getFloat(accepted * vocabularySize + drafted);
+                if (distribution.nextFloat() * q >= p) {
+                    generated.add(sampleResidual(distribution, accepted, drafted));
+                    break;
+                }
+            }
+            generated.add(drafted);
+            sampler.accept(drafted); // the distribution of the next row depends on it, e.g. repetition penalties
+            accepted++;
+        }
+        if (accepted == k) {
+            // all the draft tokens are accepted, the last row gives one more token
+            logits.copyTo(k * vocabularySize, probabilities, 0, vocabularySize);
+            generated.add(sampler.sampleToken(probabilities));
+        }
+        sampler.accept(generated.getLast());
+        proposedTokens += k;
+        acceptedTokens += accepted;
+        draftTokens = accepted == k ? Math.min(draftTokens + 2, MAX_DRAFT_TOKENS) : Math.max(1, draftTokens - 1);
+
+        for (int i = 0; i < generated.size(); i++) {
+            if (stopTokens.contains(generated.get(i))) {
+                generated = generated.subList(0, i + 1);
+                break;
+            }
+        }
+        // the positions of the generated tokens but the last one hold accepted tokens
+        int length = position + generated.size();
+        state.truncate(length);
+        if (draftState != null) {
+            draftState.truncate(length);
+            if (draftState.length < length) {
+                // all accepted, the draft has not seen its last token yet
+                Llama.forwardBatch(draft, draftState, new int[]{rows[k]}, position + k);
+            }
+        }
+        return generated;
+    }
+
+    // Proposes rows[1..k] with the draft model, from rows[0] at position; greedily if the sampler is null.
+    private void draft(int[] rows, int position, DistributionSampler sampler) {
+        for (int i = 0; i + 1 < rows.length; i++) {
+            FloatTensor draftLogits = Llama.forward(draft, draftState, rows[i], position + i);
+            if (sampler == null) {
+                rows[i + 1] = draftLogits.argmax();
+            } else {
+                sampler.probabilitiesInPlace(draftLogits);
+                draftLogits.copyTo(0, draftProbabilities, i * vocabularySize, vocabularySize);
+                rows[i + 1] = sampler.sampleFromProbabilities(draftLogits);
+            }
+        }
+    }
+
+    // Prompt lookup: rows[0] is the last of tokens[0, end), rows[1..] the (at most k) tokens that followed the latest earlier
+    // occurrence of its last n tokens, longest n first; null if none.
+    private static int[] lookup(List<Integer> tokens, int end, int k, NgramIndex ngrams) {
+        if (k < 1) {
+            return null;
+        }
+        ngrams.indexUpTo(tokens, end - 1); // the occurrences ending before the last token
+        for (int n = Math.min(PROMPT_LOOKUP_NGRAM, end - 1); n >= 1; n--) {
+            int occurrenceEnd = ngrams.latestEnd(tokens, end, n);
+            if (occurrenceEnd != -1) {
+                int count = Math.min(k, end - occurrenceEnd);
+                int[] rows = new int[count + 1];
+                rows[0] = tokens.get(end - 1);
+                for (int i = 0; i < count; i++) {
+                    rows[i + 1] = tokens.get(occurrenceEnd + i);
+                }
+                return rows;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * End of the latest occurrence of every n-gram of the tokens of a sequence, for every n up to
+     * {@link #PROMPT_LOOKUP_NGRAM}, in a primitive open-addressing table keyed by the hash of the n-gram. It is updated
+     * with the n-grams of the new tokens only, so a lookup does not scan the history.
+     */
+    private static final class NgramIndex {
+        private long[] keys = new long[1024]; // 0 for an empty slot
+        private int[] ends = new int[1024];
+        private int size;
+        private int indexed; // the n-grams ending at or before are indexed
+
+        void clear() {
+            Arrays.fill(keys, 0L);
+            size = 0;
+            indexed = 0;
+        }
+
+        private static long hash(List<Integer> tokens, int end, int n) {
+            long hash = n * 0xC2B2AE3D27D4EB4FL;
+            for (int i = end - n; i < end; i++) {
+                hash = (hash ^ tokens.get(i)) * 0x9E3779B97F4A7C15L;
+            }
+            hash ^= hash >>> 29;
+            return hash != 0 ? hash : 1;
+        }
+
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (key ^ key >>> 32) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        // Indexes the n-grams ending at positions up to end, later occurrences replace earlier ones.
+        void indexUpTo(List<Integer> tokens, int end) {
+            if (end < indexed) {
+                clear(); // another sequence
+            }
+            for (int e = indexed + 1; e <= end; e++) {
+                for (int n = 1; n <= Math.min(PROMPT_LOOKUP_NGRAM, e); n++) {
+                    long key = hash(tokens, e, n);
+                    int slot = slot(key);
+                    if (keys[slot] == 0) {
+                        keys[slot] = key;
+                        if (++size > keys.length / 2) {
+                            grow();
+                            slot = slot(key);
+                        }
+                    }
+                    ends[slot] = e;
+                }
+            }
+            indexed = Math.max(indexed, end);
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldEnds = ends;
+            keys = new long[2 * oldKeys.length];
+            ends = new int[2 * oldEnds.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    ends[slot] = oldEnds[i];
+                }
+            }
+        }
+
+        /**
+         * End of the latest indexed occurrence of {@code tokens[end - n, end)}, or -1 if there is none.
+         */
+        int latestEnd(List<Integer> tokens, int end, int n) {
+            long key = hash(tokens, end, n);
+            int slot = slot(key);
+            if (keys[slot] == 0) {
+                return -1;
+            }
+            int occurrenceEnd = ends[slot];
+            for (int i = 1; i <= n; i++) {
+                if (!tokens.get(occurrenceEnd - i).equals(tokens.get(end - i))) {
+                    return -1; // another n-gram with the same hash
+                }
+            }
+            return occurrenceEnd;
+        }
+    }
+
+    /**
+     * Fraction of the draft tokens accepted so far.
+     */
+    public float acceptanceRate() {
+        return proposedTokens == 0 ? 0f : (float) acceptedTokens / proposedTokens;
+    }
+
+    // Brings the KV cache of the draft up to position, restoring from its prefix cache first if it is empty.
+    private boolean catchUp(List<Integer> tokens, int tokensOffset, int position) {
+        if (draftState.blockTable.isEmpty() && tokensOffset == 0) {
+            draft.prefixCache().restore(draftState, tokens, position);
+        }
+        draftState.truncate(position);
+        int from = draftState.length;
+        if (from < tokensOffset) {
+            return false;
+        }
+        int[] missing = tokens.subList(from - tokensOffset, position - tokensOffset).stream().mapToInt(Integer::intValue).toArray();
+        Llama.forwardBatch(draft, draftState, missing, from);
+        return true;
+    }
+
+    // Draws the replacement of the rejected draft token from max(0, p - q), normalized; p is in probabilities.
+    private int sampleResidual(DistributionSampler sampler, int row, int drafted) {
+        float sum = 0f;
+        if (draft == null) {
+            // q is 1 for the looked up token
+            sum = 1f - probabilities.getFloat(drafted);
+            probabilities.setFloat(drafted, 0f);
+        } else {
+            for (int i = 0; i < vocabularySize; i++) {
+                float residual = Math.max(0f, probabilities.getFloat(i) - draftProbabilities.getFloat(row * vocabularySize + i));
+                probabilities.setFloat(i, residual);
+                sum += residual;
+            }
+        }
+        if (sum <= 0f) {
+            // p == q up to rounding, the token was rejected by a hair
+            logits.copyTo(row * vocabularySize, probabilities, 0, vocabularySize);
+            sampler.probabilitiesInPlace(probabilities);
+            return sampler.sampleFromProbabilities(probabilities);
+        }
+        probabilities.divideInPlace(0, vocabularySize, sum);
+        return sampler.sampleFromProbabilities(probabilities);
+    }
+
+    /**
+     * Caches the KV cache of the draft for {@code tokens} (token {@code i} at position {@code i}), then {@link #reset()}s.
+     */
+    void reset(List<Integer> tokens) {
+        if (draft != null) {
+            draft.prefixCache().insert(draftState, tokens);
+        }
+        reset();
+    }
+
+    /**
+     * Empties the KV cache of the draft and restarts the adaptation of the draft length, to speculate another sequence.
+     */
+    void reset() {
+        if (draftState != null) {
+            draftState.clear();
+        }
+        ngrams.clear();
+        draftTokens = INITIAL_DRAFT_TOKENS;
+    }
+
+    @Override
+    public void close() {
+        if (draftState != null) {
+            draftState.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.llama4j.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Incremental detokenizer of a stream of generated tokens: the bytes of every token are copied from the table of the
+ * {@link Tokenizer}, and text is emitted only up to the last complete UTF-8 character. A character split across tokens
+ * is held back, at most 3 bytes, until the token completing it, so that streamed text never holds half characters.
+ * <p>
+ * Not thread-safe, one per stream.
+ */
+final class StreamingDecoder {
+
+    private final Tokenizer tokenizer;
+    private byte[] pending = new byte[64];
+    private int size;
+
+    StreamingDecoder(@NotNull Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Appends the token, returns the text completed by it, empty if it only holds part of a character.
+     */
+    @NotNull String decode(int token) {
+        byte[] bytes = tokenizer.tokenBytes(token);
+        if (size + bytes.length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(2 * pending.length, size + bytes.length));
+        }
+        System.arraycopy(bytes, 0, pending, size, bytes.length);
+        size += bytes.length;
+        int complete = completeLength(pending, size);
+        if (complete == 0) {
+            return "";
+        }
+        String text = new String(pending, 0, complete, StandardCharsets.UTF_8);
+        System.arraycopy(pending, complete, pending, 0, size - complete);
+        size -= complete;
+        return text;
+    }
+
+    /**
+     * Returns the bytes held back, at the end of the stream; an incomplete character becomes U+FFFD.
+     */
+    @NotNull String flush() {
+        String text = new String(pending, 0, size, StandardCharsets.UTF_8);
+        size = 0;
+        return text;
+    }
+
+    // Length of the longest prefix of bytes[0, size) not ending inside a character: before the last lead byte if the
+    // continuation bytes after it are fewer than its sequence needs. Malformed bytes are not held back.
+    static int completeLength(byte[] bytes, int size) {
+        for (int i = size - 1; i >= Math.max(0, size - 3); i--) {
+            int b = bytes[i] & 0xFF;
+            if ((b & 0xC0) == 0x80) {
+                continue; // continuation byte
+            }
+            int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            return size - i < length ? i : size;
+        }
+        return size;
+    }
+}
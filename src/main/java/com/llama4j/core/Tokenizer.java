@@ -3,12 +3,18 @@ package com.llama4j.core;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -23,37 +29,179 @@ import org.jetbrains.annotations.NotNull;
  * <a href="https://github.com/openai/gpt-2/blob/master/src/encoder.py">GPT 2 tokenizer</a>
  */
 class Tokenizer {
+
+    // Ordinary text at least this long is split sequentially, then its chunks are encoded in parallel.
+    static final int PARALLEL_ENCODE_CHARS = Integer.getInteger("llama.TokenizerParallelChars", 1 << 16);
+    static final int THREADS = Integer.getInteger("llama.TokenizerThreads", Runtime.getRuntime().availableProcessors());
+
+    // Runs the parallel encodes and decodes, apart from the common pool and from the compute pools of the models.
+    private static final ForkJoinPool POOL = new ForkJoinPool(THREADS, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("llama-tokenizer-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
     private final Pattern compiledPattern;
+    private final boolean llama3Pattern; // split by the PreTokenizer rather than the regex
+    private final Pattern specialPattern; // any of the special tokens, longest first; null if there are none
     private final Vocabulary vocabulary;
-    private final Map<Pair<Integer, Integer>, Integer> merges;
+    // Merges in a primitive open-addressing table: the key is the pair of token ids, the value the merged token id, which
+    // is also the rank of the merge (merged tokens are numbered in merge order).
+    private final long[] mergePairs;
+    private final int[] mergedTokens;
+    private final int[] charTokens; // token of each character of the byte-level alphabet, indexed by char
     private final Map<String, Integer> specialTokens;
+    private final BitSet specialTokenIndices;
+    private final byte[][] tokenBytes; // the UTF-8 bytes of every token
+    private final ChunkCache chunkCache;
 
     public Map<String, Integer> getSpecialTokens() {
         return specialTokens;
     }
 
     public boolean isNotSpecialToken(int tokenIndex) {
-        return !specialTokens.containsValue(tokenIndex);
+        return !specialTokenIndices.get(tokenIndex);
     }
 
     public Tokenizer(Vocabulary vocabulary,
                      @NotNull List<Pair<Integer, Integer>> merges,
                      String regexPattern,
                      Map<String, Integer> specialTokens) {
+        this(vocabulary, merges, regexPattern, specialTokens, ChunkCache.CAPACITY);
+    }
+
+    // cacheChunks: capacity of the chunk cache, 0 to encode every chunk
+    Tokenizer(Vocabulary vocabulary,
+              @NotNull List<Pair<Integer, Integer>> merges,
+              String regexPattern,
+              Map<String, Integer> specialTokens,
+              int cacheChunks) {
         this.vocabulary = vocabulary;
+        this.chunkCache = new ChunkCache(cacheChunks);
         this.compiledPattern = regexPattern != null ? Pattern.compile(regexPattern) : null;
+        this.llama3Pattern = PreTokenizer.LLAMA_3_PATTERN.equals(regexPattern);
         this.specialTokens = new HashMap<>(specialTokens);
-        this.merges = new HashMap<>();
+        this.specialTokenIndices = new BitSet(vocabulary.size());
+        specialTokens.values().forEach(specialTokenIndices::set);
+        this.tokenBytes = new byte[vocabulary.size()][];
+        for (int i = 0; i < tokenBytes.length; i++) {
+            tokenBytes[i] = bytesOf(vocabulary.get(i));
+        }
+        this.specialPattern = specialTokens.isEmpty() ? null : Pattern.compile(specialTokens.keySet()
+            .stream()
+            .sorted(Comparator.comparingInt(String::length).reversed())
+            .map(Pattern::quote)
+            .collect(Collectors.joining("|")));
+        int capacity = Integer.highestOneBit(Math.max(1, merges.size())) * 4; // load factor at most 1/2
+        this.mergePairs = new long[capacity];
+        this.mergedTokens = new int[capacity];
+        Arrays.fill(mergePairs, -1L);
         for (Pair<Integer, Integer> pair : merges) {
             int firstIndex = pair.first();
             int secondIndex = pair.second();
             int mergeIndex = vocabulary.getIndex(vocabulary.get(firstIndex) + vocabulary.get(secondIndex)).orElseThrow();
-            this.merges.put(pair, mergeIndex);
+            long key = pairKey(firstIndex, secondIndex);
+            int slot = mergeSlot(key);
+            mergePairs[slot] = key;
+            mergedTokens[slot] = mergeIndex;
+        }
+        this.charTokens = new int[BYTE_DECODER.length];
+        for (int c = 0; c < charTokens.length; c++) {
+            charTokens[c] = vocabulary.indexOf(String.valueOf((char) c));
+        }
+    }
+
+    /**
+     * Cache of encoded chunks, shared by all the threads encoding with this tokenizer.
+     */
+    ChunkCache chunkCache() {
+        return chunkCache;
+    }
+
+    // Token characters are bytes of the byte-level alphabet, other tokens (none in practice) are taken as text.
+    private static byte[] bytesOf(String token) {
+        byte[] bytes = new byte[token.length()];
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            int b = c < BYTE_DECODER.length ? BYTE_DECODER[c] : -1;
+            if (b == -1) {
+                return token.getBytes(StandardCharsets.UTF_8);
+            }
+            bytes[i] = (byte) b;
+        }
+        return bytes;
+    }
+
+    /**
+     * The UTF-8 bytes of the token, not to be modified; a token can hold part of a character.
+     */
+    byte[] tokenBytes(int tokenIndex) {
+        return tokenBytes[tokenIndex];
+    }
+
+    private static long pairKey(int first, int second) {
+        return (long) first << 32 | second;
+    }
+
+    private int mergeSlot(long key) {
+        int mask = mergePairs.length - 1;
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash >>> 32) & mask;
+        while (mergePairs[slot] != -1L && mergePairs[slot] != key) {
+            slot = (slot + 1) & mask;
         }
+        return slot;
+    }
+
+    // Token merging the pair, or -1 if the pair does not merge.
+    private int mergedToken(int first, int second) {
+        int slot = mergeSlot(pairKey(first, second));
+        return mergePairs[slot] != -1L ? mergedTokens[slot] : -1;
     }
 
-    private int[] encodeImpl(String text) {
-        return encode(text, Set.of()).stream().mapToInt(i -> i).toArray();
+    private int charToken(char c) {
+        int tokenIndex = c < charTokens.length ? charTokens[c] : vocabulary.indexOf(String.valueOf(c));
+        if (tokenIndex == -1) {
+            throw new NoSuchElementException("No token for " + c);
+        }
+        return tokenIndex;
+    }
+
+    // Growable array of token ids, the encoders append to it without boxing.
+    private static final class TokenIds {
+        int[] ids;
+        int size;
+
+        TokenIds(int capacity) {
+            this.ids = new int[Math.max(16, capacity)];
+        }
+
+        void add(int tokenIndex) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = tokenIndex;
+        }
+
+        void addAll(int[] tokenIndices, int length) {
+            if (size + length > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(size * 2, size + length));
+            }
+            System.arraycopy(tokenIndices, 0, ids, size, length);
+            size += length;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+
+        List<Integer> toList() {
+            List<Integer> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(ids[i]);
+            }
+            return list;
+        }
     }
 
     /**
@@ -64,115 +212,205 @@ class Tokenizer {
      * any other behavior is either annoying or a major footgun.
      */
     List<Integer> encode(String text, Set<String> allowedSpecial) {
+        TokenIds ids = new TokenIds(text.length() / 4);
+        encode(text, allowedSpecial, ids);
+        return ids.toList();
+    }
+
+    private void encode(String text, Set<String> allowedSpecial, TokenIds ids) {
         // decode the user desire w.r.t. handling of special tokens
         assert getSpecialTokens().keySet().containsAll(allowedSpecial);
         if (allowedSpecial.isEmpty()) {
             // shortcut: if no special tokens, just use the ordinary encoding
-            return encodeOrdinary(text);
+            encodeOrdinary(text, 0, text.length(), ids);
+            return;
         }
 
         // otherwise, we have to be careful with potential special tokens in text
-        // we handle special tokens by splitting the text
-        // based on the occurrence of any exact match with any of the special tokens
-        // we can use re.split for this. note that surrounding the pattern with ()
-        // makes it into a capturing group, so the special tokens will be included
-        String specialPattern = allowedSpecial
-            .stream()
-            .map(Pattern::quote)
-            .collect(Collectors.joining("|", "(", ")"));
-
-        String[] specialChunks = text.split(specialPattern);
-        // now all the special characters are separated from the rest of the text
+        // we handle special tokens by splitting the text at the exact matches of the allowed ones,
+        // found with the pattern of all the special tokens, compiled once; the others are ordinary text
         // all chunks of text are encoded separately, then results are joined
-        List<Integer> ids = new ArrayList<>();
-        for (String part : specialChunks) {
-            if (allowedSpecial.contains(part)) {
+        Matcher matcher = specialPattern.matcher(text);
+        int start = 0;
+        while (matcher.find()) {
+            String special = matcher.group();
+            if (allowedSpecial.contains(special)) {
+                encodeOrdinary(text, start, matcher.start(), ids);
                 // this is a special token, encode it separately as a special case
-                ids.add(getSpecialTokens().get(part));
-            } else {
-                // this is an ordinary sequence, encode it normally
-                ids.addAll(encodeOrdinary(part));
+                ids.add(getSpecialTokens().get(special));
+                start = matcher.end();
             }
         }
-        return ids;
+        encodeOrdinary(text, start, text.length(), ids);
+    }
+
+    /**
+     * Encoding that ignores any special tokens.
+     */
+    public List<Integer> encodeOrdinary(String text) {
+        TokenIds ids = new TokenIds(text.length() / 4);
+        encodeOrdinary(text, 0, text.length(), ids);
+        return ids.toList();
     }
 
-    private static @NotNull List<String> findAll(@NotNull Pattern pattern, String text) {
-        List<String> allMatches = new ArrayList<>();
-        Matcher matcher = pattern.matcher(text);
+    private void encodeOrdinary(String text, int start, int end, TokenIds ids) {
+        if (llama3Pattern && end - start >= PARALLEL_ENCODE_CHARS && THREADS > 1) {
+            encodeOrdinaryInParallel(text, start, end, ids);
+            return;
+        }
+        if (llama3Pattern) {
+            // the chunks of the Llama 3 pattern, split without regex
+            while (start < end) {
+                int chunkEnd = PreTokenizer.chunkEnd(text, start, end);
+                encodeChunk(text, start, chunkEnd, ids);
+                start = chunkEnd;
+            }
+            return;
+        }
+        // split text into chunks of text by categories defined in regex pattern,
+        // the region bounds are opaque: lookarounds see its end as the end of the text
+        Matcher matcher = compiledPattern.matcher(text).region(start, end);
+        // all chunks of text are encoded separately, then results are joined
         while (matcher.find()) {
-            allMatches.add(matcher.group());
+            encodeChunk(text, matcher.start(), matcher.end(), ids);
         }
-        return allMatches;
     }
 
     /**
-     * Encoding that ignores any special tokens.
+     * Chunks are independent once split: the split, a cheap scan, is sequential and keeps the chunk boundaries, then runs
+     * of consecutive chunks are encoded by parallel stream on the tokenizer pool.
      */
-    public List<Integer> encodeOrdinary(String text) {
-        // split text into chunks of text by categories defined in regex pattern
-        List<String> textChunks = findAll(compiledPattern, text);
-        // all chunks of text are encoded separately, then results are joined
-        List<Integer> ids = new ArrayList<>();
-        for (String chunk : textChunks) {
-            List<Integer> chunkIds = encodeChunk(chunk);
-            ids.addAll(chunkIds);
+    private void encodeOrdinaryInParallel(String text, int start, int end, TokenIds ids) {
+        TokenIds bounds = new TokenIds((end - start) / 4);
+        for (int i = start; i < end; i = PreTokenizer.chunkEnd(text, i, end)) {
+            bounds.add(i);
+        }
+        bounds.add(end);
+        int chunks = bounds.size - 1;
+        int segments = Math.min(chunks, 4 * THREADS);
+        TokenIds[] encoded = inParallel(() -> IntStream.range(0, segments).parallel().mapToObj(segment -> {
+            int from = (int) ((long) chunks * segment / segments);
+            int to = (int) ((long) chunks * (segment + 1) / segments);
+            TokenIds segmentIds = new TokenIds((bounds.ids[to] - bounds.ids[from]) / 4);
+            for (int c = from; c < to; c++) {
+                encodeChunk(text, bounds.ids[c], bounds.ids[c + 1], segmentIds);
+            }
+            return segmentIds;
+        }).toArray(TokenIds[]::new));
+        for (TokenIds segmentIds : encoded) {
+            ids.addAll(segmentIds.ids, segmentIds.size);
         }
-        return ids;
     }
 
-    private @NotNull Map<Pair<Integer, Integer>, Integer> getStats(@NotNull List<Integer> ids) {
-        Map<Pair<Integer, Integer>, Integer> map = new HashMap<>();
-        for (int i = 0; i + 1 < ids.size(); i++) {
-            Pair<Integer, Integer> key = new Pair<>(ids.get(i), ids.get(i + 1));
-            map.put(key, map.getOrDefault(key, 0) + 1);
+    /**
+     * Runs {@code task}, whose parallel streams then run on the tokenizer pool ({@code llama.TokenizerThreads} threads),
+     * and waits for its result.
+     */
+    static <T> T inParallel(Supplier<T> task) {
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread worker && worker.getPool() == POOL) {
+            return task.get();
         }
-        return map;
+        return POOL.invoke(ForkJoinTask.adapt(task::get));
     }
 
-    private List<Integer> encodeChunk(@NotNull String chunk) {
-        // return the token ids
-        // let's begin. first, convert all bytes to integers in range 0..255
-        List<Integer> ids = new ArrayList<>();
-        for (int b : chunk.toCharArray()) {
-            int tokenIndex = this.vocabulary.getIndex(String.valueOf((char) b)).orElseThrow();
-            ids.add(tokenIndex);
-        }
-
-        while (ids.size() >= 2) {
-            // find the pair with the lowest merge index
-            Map<Pair<Integer, Integer>, Integer> stats = getStats(ids);
-            Pair<Integer, Integer> pair = stats.keySet().stream().min(Comparator.comparingInt(key -> this.merges.getOrDefault(key, Integer.MAX_VALUE))).orElseThrow();
-            // subtle: if there are no more merges available, the key will
-            // result in an inf for every single pair, and the min will be
-            // just the first pair in the list, arbitrarily
-            // we can detect this terminating case by a membership check
-            if (!this.merges.containsKey(pair)) {
-                break; // nothing else can be merged anymore
+    /**
+     * Byte pair encoding of {@code text[start, end)}: the tokens form a linked list over an array, and the pairs that merge
+     * are in a priority queue by rank then position. The lowest ranked pair is merged, which only changes the pairs with
+     * its two neighbors, until no pair merges; O(n log n) for a chunk of n characters.
+     * The ids of chunks are cached, most chunks recur.
+     */
+    private void encodeChunk(String text, int start, int end, TokenIds out) {
+        int n = end - start;
+        if (n == 1) {
+            out.add(charToken(text.charAt(start)));
+            return;
+        }
+        int[] cached = chunkCache.get(text, start, end);
+        if (cached != null) {
+            out.addAll(cached, cached.length);
+            return;
+        }
+        int from = out.size;
+        // first, the characters, bytes of the byte-level alphabet, are tokens; removed ones are -1
+        int[] ids = new int[n];
+        int[] prev = new int[n];
+        int[] next = new int[n]; // n at the end of the list
+        for (int i = 0; i < n; i++) {
+            ids[i] = charToken(text.charAt(start + i));
+            prev[i] = i - 1;
+            next[i] = i + 1;
+        }
+        // min-heap of (rank, position of the first token of the pair); each merge adds at most 2 entries
+        long[] heap = new long[3 * n];
+        int size = 0;
+        for (int i = 0; i + 1 < n; i++) {
+            size = offerPair(heap, size, ids, i, i + 1);
+        }
+        while (size > 0) {
+            long top = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size);
+            int rank = (int) (top >>> 32);
+            int i = (int) top;
+            int j = next[i];
+            // entries of merged away tokens, or of pairs that changed since, are stale
+            if (ids[i] == -1 || j == n || mergedToken(ids[i], ids[j]) != rank) {
+                continue;
+            }
+            ids[i] = rank;
+            ids[j] = -1;
+            next[i] = next[j];
+            if (next[i] < n) {
+                prev[next[i]] = i;
             }
-            // otherwise let's merge the best pair (lowest merge index)
-            int idx = this.merges.get(pair);
-            ids = merge(ids, pair, idx);
+            if (prev[i] >= 0) {
+                size = offerPair(heap, size, ids, prev[i], i);
+            }
+            if (next[i] < n) {
+                size = offerPair(heap, size, ids, i, next[i]);
+            }
+        }
+        for (int i = 0; i < n; i = next[i]) {
+            out.add(ids[i]);
         }
-        return ids;
+        chunkCache.put(text, start, end, Arrays.copyOfRange(out.ids, from, out.size));
     }
 
-    private static @NotNull List<Integer> merge(@NotNull List<Integer> ids,
-                                                Pair<Integer, Integer> pair,
-                                                int idx) {
-        List<Integer> newids = new ArrayList<>();
-        int i = 0;
-        while (i < ids.size()) {
-            // if not at the very last position AND the pair matches, replace it
-            if (ids.get(i).equals(pair.first()) && i < ids.size() - 1 && ids.get(i + 1).equals(pair.second())) {
-                newids.add(idx);
-                i += 2;
-            } else {
-                newids.add(ids.get(i));
-                i += 1;
+    // Queues the pair of tokens at positions i and j if it merges, returns the new heap size.
+    private int offerPair(long[] heap, int size, int[] ids, int i, int j) {
+        int rank = mergedToken(ids[i], ids[j]);
+        if (rank == -1) {
+            return size;
+        }
+        long entry = (long) rank << 32 | i;
+        int child = size++;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (heap[parent] <= entry) {
+                break;
+            }
+            heap[child] = heap[parent];
+            child = parent;
+        }
+        heap[child] = entry;
+        return size;
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int parent = 0;
+        long entry = heap[0];
+        int child;
+        while ((child = 2 * parent + 1) < size) {
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
             }
+            if (heap[child] >= entry) {
+                break;
+            }
+            heap[parent] = heap[child];
+            parent = child;
         }
-        return newids;
+        heap[parent] = entry;
     }
 
     public String decodeImpl(@NotNull List<Integer> tokens) {
@@ -193,40 +431,38 @@ class Tokenizer {
      * To avoid that, we want lookup tables between utf-8 bytes and unicode strings.
      * And avoids mapping to whitespace/control characters the bpe code barfs on.
      */
-    private static Map<Integer, Integer> bytesToUnicode() {
-        List<Integer> bs = new ArrayList<>();
-        IntStream.rangeClosed('!', '~').forEach(bs::add);
-        IntStream.rangeClosed('¡', '¬').forEach(bs::add);
-        IntStream.rangeClosed('®', 'ÿ').forEach(bs::add);
-
-        List<Integer> cs = new ArrayList<>(bs);
+    private static int[] bytesToUnicode() {
+        // printable bytes map to themselves, the others to 256, 257, ... in order
+        int[] encoder = new int[256];
         int n = 0;
         for (int b = 0; b < 256; ++b) {
-            if (!bs.contains(b)) {
-                bs.add(b);
-                cs.add(256 + n);
-                n += 1;
-            }
+            boolean printable = ('!' <= b && b <= '~') || ('¡' <= b && b <= '¬') || ('®' <= b && b <= 'ÿ');
+            encoder[b] = printable ? b : 256 + n++;
         }
-
-        // return dict(zip(bs, cs))
-        return IntStream.range(0, bs.size())
-            .boxed()
-            .collect(Collectors.toMap(bs::get, cs::get));
+        return encoder;
     }
 
-    static final Map<Integer, Integer> BYTE_ENCODER = bytesToUnicode();
-    static final Map<Integer, Integer> BYTE_DECODER = BYTE_ENCODER.entrySet()
-        .stream()
-        .collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
+    static final int[] BYTE_ENCODER = bytesToUnicode();
+    static final int[] BYTE_DECODER = byteDecoder(); // indexed by char, -1 for the chars that are not bytes
+
+    private static int[] byteDecoder() {
+        int[] decoder = new int[Arrays.stream(BYTE_ENCODER).max().orElseThrow() + 1];
+        Arrays.fill(decoder, -1);
+        for (int b = 0; b < BYTE_ENCODER.length; b++) {
+            decoder[BYTE_ENCODER[b]] = b;
+        }
+        return decoder;
+    }
 
     public int[] encode(@NotNull String text) {
-        StringBuilder sb = new StringBuilder();
         byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
-        for (byte b : bytes) {
-            sb.appendCodePoint(BYTE_ENCODER.get(Byte.toUnsignedInt(b)));
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i] = (char) BYTE_ENCODER[Byte.toUnsignedInt(bytes[i])];
         }
-        return encodeImpl(sb.toString());
+        TokenIds ids = new TokenIds(bytes.length / 4);
+        encode(new String(chars), Set.of(), ids);
+        return ids.toArray();
     }
 
     public static @NotNull String replaceControlCharacters(int @NotNull [] codePoints) {
@@ -253,13 +489,21 @@ class Tokenizer {
         return Arrays.stream(encode(text)).boxed().toList();
     }
 
-    public String decode(List<Integer> tokens) {
-        String decoded = decodeImpl(tokens);
-        int[] decodedBytesAsInts = decoded.codePoints().map(BYTE_DECODER::get).toArray();
-        byte[] rawBytes = new byte[decodedBytesAsInts.length];
-        for (int i = 0; i < decoded.length(); i++) {
-            rawBytes[i] = (byte) decodedBytesAsInts[i];
+    public String decode(int @NotNull [] tokens) {
+        int length = 0;
+        for (int token : tokens) {
+            length += tokenBytes[token].length;
+        }
+        byte[] rawBytes = new byte[length];
+        int offset = 0;
+        for (int token : tokens) {
+            System.arraycopy(tokenBytes[token], 0, rawBytes, offset, tokenBytes[token].length);
+            offset += tokenBytes[token].length;
         }
         return new String(rawBytes, StandardCharsets.UTF_8);
     }
+
+    public String decode(List<Integer> tokens) {
+        return decode(tokens.stream().mapToInt(Integer::intValue).toArray());
+    }
 }
\ No newline at end of file
@@ -1,95 +1,110 @@
 package com.llama4j.core;
 
-import java.util.Comparator;
-import java.util.random.RandomGenerator;
-
 import org.jetbrains.annotations.NotNull;
 
-final class ToppSampler implements Sampler {
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * Top-p selection on primitive arrays, used by {@link SamplerChain}: every candidate is a {@code long} key, the bits of its
+ * probability (positive floats order like their bits) above its token index, so candidates are compared and moved without
+ * boxing. The nucleus is found by quickselect, without sorting.
+ */
+final class ToppSampler {
 
-    final int[] indices;
-    final float topP;
-    final RandomGenerator rng;
+    private ToppSampler() {
+    }
+
+    static long candidate(float probability, int index) {
+        return (long) Float.floatToRawIntBits(probability) << 32 | index;
+    }
 
-    public ToppSampler(int maxNumberOfElements, float topP, RandomGenerator rng) {
-        this.indices = new int[maxNumberOfElements];
-        this.topP = topP;
-        this.rng = rng;
+    static float probability(long candidate) {
+        return Float.intBitsToFloat((int) (candidate >>> 32));
     }
 
-    static void swap(int @NotNull [] array, int from, int to) {
-        int tmp = array[from];
+    static int index(long candidate) {
+        return (int) candidate;
+    }
+
+    static void swap(long @NotNull [] array, int from, int to) {
+        long tmp = array[from];
         array[from] = array[to];
         array[to] = tmp;
     }
 
-    static void siftDown(int[] array, int from, int n, Comparator<Integer> comparator) {
-        int prev = from, next;
-        while ((next = 2 * prev + 1) < n) {
-            int r = 2 * prev + 2;
-            if (r < n && comparator.compare(array[r], array[next]) < 0) {
-                next = r;
+    /**
+     * Moves the nucleus, the largest of {@code candidates[0, n0)} summing to more than {@code topP}, to the front.
+     *
+     * @return the size of the nucleus
+     */
+    static int selectNucleus(long[] candidates, int n0, float topP) {
+        // quickselect the nucleus: partition around a pivot, the larger side is either enough alone or entirely part
+        // of the nucleus, expected O(n0), nothing is sorted
+        float cumulativeProb = 0.0f;
+        int lo = 0;
+        int hi = n0;
+        while (lo < hi) {
+            swap(candidates, lo + (hi - lo) / 2, hi - 1);
+            long pivot = candidates[hi - 1];
+            int m = lo;
+            float larger = 0.0f;
+            for (int i = lo; i < hi - 1; i++) {
+                if (candidates[i] > pivot) {
+                    larger += probability(candidates[i]);
+                    swap(candidates, i, m++);
+                }
             }
-            if (comparator.compare(array[next], array[prev]) < 0) {
-                swap(array, prev, next);
-                prev = next;
+            swap(candidates, m, hi - 1);
+            if (cumulativeProb + larger > topP) {
+                hi = m;
             } else {
-                break;
+                cumulativeProb += larger + probability(pivot);
+                lo = m + 1;
+                if (cumulativeProb > topP) {
+                    break; // we've exceeded topp by including the pivot
+                }
             }
         }
+        return lo; // all the candidates in case of rounding errors
     }
 
-    @Override
-    public int sampleToken(@NotNull FloatTensor logits) {
-        // top-p sampling (or "nucleus sampling") samples from the smallest set of
-        // tokens that exceed probability topp. This way we never sample tokens that
-        // have very low probabilities and are less likely to go "off the rails".
-        Comparator<Integer> comparator = Comparator.comparingDouble(logits::getFloat).reversed();
-
-        int n = logits.size();
-        int head = 0;
-        int tail = n - 1;
-        // values smaller than (1 - topp) / (n - 1) cannot be part of the result
-        // so for efficiency we crop these out as candidates before sorting
-        float cutoff = (1.0f - topP) / (n - 1);
-        for (int i = 0; i < indices.length; i++) {
-            if (logits.getFloat(i) >= cutoff) {
-                indices[head++] = i;
-            } else {
-                indices[tail--] = i;
-            }
+    /**
+     * Keys of the probabilities not below {@code cutoff} into {@code candidates}, returns their number.
+     */
+    static int selectCandidates(FloatTensor probabilities, float cutoff, long[] candidates) {
+        if (FloatTensor.USE_VECTOR_API && probabilities instanceof ArrayFloatTensor array) {
+            return selectCandidates(array.values, cutoff, candidates);
         }
-
-        int n0 = head;
-        // build heap O(n0)
-        for (int i = n0 / 2 - 1; i >= 0; --i) {
-            siftDown(indices, i, n0, comparator);
+        int n0 = 0;
+        for (int i = 0; i < probabilities.size(); i++) {
+            float p = probabilities.getFloat(i);
+            if (p >= cutoff) {
+                candidates[n0++] = candidate(p, i);
+            }
         }
+        return n0;
+    }
 
-        // truncate the list where cumulative probability of the largest k elements exceeds topp
-        // O(k lg n0)
-        float cumulativeProb = 0.0f;
-        int lastIndex = 0;
-        for (int i = n0 - 1; i >= 0; i--) {
-            swap(indices, 0, i);
-            cumulativeProb += logits.getFloat(indices[i]);
-            if (cumulativeProb > topP) {
-                lastIndex = i;
-                break; // we've exceeded topp by including lastIndex
+    // Vectorized cutoff filtering, most probabilities are below the cutoff and whole vectors are skipped.
+    private static int selectCandidates(float[] probabilities, float cutoff, long[] candidates) {
+        var species = FloatTensor.F_SPECIES;
+        int upperBound = species.loopBound(probabilities.length);
+        int n0 = 0;
+        int i = 0;
+        for (; i < upperBound; i += species.length()) {
+            long mask = FloatVector.fromArray(species, probabilities, i).compare(VectorOperators.GE, cutoff).toLong();
+            while (mask != 0) {
+                int lane = Long.numberOfTrailingZeros(mask);
+                candidates[n0++] = candidate(probabilities[i + lane], i + lane);
+                mask &= mask - 1;
             }
-            siftDown(indices, 0, i - 1, comparator);
         }
-
-        // sample from the truncated list
-        float r = rng.nextFloat(1f) * cumulativeProb;
-        float cdf = 0.0f;
-        for (int i = n0 - 1; i >= lastIndex; i--) {
-            cdf += logits.getFloat(indices[i]);
-            if (r < cdf) {
-                return indices[i];
+        for (; i < probabilities.length; i++) {
+            if (probabilities[i] >= cutoff) {
+                candidates[n0++] = candidate(probabilities[i], i);
             }
         }
-
-        return indices[lastIndex]; // in case of rounding errors
+        return n0;
     }
-}
\ No newline at end of file
+}
@@ -1,29 +1,58 @@
 package com.llama4j.core;
 
-import java.util.Map;
+import java.util.Arrays;
 import java.util.OptionalInt;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
-record Vocabulary(String[] tokens, float[] scores, Map<String, Integer> tokenToIndex) {
+/**
+ * Token strings by index, and the index of a token string in an open-addressing table of token indices, probed with the
+ * (cached) hash of the string, so that lookups neither box nor allocate.
+ */
+record Vocabulary(String[] tokens, float[] scores, int[] tokenToIndex) {
     public Vocabulary(String[] vocabulary, float[] scores) {
-        this(vocabulary, scores,
-            IntStream.range(0, vocabulary.length)
-                .boxed()
-                .collect(Collectors.toMap(i -> vocabulary[i], i -> i))
-        );
+        this(vocabulary, scores, indexTable(vocabulary));
+    }
+
+    private static int[] indexTable(String[] tokens) {
+        int[] table = new int[Integer.highestOneBit(Math.max(1, tokens.length)) * 4]; // load factor at most 1/2
+        Arrays.fill(table, -1);
+        for (int i = 0; i < tokens.length; i++) {
+            int slot = slot(table, tokens, tokens[i]);
+            if (table[slot] != -1) {
+                throw new IllegalStateException("Duplicate token " + tokens[i]);
+            }
+            table[slot] = i;
+        }
+        return table;
+    }
+
+    // Slot of the token, or of the empty slot where it would be.
+    private static int slot(int[] table, String[] tokens, String token) {
+        int mask = table.length - 1;
+        int hash = token.hashCode() * 0x9E3779B9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (table[slot] != -1 && !tokens[table[slot]].equals(token)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
     }
 
     public String get(int tokenIndex) {
         return tokens[tokenIndex];
     }
 
+    /**
+     * Index of the token, or -1 if it is not in the vocabulary.
+     */
+    public int indexOf(String token) {
+        return tokenToIndex[slot(tokenToIndex, tokens, token)];
+    }
+
     public OptionalInt getIndex(String token) {
-        Integer value = tokenToIndex.get(token);
-        return value != null ? OptionalInt.of(value) : OptionalInt.empty();
+        int index = indexOf(token);
+        return index != -1 ? OptionalInt.of(index) : OptionalInt.empty();
     }
 
     public int size() {
         return tokens.length;
     }
-}
\ No newline at end of file
+}
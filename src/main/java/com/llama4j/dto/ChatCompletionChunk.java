@@ -0,0 +1,12 @@
+package com.llama4j.dto;
+
+import java.util.List;
+
+public record ChatCompletionChunk(
+    String id,
+    String object,
+    long created,
+    String model,
+    String systemFingerprint,
+    List<ChunkChoice> choices
+) {}
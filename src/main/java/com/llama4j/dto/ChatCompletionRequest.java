@@ -1,11 +1,37 @@
 package com.llama4j.dto;
 
 import java.util.List;
+import java.util.Map;
 
+/**
+ * @param session_id         optional id of a server-side conversation, its KV cache and token history are kept between requests
+ * @param stream             if set, the completion is sent as server-sent events, one {@link ChatCompletionChunk} per token
+ * @param top_k              optional, number of most likely tokens sampled from
+ * @param min_p              optional, tokens less likely than {@code min_p} times the most likely one are not sampled
+ * @param presence_penalty   optional, subtracted from the logits of the tokens generated so far
+ * @param frequency_penalty  optional, subtracted from the logit of a token for every time it was generated so far
+ * @param repetition_penalty optional, the logits of the tokens generated so far are divided by it, 1 for none
+ * @param logit_bias         optional, bias added to the logits of tokens, by token id
+ */
 public record ChatCompletionRequest(
     List<Message> messages,
     float temperature,
     float top_p,
-    int max_tokens
+    int max_tokens,
+    String session_id,
+    boolean stream,
+    Integer top_k,
+    Float min_p,
+    Float presence_penalty,
+    Float frequency_penalty,
+    Float repetition_penalty,
+    Map<String, Float> logit_bias
 ) {
+    public ChatCompletionRequest(List<Message> messages, float temperature, float top_p, int max_tokens) {
+        this(messages, temperature, top_p, max_tokens, null, false);
+    }
+
+    public ChatCompletionRequest(List<Message> messages, float temperature, float top_p, int max_tokens, String session_id, boolean stream) {
+        this(messages, temperature, top_p, max_tokens, session_id, stream, null, null, null, null, null, null);
+    }
 }
@@ -0,0 +1,8 @@
+package com.llama4j.dto;
+
+public record ChunkChoice(
+    int index,
+    Message delta,
+    Object logprobs,
+    String finishReason
+) {}
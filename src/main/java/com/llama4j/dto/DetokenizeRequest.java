@@ -0,0 +1,6 @@
+package com.llama4j.dto;
+
+import java.util.List;
+
+public record DetokenizeRequest(List<int[]> tokens) {
+}
@@ -0,0 +1,5 @@
+package com.llama4j.dto;
+
+public record PromptTokensDetails(
+    int cachedTokens) {
+}
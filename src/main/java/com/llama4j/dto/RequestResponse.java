@@ -1,4 +1,4 @@
 package com.llama4j.dto;
 
-public record RequestResponse(int totalTokens, String completion) {
+public record RequestResponse(int totalTokens, String completion, int cachedTokens, String finishReason) {
 }
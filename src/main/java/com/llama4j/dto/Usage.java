@@ -4,5 +4,6 @@ public record Usage(
     int promptTokens,
     int completionTokens,
     int totalTokens,
+    PromptTokensDetails promptTokensDetails,
     CompletionTokensDetails completionTokensDetails) {
 }
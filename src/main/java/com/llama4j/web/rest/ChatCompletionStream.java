@@ -0,0 +1,111 @@
+package com.llama4j.web.rest;
+
+import com.llama4j.dto.ChatCompletionChunk;
+import com.llama4j.dto.ChunkChoice;
+import com.llama4j.dto.Message;
+import com.llama4j.dto.RequestResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Streams a chat completion as server-sent events, one {@code chat.completion.chunk} per generated token then {@code [DONE]}.
+ * <p>
+ * Tokens are generated on the scheduler thread, which must not wait for slow clients: chunks are queued and sent, and
+ * flushed, by a virtual thread. A client that disconnects, or falls more than {@link #MAX_PENDING_CHUNKS} chunks behind,
+ * cancels its generation: the next token callback throws and the scheduler drops the sequence.
+ */
+final class ChatCompletionStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChatCompletionStream.class);
+
+    static final int MAX_PENDING_CHUNKS = 1024;
+
+    private static final Object DONE = new Object();
+
+    private final String id;
+    private final long created;
+    private final String model;
+    private final String systemFingerprint;
+    private final SseEmitter emitter = new SseEmitter(0L); // no timeout, generation can be long
+    private final BlockingQueue<Object> pending = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+    private volatile boolean cancelled;
+
+    ChatCompletionStream(String id, String model) {
+        this.id = id;
+        this.created = System.currentTimeMillis() / 1000;
+        this.model = model;
+        this.systemFingerprint = "fp_" + Long.toHexString(System.nanoTime());
+        emitter.onError(e -> cancelled = true);
+        emitter.onTimeout(() -> cancelled = true);
+        pending.add(chunk(new Message("assistant", ""), null));
+        Thread.ofVirtual().name("sse-" + id).start(this::send);
+    }
+
+    SseEmitter emitter() {
+        return emitter;
+    }
+
+    /**
+     * Text callback of the generation, called on the scheduler thread.
+     *
+     * @throws CancellationException if the client is gone or too slow, to stop the generation
+     */
+    void onText(String text) {
+        if (cancelled) {
+            throw new CancellationException("Client of " + id + " disconnected");
+        }
+        if (!pending.offer(chunk(new Message(null, text), null))) {
+            cancelled = true;
+            throw new CancellationException("Client of " + id + " is too slow");
+        }
+    }
+
+    /**
+     * Sends the final chunk, with the finish reason, and {@code [DONE]}; or ends the stream with the error of the generation.
+     */
+    void finish(RequestResponse response, Throwable error) {
+        boolean queued = error != null
+            ? pending.offer(error)
+            : pending.offer(chunk(new Message(null, null), response.finishReason())) && pending.offer(DONE);
+        if (!queued) {
+            cancelled = true;
+            emitter.complete();
+        }
+    }
+
+    private ChatCompletionChunk chunk(Message delta, String finishReason) {
+        return new ChatCompletionChunk(id, "chat.completion.chunk", created, model, systemFingerprint,
+            List.of(new ChunkChoice(0, delta, null, finishReason)));
+    }
+
+    private void send() {
+        try {
+            while (!cancelled) {
+                Object event = pending.take();
+                if (event == DONE) {
+                    emitter.send(SseEmitter.event().data("[DONE]", MediaType.TEXT_PLAIN));
+                    emitter.complete();
+                    return;
+                }
+                if (event instanceof Throwable error) {
+                    emitter.completeWithError(error);
+                    return;
+                }
+                emitter.send(SseEmitter.event().data(event, MediaType.APPLICATION_JSON));
+            }
+        } catch (IOException | IllegalStateException e) {
+            LOG.debug("Stream {} closed by the client: {}", id, e.getMessage());
+            cancelled = true;
+        } catch (InterruptedException e) {
+            cancelled = true;
+        }
+    }
+}
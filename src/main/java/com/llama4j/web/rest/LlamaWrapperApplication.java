@@ -1,14 +1,20 @@
 package com.llama4j.web.rest;
 
+import com.llama4j.core.BatchScheduler;
 import com.llama4j.core.ChatFormat;
 import com.llama4j.core.Llama;
 import com.llama4j.core.Llama3;
 import com.llama4j.core.Sampler;
+import com.llama4j.core.SamplerOptions;
+import com.llama4j.core.SessionManager;
+import com.llama4j.core.SpeculativeDecoder;
 import com.llama4j.dto.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -18,8 +24,12 @@ import java.io.File;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static com.llama4j.core.Llama3.*;
 
@@ -32,14 +42,20 @@ public class LlamaWrapperApplication {
 
     private final Llama model;
 
+    private final BatchScheduler scheduler;
+
+    private final SessionManager sessions;
+
     @Value("${llama.model.path}")
     private String modelPath;
 
     @Value("${llama.model.name}")
     private String modelName;
 
-    public LlamaWrapperApplication(Llama model) {
+    public LlamaWrapperApplication(Llama model, BatchScheduler scheduler, SessionManager sessions) {
         this.model = model;
+        this.scheduler = scheduler;
+        this.sessions = sessions;
     }
 
     @PostMapping("/chat/completions")
@@ -59,27 +75,90 @@ public class LlamaWrapperApplication {
             LOG.debug("Prompt {} : {}", message.role(), message.content());
         }
 
+        // the system prompt is only taken from a leading system message, the user prompt follows it
+        boolean hasSystemPrompt = ChatFormat.Role.SYSTEM.equals(llamaMessages.getFirst().role());
+        int userIndex = hasSystemPrompt ? 1 : 0;
         Llama3.Options options =
             new Llama3.Options(
                 Path.of(modelPath + File.pathSeparator +modelName),
-                request.messages().size() > 1 ? request.messages().get(1).content() : null, // User Prompt
-                request.messages().getFirst().content(), // System Prompt
+                request.session_id() != null
+                    ? messages.getLast().content() // User Prompt, the latest message of the conversation
+                    : messages.size() > userIndex ? messages.get(userIndex).content() : null, // User Prompt
+                hasSystemPrompt ? messages.getFirst().content() : null, // System Prompt
                 false, // TODO interactive should be a request parameter
                 request.temperature() == 0.0f ? 0.7f : request.temperature(),
                 request.top_p() == 0.0f ? 0.95f : request.top_p(),
                 123, // seed,
                 request.max_tokens() == 0 ? 4_000 : request.max_tokens(),
-                true, // stream
+                request.stream(), // stream
                 false // echo
             );
 
-        Sampler sampler = selectSampler(model.configuration().vocabularySize, options.temperature(), options.topp(), options.seed());
+        Sampler sampler;
+        try {
+            sampler = selectSampler(model.configuration().vocabularySize, samplerOptions(request, options), options.seed());
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid sampling parameters: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+
+        SessionManager.Session session = null;
+        if (request.session_id() != null) {
+            try {
+                session = sessions.acquire(request.session_id());
+            } catch (IllegalStateException e) {
+                LOG.warn("Session {} unavailable: {}", request.session_id(), e.getMessage());
+                return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+            }
+        }
+
+        String id = "chatcmpl-" + requestCounter.incrementAndGet();
+        ChatCompletionStream stream = request.stream() ? new ChatCompletionStream(id, modelName) : null;
+        Consumer<String> onTextGenerated = stream != null ? stream::onText : null;
 
         RequestResponse requestResponse = null;
-        if (options.interactive()) {
-            runInteractive(model, sampler, options);
-        } else {
-            requestResponse = runInstructOnce(model, sampler, options);
+        CompletableFuture<RequestResponse> generation = null;
+        try {
+            if (options.interactive()) {
+                try (SpeculativeDecoder speculative = scheduler.newSpeculativeDecoder()) {
+                    runInteractive(model, sampler, options, speculative);
+                }
+            } else if (session != null) {
+                SessionManager.Session acquired = session;
+                try {
+                    generation = submitSessionTurn(scheduler, model, sampler, options, session, onTextGenerated);
+                } catch (IllegalArgumentException e) {
+                    sessions.release(session, false); // rejected before any change
+                    throw e;
+                } catch (RuntimeException e) {
+                    sessions.release(session, true);
+                    throw e;
+                }
+                // a failed turn leaves the history and the KV cache out of sync
+                generation = generation.whenComplete((response, error) -> sessions.release(acquired, error != null));
+            } else {
+                generation = submitInstructOnce(scheduler, model, sampler, options, onTextGenerated);
+            }
+        } catch (IllegalArgumentException e) {
+            if (stream != null) {
+                stream.finish(null, e); // ends its sender thread
+            }
+            LOG.warn("Request rejected: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (RuntimeException e) {
+            if (stream != null) {
+                stream.finish(null, e); // ends its sender thread
+            }
+            throw e;
+        }
+        LOG.debug("Tokenizer cache: {}", model.tokenizerCache());
+
+        if (stream != null && generation != null) {
+            generation.whenComplete(stream::finish);
+            return ResponseEntity.ok().contentType(MediaType.TEXT_EVENT_STREAM).body(stream.emitter());
+        }
+        if (generation != null) {
+            requestResponse = generation.join();
         }
 
         ChatFormat chatFormat = new ChatFormat(model.tokenizer());
@@ -91,7 +170,7 @@ public class LlamaWrapperApplication {
 
         // Create the response object
         ChatCompletionResponse response = new ChatCompletionResponse(
-            "chatcmpl-" + requestCounter.incrementAndGet(),
+            id,
             "chat.completion",
             System.currentTimeMillis() / 1000,
             modelName,
@@ -100,12 +179,13 @@ public class LlamaWrapperApplication {
                 0,
                 new Message("assistant", cleanedResponse),
                 null, // logprobs
-                "stop"
+                requestResponse != null ? requestResponse.finishReason() : "stop"
             )),
             new Usage(
                 conversationTokens.size(),
                 requestResponse != null ? requestResponse.totalTokens() : 0,
                 conversationTokens.size() + (requestResponse != null ? requestResponse.totalTokens() : 0),
+                new PromptTokensDetails(requestResponse != null ? requestResponse.cachedTokens() : 0),
                 new CompletionTokensDetails(0) // Assuming no specific reasoning tokens
             )
         );
@@ -113,6 +193,29 @@ public class LlamaWrapperApplication {
         return ResponseEntity.ok(response);
     }
 
+    @PostMapping("/tokenize")
+    public ResponseEntity<Object> tokenize(@RequestBody TokenizeRequest request) {
+        if (request.texts() == null || request.texts().contains(null)) {
+            return ResponseEntity.badRequest().body("Texts cannot be null");
+        }
+        TokenizeResponse response = new TokenizeResponse(Llama3.tokenize(model, request.texts()));
+        LOG.debug("Tokenizer cache: {}", model.tokenizerCache());
+        return ResponseEntity.ok(response);
+    }
+
+    @PostMapping("/detokenize")
+    public ResponseEntity<Object> detokenize(@RequestBody DetokenizeRequest request) {
+        if (request.tokens() == null || request.tokens().contains(null)) {
+            return ResponseEntity.badRequest().body("Tokens cannot be null");
+        }
+        try {
+            return ResponseEntity.ok(new DetokenizeResponse(Llama3.detokenize(model, request.tokens())));
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid tokens: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
     private String cleanResponse(String response) {
         // Remove <|eot_id|> token
         String cleaned = response.replaceAll("<\\|eot_id\\|>", "").trim();
@@ -122,4 +225,26 @@ public class LlamaWrapperApplication {
 
         return cleaned;
     }
+
+    private static SamplerOptions samplerOptions(ChatCompletionRequest request, Llama3.Options options) {
+        Map<Integer, Float> logitBias = new HashMap<>();
+        if (request.logit_bias() != null) {
+            request.logit_bias().forEach((token, bias) -> {
+                try {
+                    logitBias.put(Integer.parseInt(token), bias);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Logit bias key is not a token id: " + token);
+                }
+            });
+        }
+        return new SamplerOptions(
+            options.temperature(),
+            options.topp(),
+            request.top_k() != null ? request.top_k() : 0,
+            request.min_p() != null ? request.min_p() : 0f,
+            request.presence_penalty() != null ? request.presence_penalty() : 0f,
+            request.frequency_penalty() != null ? request.frequency_penalty() : 0f,
+            request.repetition_penalty() != null ? request.repetition_penalty() : 1f,
+            logitBias);
+    }
 }
@@ -1,6 +1,8 @@
 package com.llama4j.config;
 
+import com.llama4j.core.BatchScheduler;
 import com.llama4j.core.Llama;
+import com.llama4j.core.SessionManager;
 import com.llama4j.core.ModelLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,6 +12,7 @@ import org.springframework.context.annotation.Bean;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.time.Duration;
 
 @TestConfiguration
 public class ModelConfigTest {
@@ -34,4 +37,16 @@ public class ModelConfigTest {
         }
         return model;
     }
+
+    @Bean(destroyMethod = "close")
+    BatchScheduler batchScheduler(Llama model) {
+        return new BatchScheduler(model);
+    }
+
+    @Bean(destroyMethod = "close")
+    SessionManager sessionManager(Llama model,
+                                  @Value("${llama.session.max-sessions:32}") int maxSessions,
+                                  @Value("${llama.session.idle-timeout:PT10M}") Duration idleTimeout) {
+        return new SessionManager(model, maxSessions, idleTimeout);
+    }
 }
@@ -0,0 +1,38 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static com.llama4j.core.QuantizedBlocks.randomFloats;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ArrayFloatTensorTest {
+
+    @Test
+    void softmaxAgainstDoubles() {
+        Random random = new Random(1);
+        // whole vectors then remaining entries, at an offset, the entries around it are left as is
+        for (int size : new int[]{1, 7, 64, 100}) {
+            float[] x = randomFloats(random, size + 10);
+            for (int i = 0; i < x.length; i++) {
+                x[i] *= 20f;
+            }
+            float[] before = x.clone();
+            new ArrayFloatTensor(x).softmaxInPlace(5, size);
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                max = Math.max(max, before[5 + i]);
+            }
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += Math.exp(before[5 + i] - max);
+            }
+            for (int i = 0; i < x.length; i++) {
+                double expected = 5 <= i && i < 5 + size ? Math.exp(before[i] - max) / sum : before[i];
+                assertEquals(expected, x[i], 1e-6 * Math.abs(expected) + 1e-9,
+                    "entry " + i + " of " + size + " with " + FloatTensor.F_SPECIES);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static com.llama4j.core.QuantizedBlocks.assertDot;
+import static com.llama4j.core.QuantizedBlocks.randomFloats;
+import static com.llama4j.core.QuantizedBlocks.values;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The F16 KV cache: rows are rounded to half precision as they are stored, attention reads them with {@link #dot} and
+ * {@code saxpy}.
+ */
+class F16ArrayFloatTensorTest {
+
+    private static final int KV_DIM = 3 * 64 + 4; // whole vectors and remaining entries
+
+    @Test
+    void storeRoundsToHalfPrecision() {
+        Random random = new Random(1);
+        float[] k = randomFloats(random, 2 * KV_DIM);
+        F16ArrayFloatTensor cache = new F16ArrayFloatTensor(4 * KV_DIM);
+        new ArrayFloatTensor(k).copyTo(KV_DIM, cache, 2 * KV_DIM, KV_DIM);
+        for (int i = 0; i < KV_DIM; i++) {
+            assertEquals(0f, cache.getFloat(i));
+            assertEquals(Float.float16ToFloat(Float.floatToFloat16(k[KV_DIM + i])), cache.getFloat(2 * KV_DIM + i));
+        }
+    }
+
+    @Test
+    void dotAgainstTheQuery() {
+        Random random = new Random(2);
+        F16ArrayFloatTensor cache = new F16ArrayFloatTensor(4 * KV_DIM);
+        new ArrayFloatTensor(randomFloats(random, 4 * KV_DIM)).copyTo(0, cache, 0, 4 * KV_DIM);
+        float[] keys = values(cache);
+        float[] q = randomFloats(random, 2 * KV_DIM);
+        for (int[] offsetsAndSize : new int[][]{{0, 0, KV_DIM}, {KV_DIM, KV_DIM, KV_DIM}, {3 * KV_DIM + 64, 5, 64}, {1, 0, 7}}) {
+            assertDot(keys, offsetsAndSize[0], q, offsetsAndSize[1], offsetsAndSize[2],
+                cache.dot(offsetsAndSize[0], new ArrayFloatTensor(q), offsetsAndSize[1], offsetsAndSize[2]));
+        }
+    }
+
+    @Test
+    void saxpyOfTheValues() {
+        Random random = new Random(3);
+        F16ArrayFloatTensor cache = new F16ArrayFloatTensor(4 * KV_DIM);
+        new ArrayFloatTensor(randomFloats(random, 4 * KV_DIM)).copyTo(0, cache, 0, 4 * KV_DIM);
+        float[] values = values(cache);
+        float[] out = randomFloats(random, 2 * KV_DIM);
+        float[] expected = out.clone();
+        float a = 0.37f;
+        new ArrayFloatTensor(out).saxpyInPlace(KV_DIM, cache, 2 * KV_DIM, KV_DIM, a);
+        for (int i = 0; i < KV_DIM; i++) {
+            expected[KV_DIM + i] += a * values[2 * KV_DIM + i];
+        }
+        for (int i = 0; i < out.length; i++) {
+            assertEquals(expected[i], out[i], 1e-6f, "out " + i + " with " + FloatTensor.F_SPECIES);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.llama4j.core;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+import static com.llama4j.core.QuantizedBlocks.assertDot;
+import static com.llama4j.core.QuantizedBlocks.randomFloats;
+import static com.llama4j.core.QuantizedBlocks.values;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * {@link GGMLType#F16} and {@link GGMLType#BF16} weights and their vectorized conversion to floats.
+ */
+class HalfFloatTensorTest {
+
+    private record Type(BiFunction<Random, Integer, QuantizedBlocks.Blocks> blocks,
+                        BiFunction<Integer, MemorySegment, FloatTensor> tensor) {
+    }
+
+    private static final List<Type> TYPES = List.of(
+        new Type(QuantizedBlocks::f16, F16FloatTensor::new),
+        new Type(QuantizedBlocks::bf16, BF16FloatTensor::new));
+
+    private static final int SIZE = 3 * 256;
+
+    // Every 16-bit pattern, one vector at a time.
+    private static void assertConvertsEveryPattern(Function<ShortVector, FloatVector> convert, IntPredicate converted,
+                                                   IntFunction<Float> expected) {
+        int lanes = FloatTensor.S_HALF_SPECIES.length();
+        short[] halfs = new short[lanes];
+        for (int base = 0; base < 1 << 16; base += lanes) {
+            for (int i = 0; i < lanes; i++) {
+                halfs[i] = (short) (base + i);
+            }
+            float[] floats = convert.apply(ShortVector.fromArray(FloatTensor.S_HALF_SPECIES, halfs, 0)).toArray();
+            for (int i = 0; i < lanes; i++) {
+                int bits = base + i;
+                if (converted.test(bits)) {
+                    assertEquals(Float.floatToRawIntBits(expected.apply(bits)), Float.floatToRawIntBits(floats[i]),
+                        () -> "0x" + Integer.toHexString(bits) + " with " + FloatTensor.F_SPECIES);
+                }
+            }
+        }
+    }
+
+    @Test
+    void f16ConversionIsExactForFiniteValues() {
+        // zeros, subnormals and normals of both signs; infinities and NaNs are not expected in weights
+        assertConvertsEveryPattern(F16FloatTensor::toFloatVector, bits -> (bits & 0x7C00) != 0x7C00,
+            bits -> Float.float16ToFloat((short) bits));
+    }
+
+    @Test
+    void bf16ConversionIsExact() {
+        assertConvertsEveryPattern(BF16FloatTensor::toFloatVector, bits -> true, bits -> Float.intBitsToFloat(bits << 16));
+    }
+
+    @Test
+    void getFloatReadsTheValues() {
+        Random random = new Random(1);
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, SIZE);
+            assertArrayEquals(blocks.values(), values(type.tensor().apply(SIZE, blocks.memorySegment())));
+        }
+    }
+
+    @Test
+    void dotAgainstFloats() {
+        Random random = new Random(2);
+        // whole vectors, unaligned offsets and remaining entries
+        int[][] offsetsAndSizes = {{0, 0, SIZE}, {256, 0, 256}, {3, 5, 250}, {17, 0, 7}, {0, 1, 33}};
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, SIZE);
+            FloatTensor tensor = type.tensor().apply(SIZE, blocks.memorySegment());
+            float[] x = randomFloats(random, SIZE + 8);
+            for (int[] offsetAndSize : offsetsAndSizes) {
+                assertDot(blocks.values(), offsetAndSize[0], x, offsetAndSize[1], offsetAndSize[2],
+                    tensor.dot(offsetAndSize[0], new ArrayFloatTensor(x), offsetAndSize[1], offsetAndSize[2]));
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import static com.llama4j.core.QuantizedBlocks.assertDot;
+import static com.llama4j.core.QuantizedBlocks.randomFloats;
+import static com.llama4j.core.QuantizedBlocks.values;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * {@link GGMLType#Q4_K}, {@link GGMLType#Q5_K} and {@link GGMLType#Q6_K} weights: the packed scales and mins, the high
+ * bits of the quants and the order of the weights within a super-block.
+ */
+class KQuantFloatTensorTest {
+
+    private record Type(BiFunction<Random, Integer, QuantizedBlocks.Blocks> blocks,
+                        BiFunction<Integer, MemorySegment, FloatTensor> tensor) {
+    }
+
+    private static final List<Type> TYPES = List.of(
+        new Type(QuantizedBlocks::q4_K, Q4_KFloatTensor::new),
+        new Type(QuantizedBlocks::q5_K, Q5_KFloatTensor::new),
+        new Type(QuantizedBlocks::q6_K, Q6_KFloatTensor::new));
+
+    private static final int ROWS = 3;
+    private static final int COLUMNS = 512;
+
+    @Test
+    void getFloatDecodesTheSuperBlocks() {
+        Random random = new Random(1);
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor tensor = type.tensor().apply(ROWS * COLUMNS, blocks.memorySegment());
+            assertArrayEquals(blocks.values(), values(tensor), () -> tensor.type().toString());
+        }
+    }
+
+    @Test
+    void dotAgainstFloats() {
+        Random random = new Random(2);
+        // aligned, unaligned weights or activations, partial super-blocks
+        int[][] offsetsAndSizes = {{0, 0, COLUMNS}, {COLUMNS, 0, COLUMNS}, {2 * COLUMNS, 7, COLUMNS}, {100, 0, 600}, {256, 3, 300}, {0, 0, 255}};
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor tensor = type.tensor().apply(ROWS * COLUMNS, blocks.memorySegment());
+            float[] x = randomFloats(random, COLUMNS + 100);
+            for (int[] offsetAndSize : offsetsAndSizes) {
+                assertDot(blocks.values(), offsetAndSize[0], x, offsetAndSize[1], offsetAndSize[2],
+                    tensor.dot(offsetAndSize[0], new ArrayFloatTensor(x), offsetAndSize[1], offsetAndSize[2]));
+            }
+        }
+    }
+
+    @Test
+    void matmul() {
+        Random random = new Random(3);
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor tensor = type.tensor().apply(ROWS * COLUMNS, blocks.memorySegment());
+            float[] x = randomFloats(random, COLUMNS);
+            FloatTensor out = ArrayFloatTensor.allocate(ROWS);
+            tensor.matmul(new ArrayFloatTensor(x), out, ROWS, COLUMNS);
+            for (int row = 0; row < ROWS; row++) {
+                assertDot(blocks.values(), row * COLUMNS, x, 0, COLUMNS, out.getFloat(row));
+            }
+        }
+    }
+}
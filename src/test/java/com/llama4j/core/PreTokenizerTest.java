@@ -0,0 +1,82 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PreTokenizerTest {
+
+    private static final Pattern PATTERN = Pattern.compile(PreTokenizer.LLAMA_3_PATTERN);
+
+    // Code points of all the classes the pattern distinguishes, and the contractions, with random case.
+    private static final String[] PIECES = {
+        "'", "'s", "'T", "'re", "'Ve", "'m", "'LL", "'d", "'r", "'l", "'x",
+        "a", "Z", "é", "ß", "Ω", "ж", "日", "本", "ǅ", "ʰ", "Ġ", "Ċ", "ĉ",
+        "0", "7", "²", "½", "Ⅻ", "٣", "𝟘",
+        " ", " ", " ", "\t", "\n", "\r", "\r\n", "\u000B", "\f", " ", " ",
+        ".", ",", "!", "-", "_", "(", "}", "\"", "€", "́", "😀", "🎉", "\uD800",
+    };
+
+    private static List<String> regexChunks(String text) {
+        List<String> chunks = new ArrayList<>();
+        Matcher matcher = PATTERN.matcher(text);
+        while (matcher.find()) {
+            chunks.add(matcher.group());
+        }
+        return chunks;
+    }
+
+    private static List<String> preTokenizerChunks(String text) {
+        List<String> chunks = new ArrayList<>();
+        for (int start = 0; start < text.length(); ) {
+            int end = PreTokenizer.chunkEnd(text, start, text.length());
+            chunks.add(text.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    @Test
+    void splitsRandomTextLikeTheRegex() {
+        Random random = new Random(42);
+        for (int n = 0; n < 50_000; n++) {
+            StringBuilder text = new StringBuilder();
+            int pieces = random.nextInt(40);
+            for (int i = 0; i < pieces; i++) {
+                text.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            String s = text.toString();
+            assertEquals(regexChunks(s), preTokenizerChunks(s), () -> "Chunks of \"" + s + "\"");
+        }
+    }
+
+    @Test
+    void splitsEveryCodePointLikeTheRegex() {
+        for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+            String cp = Character.toString(c);
+            for (String s : List.of(cp, " " + cp + "a", "'" + cp + "1", cp + cp + "\n ", "x" + cp + " " + cp)) {
+                assertEquals(regexChunks(s), preTokenizerChunks(s), () -> "Chunks of \"" + s + "\"");
+            }
+        }
+    }
+
+    @Test
+    void splitsByteLevelTextLikeTheRegex() {
+        // the tokenizer splits text mapped to the byte-level alphabet
+        Random random = new Random(7);
+        for (int n = 0; n < 20_000; n++) {
+            char[] chars = new char[random.nextInt(64)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) Tokenizer.BYTE_ENCODER[random.nextInt(256)];
+            }
+            String s = new String(chars);
+            assertEquals(regexChunks(s), preTokenizerChunks(s), () -> "Chunks of \"" + s + "\"");
+        }
+    }
+}
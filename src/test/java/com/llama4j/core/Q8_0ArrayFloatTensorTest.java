@@ -0,0 +1,120 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static com.llama4j.core.QuantizedBlocks.assertDot;
+import static com.llama4j.core.QuantizedBlocks.randomFloats;
+import static com.llama4j.core.QuantizedBlocks.values;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Q8_0ArrayFloatTensorTest {
+
+    private static final int BLOCK_SIZE = Q8_0ArrayFloatTensor.BLOCK_SIZE;
+    private static final int KV_DIM = 4 * BLOCK_SIZE;
+
+    @Test
+    void quantizeScalesEachBlockByItsLargestMagnitude() {
+        Random random = new Random(1);
+        float[] x = randomFloats(random, 8 * BLOCK_SIZE);
+        x[3] = 0f; // a zero
+        for (int i = BLOCK_SIZE; i < 2 * BLOCK_SIZE; i++) {
+            x[i] = 0f; // an empty block
+        }
+        x[2 * BLOCK_SIZE + 5] = -3f; // a negative maximum
+        Q8_0ArrayFloatTensor quantized = Q8_0ArrayFloatTensor.quantize(new ArrayFloatTensor(x), x.length);
+        for (int block = 0; block < x.length / BLOCK_SIZE; block++) {
+            float amax = 0f;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                amax = Math.max(amax, Math.abs(x[block * BLOCK_SIZE + i]));
+            }
+            float scale = amax / 127f;
+            assertEquals(scale, quantized.scales[block]);
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                int index = block * BLOCK_SIZE + i;
+                float scaled = scale != 0f ? x[index] * (1f / scale) : 0f;
+                assertEquals(Math.round(Math.abs(scaled)) * (int) Math.signum(scaled), quantized.quants[index],
+                    () -> "quant " + index + " of " + x[index] + " with " + FloatTensor.F_SPECIES);
+            }
+        }
+        assertEquals(-127, quantized.quants[2 * BLOCK_SIZE + 5]);
+    }
+
+    @Test
+    void vectorizedQuantizeMatchesTheScalarOne() {
+        Random random = new Random(2);
+        float[] x = randomFloats(random, 16 * BLOCK_SIZE);
+        // ties are rounded away from zero by both
+        x[0] = 1f;
+        x[1] = 0.5f / 127f;
+        x[2] = -0.5f / 127f;
+        x[3] = 2.5f / 127f;
+        Q8_0ArrayFloatTensor vectorized = Q8_0ArrayFloatTensor.quantize(new ArrayFloatTensor(x), x.length);
+        Q8_0ArrayFloatTensor scalar = Q8_0ArrayFloatTensor.quantize(new ScalarFloatTensor(x), x.length);
+        assertArrayEquals(scalar.scales, vectorized.scales);
+        assertArrayEquals(scalar.quants, vectorized.quants);
+    }
+
+    @Test
+    void quantizeReusesTheBufferOfTheActivations() {
+        Random random = new Random(3);
+        ArrayFloatTensor activations = new ArrayFloatTensor(randomFloats(random, 4 * BLOCK_SIZE));
+        Q8_0ArrayFloatTensor first = Q8_0ArrayFloatTensor.quantize(activations, 4 * BLOCK_SIZE);
+        float[] firstValues = values(first);
+        Q8_0ArrayFloatTensor second = Q8_0ArrayFloatTensor.quantize(activations, 2 * BLOCK_SIZE);
+        assertSame(first, second);
+        assertArrayEquals(firstValues, values(second));
+    }
+
+    @Test
+    void kvCacheStoreQuantizesEachRow() {
+        Random random = new Random(4);
+        float[] k = randomFloats(random, 2 * KV_DIM);
+        Q8_0ArrayFloatTensor cache = new Q8_0ArrayFloatTensor(4 * KV_DIM);
+        new ArrayFloatTensor(k).copyTo(KV_DIM, cache, 2 * KV_DIM, KV_DIM);
+        for (int i = 0; i < KV_DIM; i++) {
+            assertEquals(0f, cache.getFloat(i));
+            int index = 2 * KV_DIM + i;
+            float error = Math.abs(cache.getFloat(index) - k[KV_DIM + i]);
+            assertTrue(error <= cache.scales[index / BLOCK_SIZE] / 2 * 1.0001f, () -> "error " + error + " at " + index);
+        }
+    }
+
+    @Test
+    void kvCacheDotAgainstTheQuery() {
+        Random random = new Random(5);
+        Q8_0ArrayFloatTensor cache = new Q8_0ArrayFloatTensor(4 * KV_DIM);
+        new ArrayFloatTensor(randomFloats(random, 4 * KV_DIM)).copyTo(0, cache, 0, 4 * KV_DIM);
+        float[] keys = values(cache);
+        float[] q = randomFloats(random, 2 * KV_DIM);
+        // whole blocks, then unaligned ones computed by the scalar product
+        for (int[] offsetsAndSize : new int[][]{{0, 0, KV_DIM}, {3 * KV_DIM, KV_DIM, KV_DIM}, {KV_DIM, 3, BLOCK_SIZE}, {5, 0, 40}}) {
+            assertDot(keys, offsetsAndSize[0], q, offsetsAndSize[1], offsetsAndSize[2],
+                cache.dot(offsetsAndSize[0], new ArrayFloatTensor(q), offsetsAndSize[1], offsetsAndSize[2]));
+        }
+    }
+
+    @Test
+    void kvCacheSaxpyOfTheValues() {
+        Random random = new Random(6);
+        Q8_0ArrayFloatTensor cache = new Q8_0ArrayFloatTensor(4 * KV_DIM);
+        new ArrayFloatTensor(randomFloats(random, 4 * KV_DIM)).copyTo(0, cache, 0, 4 * KV_DIM);
+        float[] values = values(cache);
+        for (int[] offsetsAndSize : new int[][]{{KV_DIM, 2 * KV_DIM, KV_DIM}, {3, 5, 40}}) {
+            float[] out = randomFloats(random, 2 * KV_DIM);
+            float[] expected = out.clone();
+            float a = -0.61f;
+            new ArrayFloatTensor(out).saxpyInPlace(offsetsAndSize[0], cache, offsetsAndSize[1], offsetsAndSize[2], a);
+            for (int i = 0; i < offsetsAndSize[2]; i++) {
+                expected[offsetsAndSize[0] + i] += a * values[offsetsAndSize[1] + i];
+            }
+            for (int i = 0; i < out.length; i++) {
+                assertEquals(expected[i], out[i], 1e-6f, "out " + i + " with " + FloatTensor.F_SPECIES);
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.llama4j.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Random tensors built block by block in memory, in the GGUF layout, along with the values they encode decoded by
+ * plain scalar code: the reference of the kernel tests.
+ */
+final class QuantizedBlocks {
+
+    /**
+     * Bytes of a tensor, in a native segment like the ones of a mapped model, and the values they encode.
+     */
+    record Blocks(MemorySegment memorySegment, float[] values) {
+    }
+
+    private QuantizedBlocks() {
+    }
+
+    static MemorySegment nativeSegment(byte[] bytes) {
+        MemorySegment memorySegment = Arena.ofAuto().allocate(bytes.length, 64);
+        MemorySegment.copy(MemorySegment.ofArray(bytes), 0, memorySegment, 0, bytes.length);
+        return memorySegment;
+    }
+
+    static float[] randomFloats(Random random, int size) {
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextFloat() * 2f - 1f;
+        }
+        return values;
+    }
+
+    // Writes a little-endian float16 and returns the value it holds.
+    static float putFloat16(byte[] bytes, int offset, float value) {
+        short bits = Float.floatToFloat16(value);
+        bytes[offset] = (byte) bits;
+        bytes[offset + 1] = (byte) (bits >> 8);
+        return Float.float16ToFloat(bits);
+    }
+
+    /**
+     * {@link GGMLType#Q4_0}: a float16 scale then 16 bytes, the low nibbles hold the first half of the block and the
+     * high nibbles the second half, {@code value = (nibble - 8) * scale}.
+     */
+    static Blocks q4_0(Random random, int size) {
+        int blockSize = GGMLType.Q4_0.getBlockSize();
+        byte[] bytes = new byte[size / blockSize * GGMLType.Q4_0.getTypeSize()];
+        float[] values = new float[size];
+        for (int block = 0; block < size / blockSize; block++) {
+            int offset = block * GGMLType.Q4_0.getTypeSize();
+            float scale = putFloat16(bytes, offset, 0.01f + random.nextFloat() * 0.1f);
+            for (int i = 0; i < blockSize / 2; i++) {
+                int lo = random.nextInt(16);
+                int hi = random.nextInt(16);
+                bytes[offset + Float16.BYTES + i] = (byte) (lo | hi << 4);
+                values[block * blockSize + i] = (lo - 8) * scale;
+                values[block * blockSize + i + blockSize / 2] = (hi - 8) * scale;
+            }
+        }
+        return new Blocks(nativeSegment(bytes), values);
+    }
+
+    /**
+     * {@link GGMLType#Q8_0}: a float16 scale then 32 signed bytes, {@code value = quant * scale}.
+     */
+    static Blocks q8_0(Random random, int size) {
+        int blockSize = GGMLType.Q8_0.getBlockSize();
+        byte[] bytes = new byte[size / blockSize * GGMLType.Q8_0.getTypeSize()];
+        float[] values = new float[size];
+        for (int block = 0; block < size / blockSize; block++) {
+            int offset = block * GGMLType.Q8_0.getTypeSize();
+            float scale = putFloat16(bytes, offset, 0.001f + random.nextFloat() * 0.01f);
+            for (int i = 0; i < blockSize; i++) {
+                byte quant = (byte) (random.nextInt(256) - 128);
+                bytes[offset + Float16.BYTES + i] = quant;
+                values[block * blockSize + i] = quant * scale;
+            }
+        }
+        return new Blocks(nativeSegment(bytes), values);
+    }
+
+    /**
+     * {@link GGMLType#Q4_K}: super-blocks of a float16 {@code d} and {@code dmin}, the 6-bit scales and mins of the
+     * 8 sub-blocks of 32 weights packed in 12 bytes, then 4-bit quants, each 64 weights share 32 bytes (low nibbles
+     * first), {@code value = d * scale * q - dmin * min}.
+     */
+    static Blocks q4_K(Random random, int size) {
+        return kQuants(random, size, GGMLType.Q4_K, false);
+    }
+
+    /**
+     * {@link GGMLType#Q5_K}: {@link #q4_K} with the 5th bit of the quants in 32 bytes before them, bit {@code i} of
+     * byte {@code l} for weight {@code 32 * i + l}.
+     */
+    static Blocks q5_K(Random random, int size) {
+        return kQuants(random, size, GGMLType.Q5_K, true);
+    }
+
+    private static Blocks kQuants(Random random, int size, GGMLType type, boolean highBits) {
+        int blockSize = type.getBlockSize();
+        byte[] bytes = new byte[size / blockSize * type.getTypeSize()];
+        float[] values = new float[size];
+        for (int block = 0; block < size / blockSize; block++) {
+            int offset = block * type.getTypeSize();
+            float d = putFloat16(bytes, offset, 0.001f + random.nextFloat() * 0.01f);
+            float dmin = putFloat16(bytes, offset + Float16.BYTES, 0.001f + random.nextFloat() * 0.01f);
+            int[] scales = random.ints(8, 0, 64).toArray();
+            int[] mins = random.ints(8, 0, 64).toArray();
+            int scalesOffset = offset + 2 * Float16.BYTES;
+            for (int j = 0; j < 4; j++) {
+                // the low 6 bits of the first 4, the high 2 bits of the last 4 on top, their low 4 bits in the last bytes
+                bytes[scalesOffset + j] = (byte) (scales[j] | scales[j + 4] >> 4 << 6);
+                bytes[scalesOffset + j + 4] = (byte) (mins[j] | mins[j + 4] >> 4 << 6);
+                bytes[scalesOffset + j + 8] = (byte) (scales[j + 4] & 0xF | (mins[j + 4] & 0xF) << 4);
+            }
+            int highBitsOffset = scalesOffset + 12;
+            int quantsOffset = highBitsOffset + (highBits ? 32 : 0);
+            for (int index = 0; index < blockSize; index++) {
+                int subBlock = index / 32;
+                int l = index % 32;
+                int quant = random.nextInt(highBits ? 32 : 16);
+                bytes[quantsOffset + index / 64 * 32 + l] |= (byte) ((quant & 0xF) << (subBlock % 2 == 0 ? 0 : 4));
+                if (highBits) {
+                    bytes[highBitsOffset + l] |= (byte) ((quant >> 4) << subBlock);
+                }
+                values[block * blockSize + index] = d * scales[subBlock] * quant - dmin * mins[subBlock];
+            }
+        }
+        return new Blocks(nativeSegment(bytes), values);
+    }
+
+    /**
+     * {@link GGMLType#Q6_K}: super-blocks of 128 bytes of low 4 bits, 64 bytes of high 2 bits, 16 signed scales (one per
+     * 16 weights) and a trailing float16 {@code d}, {@code value = d * scale * (q - 32)}. Each half of 128 weights is
+     * made of 4 quarters: quarter {@code k} takes the low (k < 2) or high nibbles of 32 bytes of low bits, and the bits
+     * {@code 2k, 2k + 1} of 32 bytes of high bits.
+     */
+    static Blocks q6_K(Random random, int size) {
+        int blockSize = GGMLType.Q6_K.getBlockSize();
+        byte[] bytes = new byte[size / blockSize * GGMLType.Q6_K.getTypeSize()];
+        float[] values = new float[size];
+        for (int block = 0; block < size / blockSize; block++) {
+            int offset = block * GGMLType.Q6_K.getTypeSize();
+            float d = putFloat16(bytes, offset + 128 + 64 + 16, 0.0001f + random.nextFloat() * 0.001f);
+            for (int i = 0; i < 16; i++) {
+                bytes[offset + 128 + 64 + i] = (byte) (random.nextInt(256) - 128);
+            }
+            for (int index = 0; index < blockSize; index++) {
+                int half = index / 128;
+                int quarter = index % 128 / 32;
+                int l = index % 32;
+                int quant = random.nextInt(64);
+                bytes[offset + half * 64 + quarter % 2 * 32 + l] |= (byte) ((quant & 0xF) << (quarter < 2 ? 0 : 4));
+                bytes[offset + 128 + half * 32 + l] |= (byte) ((quant >> 4) << 2 * quarter);
+                byte scale = bytes[offset + 128 + 64 + half * 8 + 2 * quarter + l / 16];
+                values[block * blockSize + index] = d * scale * (quant - 32);
+            }
+        }
+        return new Blocks(nativeSegment(bytes), values);
+    }
+
+    /**
+     * {@link GGMLType#F16}: little-endian IEEE 754 half-precision floats.
+     */
+    static Blocks f16(Random random, int size) {
+        byte[] bytes = new byte[size * Float16.BYTES];
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = putFloat16(bytes, i * Float16.BYTES, random.nextFloat() * 2f - 1f);
+        }
+        return new Blocks(nativeSegment(bytes), values);
+    }
+
+    /**
+     * {@link GGMLType#BF16}: little-endian bfloat16, the high 16 bits of a float.
+     */
+    static Blocks bf16(Random random, int size) {
+        byte[] bytes = new byte[size * Short.BYTES];
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            int bits = Float.floatToRawIntBits(random.nextFloat() * 2f - 1f) >>> 16;
+            bytes[i * Short.BYTES] = (byte) bits;
+            bytes[i * Short.BYTES + 1] = (byte) (bits >> 8);
+            values[i] = Float.intBitsToFloat(bits << 16);
+        }
+        return new Blocks(nativeSegment(bytes), values);
+    }
+
+    static double dot(float[] a, int aOffset, float[] b, int bOffset, int size) {
+        double result = 0;
+        for (int i = 0; i < size; i++) {
+            result += (double) a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+
+    static float[] values(FloatTensor tensor) {
+        float[] values = new float[tensor.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = tensor.getFloat(i);
+        }
+        return values;
+    }
+
+    /**
+     * Asserts a float dot product against its double reference, up to the rounding of a float sum of its terms.
+     */
+    static void assertDot(float[] a, int aOffset, float[] b, int bOffset, int size, float actual) {
+        double magnitude = 0;
+        for (int i = 0; i < size; i++) {
+            magnitude += Math.abs((double) a[aOffset + i] * b[bOffset + i]);
+        }
+        assertEquals(dot(a, aOffset, b, bOffset, size), actual, 1e-5 * magnitude + 1e-6,
+            () -> "dot of " + size + " at " + aOffset + ", " + bOffset + " with " + FloatTensor.F_SPECIES);
+    }
+}
@@ -0,0 +1,95 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import static com.llama4j.core.QuantizedBlocks.assertDot;
+import static com.llama4j.core.QuantizedBlocks.randomFloats;
+import static com.llama4j.core.QuantizedBlocks.values;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * {@link GGMLType#Q4_0} and {@link GGMLType#Q8_0} weights, against floats and against quantized activations.
+ */
+class QuantizedFloatTensorTest {
+
+    private record Type(BiFunction<Random, Integer, QuantizedBlocks.Blocks> blocks,
+                        BiFunction<Integer, MemorySegment, FloatTensor> tensor) {
+    }
+
+    private static final List<Type> TYPES = List.of(
+        new Type(QuantizedBlocks::q4_0, Q4_0FloatTensor::new),
+        new Type(QuantizedBlocks::q8_0, Q8_0FloatTensor::new));
+
+    private static final int ROWS = 3;
+    private static final int COLUMNS = 256;
+
+    @Test
+    void getFloatDecodesTheBlocks() {
+        Random random = new Random(1);
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor tensor = type.tensor().apply(ROWS * COLUMNS, blocks.memorySegment());
+            assertArrayEquals(blocks.values(), values(tensor));
+        }
+    }
+
+    @Test
+    void dotAgainstFloats() {
+        Random random = new Random(2);
+        // aligned, unaligned weights or activations, partial blocks
+        int[][] offsetsAndSizes = {{0, 0, COLUMNS}, {COLUMNS, 0, COLUMNS}, {96, 5, 64}, {7, 0, 100}, {32, 3, 33}, {0, 0, 31}};
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor tensor = type.tensor().apply(ROWS * COLUMNS, blocks.memorySegment());
+            float[] x = randomFloats(random, COLUMNS + 8);
+            for (int[] offsetAndSize : offsetsAndSizes) {
+                assertDot(blocks.values(), offsetAndSize[0], x, offsetAndSize[1], offsetAndSize[2],
+                    tensor.dot(offsetAndSize[0], new ArrayFloatTensor(x), offsetAndSize[1], offsetAndSize[2]));
+            }
+        }
+    }
+
+    @Test
+    void integerDotAgainstQuantizedActivations() {
+        Random random = new Random(3);
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor tensor = type.tensor().apply(ROWS * COLUMNS, blocks.memorySegment());
+            Q8_0ArrayFloatTensor activations = Q8_0ArrayFloatTensor.quantize(new ArrayFloatTensor(randomFloats(random, 2 * COLUMNS)), 2 * COLUMNS);
+            float[] quantized = values(activations);
+            for (int row = 0; row < ROWS; row++) {
+                for (int thatOffset : new int[]{0, 32, COLUMNS}) {
+                    assertDot(blocks.values(), row * COLUMNS, quantized, thatOffset, COLUMNS,
+                        tensor.dot(row * COLUMNS, activations, thatOffset, COLUMNS));
+                }
+            }
+            // unaligned offsets fall back to the scalar product
+            assertDot(blocks.values(), 1, quantized, 1, 64, tensor.dot(1, activations, 1, 64));
+        }
+    }
+
+    @Test
+    void batchedMatmul() {
+        Random random = new Random(4);
+        // 4 vectors at a time then the remaining ones
+        for (int batchSize : new int[]{1, 4, 7}) {
+            for (Type type : TYPES) {
+                QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+                FloatTensor tensor = type.tensor().apply(ROWS * COLUMNS, blocks.memorySegment());
+                float[] x = randomFloats(random, batchSize * COLUMNS);
+                FloatTensor out = ArrayFloatTensor.allocate(batchSize, ROWS);
+                tensor.matmul(batchSize, new ArrayFloatTensor(x), out, ROWS, COLUMNS);
+                for (int b = 0; b < batchSize; b++) {
+                    for (int row = 0; row < ROWS; row++) {
+                        assertDot(blocks.values(), row * COLUMNS, x, b * COLUMNS, COLUMNS, out.getFloat(b * ROWS + row));
+                    }
+                }
+            }
+        }
+    }
+}
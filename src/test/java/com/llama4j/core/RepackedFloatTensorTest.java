@@ -0,0 +1,117 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static com.llama4j.core.QuantizedBlocks.assertDot;
+import static com.llama4j.core.QuantizedBlocks.randomFloats;
+import static com.llama4j.core.QuantizedBlocks.values;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link Q4_0RepackedFloatTensor} and {@link Q8_0RepackedFloatTensor}: the interleaved row groups hold the weights of
+ * the source tensor, and the matmuls over whole groups compute the same products.
+ */
+class RepackedFloatTensorTest {
+
+    private record Type(BiFunction<Random, Integer, QuantizedBlocks.Blocks> blocks,
+                        Function<QuantizedBlocks.Blocks, FloatTensor> repacked) {
+    }
+
+    private static final int ROWS = 8; // 2 row groups
+    private static final int COLUMNS = 256;
+
+    private static final List<Type> TYPES = List.of(
+        new Type(QuantizedBlocks::q4_0, blocks -> Q4_0RepackedFloatTensor.repack(
+            new Q4_0FloatTensor(ROWS * COLUMNS, blocks.memorySegment()), ROWS, COLUMNS)),
+        new Type(QuantizedBlocks::q8_0, blocks -> Q8_0RepackedFloatTensor.repack(
+            new Q8_0FloatTensor(ROWS * COLUMNS, blocks.memorySegment()), ROWS, COLUMNS)));
+
+    @Test
+    void onlyWholeRowGroupsOfWholeBlocksAreRepacked() {
+        assertTrue(Q4_0RepackedFloatTensor.canRepack(8, 64));
+        assertFalse(Q4_0RepackedFloatTensor.canRepack(6, 64));
+        assertFalse(Q8_0RepackedFloatTensor.canRepack(8, 48));
+    }
+
+    @Test
+    void repackedWeightsAreTheSourceWeights() {
+        Random random = new Random(1);
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor repacked = type.repacked().apply(blocks);
+            assertArrayEquals(blocks.values(), values(repacked), () -> repacked.type().toString());
+        }
+    }
+
+    @Test
+    void rowDots() {
+        Random random = new Random(2);
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor repacked = type.repacked().apply(blocks);
+            float[] x = randomFloats(random, 2 * COLUMNS);
+            Q8_0ArrayFloatTensor quantized = Q8_0ArrayFloatTensor.quantize(new ArrayFloatTensor(x.clone()), x.length);
+            float[] quantizedValues = values(quantized);
+            for (int row = 0; row < ROWS; row++) {
+                for (int thatOffset : new int[]{0, 32, COLUMNS}) {
+                    assertDot(blocks.values(), row * COLUMNS, x, thatOffset, COLUMNS,
+                        repacked.dot(row * COLUMNS, new ArrayFloatTensor(x), thatOffset, COLUMNS));
+                    assertDot(blocks.values(), row * COLUMNS, quantizedValues, thatOffset, COLUMNS,
+                        repacked.dot(row * COLUMNS, quantized, thatOffset, COLUMNS));
+                }
+            }
+            // not a whole row
+            assertDot(blocks.values(), 5, x, 0, 100, repacked.dot(5, new ArrayFloatTensor(x), 0, 100));
+        }
+    }
+
+    @Test
+    void matmulOverRowGroups() {
+        Random random = new Random(3);
+        for (Type type : TYPES) {
+            QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+            FloatTensor repacked = type.repacked().apply(blocks);
+            float[] x = randomFloats(random, COLUMNS);
+            Q8_0ArrayFloatTensor quantized = Q8_0ArrayFloatTensor.quantize(new ArrayFloatTensor(x.clone()), x.length);
+            for (FloatTensor input : new FloatTensor[]{new ArrayFloatTensor(x), quantized}) {
+                float[] inputValues = values(input);
+                FloatTensor out = ArrayFloatTensor.allocate(ROWS);
+                repacked.matmul(input, out, ROWS, COLUMNS);
+                for (int row = 0; row < ROWS; row++) {
+                    assertDot(blocks.values(), row * COLUMNS, inputValues, 0, COLUMNS, out.getFloat(row));
+                }
+            }
+        }
+    }
+
+    @Test
+    void batchedMatmul() {
+        Random random = new Random(4);
+        // 4 vectors at a time then the remaining ones
+        for (int batchSize : new int[]{1, 4, 7}) {
+            for (Type type : TYPES) {
+                QuantizedBlocks.Blocks blocks = type.blocks().apply(random, ROWS * COLUMNS);
+                FloatTensor repacked = type.repacked().apply(blocks);
+                float[] x = randomFloats(random, batchSize * COLUMNS);
+                Q8_0ArrayFloatTensor quantized = Q8_0ArrayFloatTensor.quantize(new ArrayFloatTensor(x.clone()), x.length);
+                for (FloatTensor input : new FloatTensor[]{new ArrayFloatTensor(x), quantized}) {
+                    float[] inputValues = values(input);
+                    FloatTensor out = ArrayFloatTensor.allocate(batchSize, ROWS);
+                    repacked.matmul(batchSize, input, out, ROWS, COLUMNS);
+                    for (int b = 0; b < batchSize; b++) {
+                        for (int row = 0; row < ROWS; row++) {
+                            assertDot(blocks.values(), row * COLUMNS, inputValues, b * COLUMNS, COLUMNS, out.getFloat(b * ROWS + row));
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.random.RandomGeneratorFactory;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SamplerChainTest {
+
+    private static final int VOCABULARY_SIZE = 1_000;
+
+    private static final List<Function<float[], FloatTensor>> TENSORS = List.of(ArrayFloatTensor::new, ScalarFloatTensor::new);
+
+    private static float[] randomLogits(Random random) {
+        float[] logits = new float[VOCABULARY_SIZE];
+        for (int i = 0; i < logits.length; i++) {
+            logits[i] = (random.nextFloat() - 0.5f) * 10f;
+        }
+        return logits;
+    }
+
+    private static SamplerChain chain(float temperature, float topp, int topK, float minP) {
+        return new SamplerChain(new SamplerOptions(temperature, topp, topK, minP, 0f, 0f, 1f, Map.of()),
+            RandomGeneratorFactory.getDefault().create(1));
+    }
+
+    // Tokens left with a non-zero probability by the chain, checks that the probabilities sum to 1.
+    private static Set<Integer> candidates(SamplerChain chain, FloatTensor logits) {
+        chain.probabilitiesInPlace(logits);
+        Set<Integer> tokens = new TreeSet<>();
+        double sum = 0;
+        for (int i = 0; i < logits.size(); i++) {
+            if (logits.getFloat(i) > 0f) {
+                tokens.add(i);
+                sum += logits.getFloat(i);
+            }
+        }
+        assertEquals(1.0, sum, 1e-4);
+        return tokens;
+    }
+
+    @Test
+    void greedySamplingPicksTheFirstOfTiedMaxima() {
+        Random random = new Random(1);
+        for (Function<float[], FloatTensor> tensor : TENSORS) {
+            for (int[] tied : new int[][]{{0, 999}, {37, 38, 500}, {998, 999}, {517}}) {
+                float[] logits = randomLogits(random);
+                for (int index : tied) {
+                    logits[index] = 7f;
+                }
+                assertEquals(tied[0], chain(0f, 0.9f, 0, 0f).sampleToken(tensor.apply(logits)));
+            }
+        }
+    }
+
+    @Test
+    void topPKeepsTheNucleus() {
+        Random random = new Random(3);
+        for (Function<float[], FloatTensor> tensor : TENSORS) {
+            for (float topP : new float[]{0.05f, 0.5f, 0.9f}) {
+                float[] logits = randomLogits(random);
+                Set<Integer> tokens = candidates(chain(0.7f, topP, 0, 0f), tensor.apply(logits.clone()));
+                // the nucleus is made of the largest logits, enough of them to reach topP
+                assertEquals(ToppSamplerTest.largest(logits, tokens.size()), tokens);
+                double[] probabilities = softmax(logits, 0.7f);
+                double total = tokens.stream().mapToDouble(i -> probabilities[i]).sum();
+                double smallest = tokens.stream().mapToDouble(i -> probabilities[i]).min().orElseThrow();
+                assertTrue(total > topP - 1e-5 && total - smallest <= topP + 1e-5, () -> "Nucleus of " + total + " for top-p " + topP);
+            }
+        }
+    }
+
+    @Test
+    void topKKeepsTheKLargestLogits() {
+        Random random = new Random(4);
+        for (Function<float[], FloatTensor> tensor : TENSORS) {
+            for (int k : new int[]{1, 2, 15, 40, 999, 2_000}) {
+                float[] logits = randomLogits(random);
+                Set<Integer> tokens = candidates(chain(1f, 1f, k, 0f), tensor.apply(logits.clone()));
+                assertEquals(ToppSamplerTest.largest(logits, k), tokens);
+            }
+        }
+    }
+
+    @Test
+    void minPKeepsTheTokensAtLeastMinPTimesAsLikelyAsTheMostLikely() {
+        Random random = new Random(5);
+        for (Function<float[], FloatTensor> tensor : TENSORS) {
+            for (float minP : new float[]{0.01f, 0.1f, 0.5f, 1f}) {
+                float temperature = 0.8f;
+                float[] logits = randomLogits(random);
+                Set<Integer> tokens = candidates(chain(temperature, 1f, 0, minP), tensor.apply(logits.clone()));
+                assertEquals(minPTokens(logits, temperature, minP), tokens);
+
+                // top-k among the tokens kept by min-p
+                Set<Integer> both = candidates(chain(temperature, 1f, 10, minP), tensor.apply(logits.clone()));
+                Set<Integer> expected = minPTokens(logits, temperature, minP).stream()
+                    .sorted(Comparator.comparingDouble((Integer i) -> logits[i]).reversed())
+                    .limit(10)
+                    .collect(Collectors.toCollection(TreeSet::new));
+                assertEquals(expected, both);
+            }
+        }
+    }
+
+    private static Set<Integer> minPTokens(float[] logits, float temperature, float minP) {
+        double[] probabilities = softmax(logits, temperature);
+        double max = Arrays.stream(probabilities).max().orElseThrow();
+        return IntStream.range(0, logits.length).filter(i -> probabilities[i] >= minP * max).boxed()
+            .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private static double[] softmax(float[] logits, float temperature) {
+        double max = IntStream.range(0, logits.length).mapToDouble(i -> logits[i]).max().orElseThrow();
+        double[] probabilities = IntStream.range(0, logits.length).mapToDouble(i -> Math.exp((logits[i] - max) / temperature)).toArray();
+        double sum = Arrays.stream(probabilities).sum();
+        return Arrays.stream(probabilities).map(p -> p / sum).toArray();
+    }
+}
@@ -0,0 +1,42 @@
+package com.llama4j.core;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} over a {@code float[]} that goes through the generic code, not the vectorized
+ * {@link ArrayFloatTensor} overrides: the scalar reference of the tests.
+ */
+final class ScalarFloatTensor extends FloatTensor {
+
+    final float[] values;
+
+    ScalarFloatTensor(float[] values) {
+        this.values = values;
+    }
+
+    @Override
+    int size() {
+        return values.length;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        return values[index];
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        values[index] = value;
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.F32;
+    }
+}
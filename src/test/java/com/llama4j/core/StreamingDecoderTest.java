@@ -0,0 +1,69 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamingDecoderTest {
+
+    private static int completeLength(String text, int size) {
+        return StreamingDecoder.completeLength(text.getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    @Test
+    void holdsBackSplitTwoByteCharacters() {
+        // "aé": 61 C3 A9
+        assertEquals(1, completeLength("aé", 1));
+        assertEquals(1, completeLength("aé", 2));
+        assertEquals(3, completeLength("aé", 3));
+    }
+
+    @Test
+    void holdsBackSplitThreeByteCharacters() {
+        // "a€": 61 E2 82 AC
+        assertEquals(1, completeLength("a€", 2));
+        assertEquals(1, completeLength("a€", 3));
+        assertEquals(4, completeLength("a€", 4));
+    }
+
+    @Test
+    void holdsBackSplitFourByteCharacters() {
+        // "é😀": C3 A9 F0 9F 98 80
+        assertEquals(2, completeLength("é😀", 3));
+        assertEquals(2, completeLength("é😀", 4));
+        assertEquals(2, completeLength("é😀", 5));
+        assertEquals(6, completeLength("é😀", 6));
+        assertEquals(0, completeLength("😀", 3));
+    }
+
+    @Test
+    void doesNotHoldBackMalformedBytes() {
+        byte[] continuations = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80};
+        assertEquals(4, StreamingDecoder.completeLength(continuations, 4));
+        assertEquals(0, StreamingDecoder.completeLength(new byte[0], 0));
+    }
+
+    @Test
+    void streamsWholeCharactersOfByteTokens() {
+        // one token per byte, the worst case for split characters
+        String[] tokens = new String[256];
+        for (int b = 0; b < 256; b++) {
+            tokens[b] = String.valueOf((char) Tokenizer.BYTE_ENCODER[b]);
+        }
+        Tokenizer tokenizer = new Tokenizer(new Vocabulary(tokens, null), List.of(), null, Map.of());
+        String text = "Héllo wörld, 日本語 😀🎉 Ω!";
+        StreamingDecoder decoder = new StreamingDecoder(tokenizer);
+        StringBuilder streamed = new StringBuilder();
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            String piece = decoder.decode(Byte.toUnsignedInt(b));
+            assertEquals(-1, piece.indexOf('\uFFFD'), () -> "Half character in \"" + piece + "\"");
+            streamed.append(piece);
+        }
+        assertEquals(text, streamed.toString());
+        assertEquals("", decoder.flush());
+    }
+}
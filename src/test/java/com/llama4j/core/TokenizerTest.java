@@ -0,0 +1,236 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenizerTest {
+
+    private static final String CORPUS = """
+        The quick brown fox jumps over the lazy dog. Don't you think they'll say it's the best? I'M SURE WE'VE SEEN IT.
+        public static void main(String[] args) {
+            for (int i = 0; i < 10; i++) {
+                System.out.println("Hello, world! " + i);
+            }
+        }
+        Héllo wörld! Ça va? Ångström, naïve café. 日本語のテキスト、漢字。 Привет мир. 12345678 3.14159 😀🎉
+        \t\tindented\r\n\r\n   spaced   out    words\n\n\n
+        """;
+
+    // Mixed scripts, emojis, contractions and runs of every kind of whitespace.
+    private static final String[] PIECES = {
+        "Hello", "world", "the", "café", "Ångström", "naïve", "日本語", "テキスト", "Привет", "Ω", "😀", "🎉", "👍🏽",
+        "'s", "'LL", "don't", "123", "3.14", "½", "!", "?!", "...", "\"", "(", ")",
+        " ", "  ", "   ", "\t", "\t\t", "\n", "\n\n\n", "\r\n", " \n ", "\u00A0", "\u2003", "\u000B", "\f",
+    };
+
+    private static final List<String> SPECIAL_TOKENS = List.of("<|begin_of_text|>", "<|eot_id|>", "<|start_header_id|>");
+
+    private static Vocabulary vocabulary;
+    private static List<Pair<Integer, Integer>> merges;
+    private static Map<String, Integer> specialTokens;
+
+    // Byte-level BPE trained on the corpus: the most frequent pair within the chunks is merged, until none repeats.
+    @BeforeAll
+    static void train() {
+        List<String> tokens = new ArrayList<>();
+        Map<String, Integer> indices = new HashMap<>();
+        for (int b = 0; b < 256; b++) {
+            String token = String.valueOf((char) Tokenizer.BYTE_ENCODER[b]);
+            indices.put(token, tokens.size());
+            tokens.add(token);
+        }
+        List<List<Integer>> words = new ArrayList<>();
+        Matcher matcher = Pattern.compile(PreTokenizer.LLAMA_3_PATTERN).matcher(byteLevel(CORPUS));
+        while (matcher.find()) {
+            List<Integer> word = new ArrayList<>();
+            matcher.group().chars().forEach(c -> word.add(indices.get(String.valueOf((char) c))));
+            words.add(word);
+        }
+        merges = new ArrayList<>();
+        while (true) {
+            Map<Pair<Integer, Integer>, Integer> counts = new HashMap<>();
+            for (List<Integer> word : words) {
+                for (int i = 0; i + 1 < word.size(); i++) {
+                    counts.merge(new Pair<>(word.get(i), word.get(i + 1)), 1, Integer::sum);
+                }
+            }
+            Pair<Integer, Integer> best = counts.entrySet().stream()
+                .filter(entry -> entry.getValue() > 1 && !indices.containsKey(tokens.get(entry.getKey().first()) + tokens.get(entry.getKey().second())))
+                .max(Map.Entry.<Pair<Integer, Integer>, Integer>comparingByValue()
+                    .thenComparing(entry -> -entry.getKey().first())
+                    .thenComparing(entry -> -entry.getKey().second()))
+                .map(Map.Entry::getKey)
+                .orElse(null);
+            if (best == null) {
+                break;
+            }
+            int merged = tokens.size();
+            String token = tokens.get(best.first()) + tokens.get(best.second());
+            indices.put(token, merged);
+            tokens.add(token);
+            merges.add(best);
+            for (List<Integer> word : words) {
+                for (int i = 0; i + 1 < word.size(); i++) {
+                    if (word.get(i).equals(best.first()) && word.get(i + 1).equals(best.second())) {
+                        word.set(i, merged);
+                        word.remove(i + 1);
+                    }
+                }
+            }
+        }
+        specialTokens = new HashMap<>();
+        for (String token : SPECIAL_TOKENS) {
+            specialTokens.put(token, tokens.size());
+            tokens.add(token);
+        }
+        vocabulary = new Vocabulary(tokens.toArray(String[]::new), null);
+    }
+
+    private static String byteLevel(String text) {
+        StringBuilder chars = new StringBuilder();
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            chars.append((char) Tokenizer.BYTE_ENCODER[Byte.toUnsignedInt(b)]);
+        }
+        return chars.toString();
+    }
+
+    private static Tokenizer tokenizer(int cacheChunks) {
+        return new Tokenizer(vocabulary, merges, PreTokenizer.LLAMA_3_PATTERN, specialTokens, cacheChunks);
+    }
+
+    private static String randomText(Random random) {
+        int start = random.nextInt(CORPUS.length());
+        int end = Math.min(CORPUS.length(), start + random.nextInt(200));
+        return CORPUS.substring(start, end) + " " + CORPUS.substring(0, random.nextInt(40));
+    }
+
+    private static String mixedText(Random random) {
+        StringBuilder text = new StringBuilder();
+        int pieces = random.nextInt(30);
+        for (int i = 0; i < pieces; i++) {
+            text.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return text.toString();
+    }
+
+    // Textbook byte-level BPE: the regex chunks, then the pair of adjacent tokens merged first in training, until none is left.
+    private static List<Integer> referenceEncode(String text) {
+        Map<Pair<Integer, Integer>, Integer> ranks = new HashMap<>();
+        for (int rank = 0; rank < merges.size(); rank++) {
+            ranks.put(merges.get(rank), rank);
+        }
+        List<Integer> result = new ArrayList<>();
+        Matcher matcher = Pattern.compile(PreTokenizer.LLAMA_3_PATTERN).matcher(byteLevel(text));
+        while (matcher.find()) {
+            List<Integer> word = new ArrayList<>();
+            matcher.group().chars().forEach(c -> word.add(vocabulary.getIndex(String.valueOf((char) c)).orElseThrow()));
+            while (true) {
+                int best = -1;
+                for (int i = 0; i + 1 < word.size(); i++) {
+                    Integer rank = ranks.get(new Pair<>(word.get(i), word.get(i + 1)));
+                    if (rank != null && (best == -1 || rank < ranks.get(new Pair<>(word.get(best), word.get(best + 1))))) {
+                        best = i;
+                    }
+                }
+                if (best == -1) {
+                    break;
+                }
+                word.set(best, vocabulary.getIndex(vocabulary.get(word.get(best)) + vocabulary.get(word.get(best + 1))).orElseThrow());
+                word.remove(best + 1);
+            }
+            result.addAll(word);
+        }
+        return result;
+    }
+
+    @Test
+    void encodesMixedTextLikeTheReferenceAndDecodesItBack() {
+        Tokenizer tokenizer = tokenizer(ChunkCache.CAPACITY);
+        Random random = new Random(7);
+        for (int n = 0; n < 2_000; n++) {
+            String text = mixedText(random);
+            List<Integer> expected = referenceEncode(text);
+            int[] tokens = tokenizer.encode(text);
+            assertEquals(expected, Arrays.stream(tokens).boxed().toList(), () -> "Tokens of \"" + text + "\"");
+            assertEquals(text, tokenizer.decode(tokens));
+        }
+    }
+
+    @Test
+    void encodesLongTextLikeTheReference() {
+        // long enough to be split and encoded in parallel (with several threads)
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(11);
+        while (text.length() <= Tokenizer.PARALLEL_ENCODE_CHARS) {
+            text.append(mixedText(random));
+        }
+        Tokenizer tokenizer = tokenizer(0);
+        int[] tokens = tokenizer.encode(text.toString());
+        assertEquals(referenceEncode(text.toString()), Arrays.stream(tokens).boxed().toList());
+        assertEquals(text.toString(), tokenizer.decode(tokens));
+    }
+
+    @Test
+    void encodesOnlyTheAllowedSpecialTokens() {
+        Tokenizer tokenizer = tokenizer(0);
+        String text = "<|begin_of_text|>Hello  wörld<|eot_id|>\n\n日本<|start_header_id|>";
+        int beginOfText = specialTokens.get("<|begin_of_text|>");
+        int eot = specialTokens.get("<|eot_id|>");
+        int startHeader = specialTokens.get("<|start_header_id|>");
+
+        List<Integer> expected = new ArrayList<>();
+        expected.add(beginOfText);
+        expected.addAll(tokenizer.encodeOrdinary(byteLevel("Hello  wörld")));
+        expected.add(eot);
+        expected.addAll(tokenizer.encodeOrdinary(byteLevel("\n\n日本")));
+        expected.add(startHeader);
+        List<Integer> all = tokenizer.encode(byteLevel(text), Set.copyOf(SPECIAL_TOKENS));
+        assertEquals(expected, all);
+        assertEquals(text, tokenizer.decode(all));
+
+        // the disallowed special tokens are ordinary text
+        expected.clear();
+        expected.addAll(tokenizer.encodeOrdinary(byteLevel("<|begin_of_text|>Hello  wörld")));
+        expected.add(eot);
+        expected.addAll(tokenizer.encodeOrdinary(byteLevel("\n\n日本<|start_header_id|>")));
+        List<Integer> some = tokenizer.encode(byteLevel(text), Set.of("<|eot_id|>"));
+        assertEquals(expected, some);
+        assertEquals(text, tokenizer.decode(some));
+
+        List<Integer> none = tokenizer.encodeAsList(text);
+        assertEquals(referenceEncode(text), none);
+        assertFalse(none.contains(beginOfText) || none.contains(eot) || none.contains(startHeader));
+        assertEquals(text, tokenizer.decode(none));
+    }
+
+    @Test
+    void cachedEncodingEqualsUncachedEncoding() {
+        Tokenizer uncached = tokenizer(0);
+        Tokenizer cached = tokenizer(ChunkCache.CAPACITY);
+        Random random = new Random(3);
+        for (int n = 0; n < 2_000; n++) {
+            String text = randomText(random);
+            int[] expected = uncached.encode(text);
+            assertArrayEquals(expected, cached.encode(text), () -> "Tokens of \"" + text + "\"");
+            assertArrayEquals(expected, cached.encode(text), () -> "Cached tokens of \"" + text + "\"");
+        }
+        assertTrue(cached.chunkCache().hits() > 0);
+        assertEquals(0, uncached.chunkCache().size());
+    }
+}
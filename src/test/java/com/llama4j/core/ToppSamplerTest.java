@@ -0,0 +1,96 @@
+package com.llama4j.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ToppSamplerTest {
+
+    private static final List<Function<float[], FloatTensor>> TENSORS = List.of(ArrayFloatTensor::new, ScalarFloatTensor::new);
+
+    static Set<Integer> largest(float[] values, int k) {
+        return IntStream.range(0, values.length).boxed()
+            .sorted(Comparator.comparingDouble((Integer i) -> values[i]).reversed())
+            .limit(k)
+            .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    @Test
+    void argmaxPicksTheFirstOfTiedMaxima() {
+        Random random = new Random(1);
+        for (Function<float[], FloatTensor> tensor : TENSORS) {
+            for (int[] tied : new int[][]{{0, 999}, {37, 38, 500}, {998, 999}, {517}}) {
+                float[] logits = new float[1_000];
+                for (int i = 0; i < logits.length; i++) {
+                    logits[i] = (random.nextFloat() - 0.5f) * 10f;
+                }
+                for (int index : tied) {
+                    logits[index] = 7f;
+                }
+                assertEquals(tied[0], Sampler.ARGMAX.sampleToken(tensor.apply(logits)));
+            }
+        }
+    }
+
+    @Test
+    void nucleusHoldsTheMostLikelyTokensUpToTopP() {
+        Random random = new Random(2);
+        for (int n = 0; n < 200; n++) {
+            int size = 1 + random.nextInt(300);
+            float topP = random.nextFloat();
+            float[] probabilities = new float[size];
+            float sum = 0f;
+            for (int i = 0; i < size; i++) {
+                probabilities[i] = random.nextFloat() * random.nextFloat();
+                sum += probabilities[i];
+            }
+            long[] candidates = new long[size];
+            for (int i = 0; i < size; i++) {
+                probabilities[i] /= sum;
+                candidates[i] = ToppSampler.candidate(probabilities[i], i);
+            }
+            int nucleus = ToppSampler.selectNucleus(candidates, size, topP);
+
+            // the nucleus is the smallest set of the most likely tokens summing to more than topP
+            Set<Integer> members = Arrays.stream(candidates, 0, nucleus).mapToObj(ToppSampler::index)
+                .collect(Collectors.toCollection(TreeSet::new));
+            assertEquals(largest(probabilities, nucleus), members);
+            double total = Arrays.stream(candidates, 0, nucleus).mapToDouble(ToppSampler::probability).sum();
+            double smallest = Arrays.stream(candidates, 0, nucleus).mapToDouble(ToppSampler::probability).min().orElseThrow();
+            assertTrue(nucleus == size || total > topP - 1e-6, () -> "Nucleus sums to " + total + " <= " + topP);
+            assertTrue(total - smallest <= topP + 1e-6, () -> "Nucleus without its least likely token sums to " + (total - smallest) + " > " + topP);
+        }
+    }
+
+    @Test
+    void candidatesAreTheProbabilitiesNotBelowTheCutoff() {
+        Random random = new Random(3);
+        for (Function<float[], FloatTensor> tensor : TENSORS) {
+            float[] probabilities = new float[1_003];
+            for (int i = 0; i < probabilities.length; i++) {
+                probabilities[i] = random.nextFloat() / probabilities.length;
+            }
+            float cutoff = 0.5f / probabilities.length;
+            long[] candidates = new long[probabilities.length];
+            int n = ToppSampler.selectCandidates(tensor.apply(probabilities), cutoff, candidates);
+            Set<Integer> expected = IntStream.range(0, probabilities.length).filter(i -> probabilities[i] >= cutoff).boxed()
+                .collect(Collectors.toCollection(TreeSet::new));
+            assertEquals(expected, Arrays.stream(candidates, 0, n).mapToObj(ToppSampler::index)
+                .collect(Collectors.toCollection(TreeSet::new)));
+            for (int i = 0; i < n; i++) {
+                assertEquals(probabilities[ToppSampler.index(candidates[i])], ToppSampler.probability(candidates[i]));
+            }
+        }
+    }
+}